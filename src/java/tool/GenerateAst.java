@@ -6,6 +6,12 @@ import java.util.Arrays;
 import java.util.List;
 
 public class GenerateAst {
+  // Each type is "Name : constructor fields", optionally followed by "| cache fields".
+  // Cache fields are mutable and left for the interpreter to fill in at runtime.
+  // A type may end with "-> forms", naming the specialized forms it implements itself;
+  // every other type gets the base class's, which convert the general result.
+  // Node semantics live in Nodes, as one static method per type and form, which the
+  // generated methods call; the visitor stays for passes over the tree.
   public static void main(String[] args) throws IOException {
     if (args.length != 1){
       System.err.println("Usage: generate_ast <output directory>");
@@ -14,31 +20,37 @@ public class GenerateAst {
 
     String outputDir = args[0];
 
-    defineAst(outputDir, "Expr", Arrays.asList(
-        "Assign : Token name, Expr value",
-        "Binary : Expr left, Token operator, Expr right",
-        "Grouping : Expr expression",
-        "Literal : Object value",
-        "Logical:  Expr left, Token operator, Expr right",
-        "Unary : Token operator, Expr right",
-        "Variable : Token name",
-        "Call : Expr callee, Token paren, List<Expr> arguments"
+    defineAst(outputDir, "Expr", "evaluate", Arrays.asList("long", "double", "boolean"), Arrays.asList(), Arrays.asList(
+        "Assign : Token name, Expr value | GlobalEnvironment.Cell cell",
+        "Binary : Expr left, Token operator, Expr right | boolean doubles, boolean generic -> long, double, boolean",
+        "Grouping : Expr expression -> long, double, boolean",
+        "Literal : Object value -> long, double, boolean",
+        "Logical:  Expr left, Token operator, Expr right -> boolean",
+        "Unary : Token operator, Expr right -> long, double, boolean",
+        "Variable : Token name | GlobalEnvironment.Cell cell",
+        "Call : Expr callee, Token paren, List<Expr> arguments -> double"
     ));
 
-    defineAst(outputDir, "Stmt", Arrays.asList(
+    // statements record the line they start on, for the profiler
+    defineAst(outputDir, "Stmt", "execute", Arrays.asList(), Arrays.asList("int line"), Arrays.asList(
             "Expression : Expr expression",
             "Print      : Expr expression",
             "Var   : Token name, Expr initializer",
             "Block  : List<Stmt> statements",
             "If     : Expr condition, Stmt thenBranch, Stmt elseBranch",
             "While  : Expr condition, Stmt body",
-            "Function : Token name, List<Token> params, List<Stmt> body",
-            "Return : Token keyword, Expr value"
+            "Function : Token name, List<Token> params, List<Stmt> body | int calls, Jit.Compiled compiled, StackMachine.Code code",
+            "Return : Token keyword, Expr value",
+            "Import : Token keyword, Token path"
     ));
 
   }
 
-  private static void defineAst(String outputDir, String baseName, List<String> types) throws IOException{
+  // The general method returns Object and is named by method; each form is a primitive type
+  // with a method named after both, like evaluateDouble, which defaults to Nodes.expectDouble.
+  // Base fields are mutable fields shared by every type, set after construction
+  private static void defineAst(String outputDir, String baseName, String method, List<String> forms,
+      List<String> baseFields, List<String> types) throws IOException{
     String path = outputDir + "/" + baseName + ".java";
 
     PrintWriter writer = new PrintWriter(path, "UTF-8");
@@ -51,15 +63,30 @@ public class GenerateAst {
 
     defineVisitor(writer, baseName, types);
 
+    for (String field : baseFields) {
+      writer.println("  " + field + ";");
+    }
+
     for (String type : types) {
       String className = type.split(":")[0].trim();
       String fields = type.split(":")[1].trim(); // [robust]
-      defineType(writer, baseName, className, fields);
+      defineType(writer, baseName, method, className, fields);
     }
 
     writer.println();
     writer.println("  abstract <R> R accept(Visitor<R> visitor);");
 
+    writer.println();
+    writer.println("  abstract Object " + method + "(Frame frame);");
+
+    for (String form : forms) {
+      String name = capitalize(form);
+      writer.println();
+      writer.println("  " + form + " " + method + name + "(Frame frame) {");
+      writer.println("    return Nodes.expect" + name + "(" + method + "(frame));");
+      writer.println("  }");
+    }
+
     writer.println("}");
     writer.close();
   }
@@ -76,8 +103,20 @@ public class GenerateAst {
     writer.println("  }");
   }
 
-  private static void defineType(PrintWriter writer, String baseName, String className, String fieldList){
-    writer.println("  static class " + className + " extends " + baseName + " {");
+  private static void defineType(PrintWriter writer, String baseName, String method, String className, String fieldList){
+    String[] forms = {};
+    if (fieldList.contains("->")) {
+      forms = fieldList.split("->")[1].trim().split(", ");
+      fieldList = fieldList.split("->")[0].trim();
+    }
+
+    String cacheList = null;
+    if (fieldList.contains("|")) {
+      cacheList = fieldList.split("\\|")[1].trim();
+      fieldList = fieldList.split("\\|")[0].trim();
+    }
+
+    writer.println("  static final class " + className + " extends " + baseName + " {");
     writer.println("    " + className + "(" + fieldList + ") {");
 
     String[] fields = fieldList.split(", ");
@@ -94,11 +133,37 @@ public class GenerateAst {
     writer.println("      return visitor.visit" + className + baseName + "(this);");
     writer.println("    }");
 
+    writer.println();
+    writer.println("    @Override");
+    writer.println("    Object " + method + "(Frame frame) {");
+    writer.println("      return Nodes." + method + "(this, frame);");
+    writer.println("    }");
+
+    for (String form : forms) {
+      String name = method + capitalize(form);
+      writer.println();
+      writer.println("    @Override");
+      writer.println("    " + form + " " + name + "(Frame frame) {");
+      writer.println("      return Nodes." + name + "(this, frame);");
+      writer.println("    }");
+    }
+
     writer.println();
     for (String field : fields){
       writer.println("    final " + field + ";");
     }
 
+    if (cacheList != null) {
+      writer.println();
+      for (String field : cacheList.split(", ")){
+        writer.println("    " + field + ";");
+      }
+    }
+
     writer.println("  }");
   }
-}
\ No newline at end of file
+
+  private static String capitalize(String word) {
+    return Character.toUpperCase(word.charAt(0)) + word.substring(1);
+  }
+}
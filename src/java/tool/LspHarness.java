@@ -0,0 +1,256 @@
+package tool;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// Drives the language server over stdio the way an editor would and measures how long it takes to
+// answer each keystroke. Opens a generated file, types a statement into the middle of it one
+// character at a time, waiting for the diagnostics of each change, and then checks completion
+// and go-to-definition. Exits with 1 if a check fails or keystrokes are slower than the target.
+public class LspHarness {
+  private static final long TARGET_MILLIS = 50;
+  private static final String URI = "file:///harness.us";
+
+  private final Process server;
+  private final OutputStream toServer;
+  private final BlockingQueue<String> messages = new LinkedBlockingQueue<>();
+  private int nextId = 1;
+  private boolean failed = false;
+
+  private LspHarness(Process server) {
+    this.server = server;
+    this.toServer = server.getOutputStream();
+    Thread reader = new Thread(() -> readMessages(server.getInputStream()));
+    reader.setDaemon(true);
+    reader.start();
+  }
+
+  public static void main(String[] args) throws Exception {
+    if (args.length > 1){
+      System.err.println("Usage: lsp_harness [lines]");
+      System.exit(64);
+    }
+    int units = (args.length == 1 ? Integer.parseInt(args[0]) : 10000) / 10;
+
+    // the server runs from the same class path as the harness
+    Process server = new ProcessBuilder("java", "-cp", System.getProperty("java.class.path"),
+        "utopiascript.UtopiaScript", "--lsp").redirectError(ProcessBuilder.Redirect.INHERIT).start();
+    LspHarness harness = new LspHarness(server);
+    try {
+      harness.session(units);
+    } finally {
+      server.destroy();
+    }
+    System.exit(harness.failed ? 1 : 0);
+  }
+
+  private void session(int units) throws Exception {
+    StringBuilder source = new StringBuilder();
+    for (int i = 0; i < units; i++) {
+      source.append(unit(i));
+    }
+    int lines = units * 10;
+    System.out.println("File of " + lines + " lines, " + source.length() + " characters");
+
+    request("initialize", "{\"processId\":null,\"rootUri\":null,\"capabilities\":{}}");
+    notify("initialized", "{}");
+
+    long start = System.nanoTime();
+    notify("textDocument/didOpen", "{\"textDocument\":{\"uri\":\"" + URI +
+        "\",\"languageId\":\"utopiascript\",\"version\":0,\"text\":" + quote(source.toString()) + "}}");
+    String diagnostics = awaitDiagnostics(0);
+    System.out.println("Opened in " + millis(System.nanoTime() - start) + " ms");
+    check(diagnostics.contains("\"diagnostics\":[]"), "the generated file parses without errors");
+
+    // a statement typed after 'var s = 0;' in the middle unit
+    int middle = units / 2;
+    int line = middle * 10 + 1;
+    int character = "    var s = 0;".length();
+    String typed = " var t = s + a; t = t * 2;";
+    int version = 0;
+
+    // the first pass warms up the server's JIT, the second is measured
+    List<Long> latencies = new ArrayList<>();
+    for (int pass = 0; pass < 2; pass++) {
+      for (int i = 0; i < typed.length(); i++) {
+        String change = "{\"range\":" + range(line, character + i, line, character + i) +
+            ",\"text\":" + quote(typed.substring(i, i + 1)) + "}";
+        start = System.nanoTime();
+        change(++version, change);
+        awaitDiagnostics(version);
+        if (pass == 1) latencies.add(System.nanoTime() - start);
+      }
+      if (pass == 0) {
+        // take the statement out again
+        String change = "{\"range\":" + range(line, character, line, character + typed.length()) + ",\"text\":\"\"}";
+        change(++version, change);
+        awaitDiagnostics(version);
+      }
+    }
+
+    // breaking the block and fixing it again
+    change(++version, "{\"range\":" + range(line, character, line, character) + ",\"text\":\"{\"}");
+    diagnostics = awaitDiagnostics(version);
+    check(!diagnostics.contains("\"diagnostics\":[]"), "an unclosed brace is reported");
+    change(++version, "{\"range\":" + range(line, character, line, character + 1) + ",\"text\":\"\"}");
+    diagnostics = awaitDiagnostics(version);
+    check(diagnostics.contains("\"diagnostics\":[]"), "removing the brace clears the diagnostics");
+
+    start = System.nanoTime();
+    String completion = request("textDocument/completion", position(line, character + typed.length()));
+    long completionTime = System.nanoTime() - start;
+    for (String name : new String[] { "t", "s", "a", "b", "f" + middle, "g0", "intervalo", "revenigi" }) {
+      check(completion.contains("\"label\":\"" + name + "\""), "completion offers '" + name + "'");
+    }
+    completion = request("textDocument/completion", position(line + 4, "    }".length()));
+    check(!completion.contains("\"label\":\"x\""), "completion leaves out 'x' after its loop");
+
+    // f<middle> calls f<middle - 1>, which is defined ten lines up
+    String call = "    revenigi f" + (middle - 1);
+    start = System.nanoTime();
+    String definition = request("textDocument/definition", position(line + 5, call.length() - 1));
+    long definitionTime = System.nanoTime() - start;
+    check(definition.contains("\"start\":{\"line\":" + (line - 11) + ",\"character\":8}"),
+        "go-to-definition finds f" + (middle - 1));
+
+    request("shutdown", "null");
+    notify("exit", "null");
+    check(server.waitFor(10, TimeUnit.SECONDS) && server.exitValue() == 0, "the server exits cleanly");
+
+    Collections.sort(latencies);
+    long median = latencies.get(latencies.size() / 2);
+    long slowest = latencies.get(latencies.size() - 1);
+    System.out.println("Keystrokes: " + latencies.size() + ", median " + millis(median) +
+        " ms, slowest " + millis(slowest) + " ms");
+    System.out.println("Completion: " + millis(completionTime) + " ms, definition: " +
+        millis(definitionTime) + " ms");
+    check(slowest <= TimeUnit.MILLISECONDS.toNanos(TARGET_MILLIS),
+        "every keystroke is answered within " + TARGET_MILLIS + " ms");
+  }
+
+  // Ten lines of code, calling the unit before it
+  private static String unit(int i) {
+    return "funkcio f" + i + "(a, b) {\n" +
+        "    var s = 0;\n" +
+        "    por (x en intervalo(0, a)) {\n" +
+        "        s = s + x * b;\n" +
+        "    }\n" +
+        "    se (s > 100) revenigi s;\n" +
+        "    revenigi " + (i > 0 ? "f" + (i - 1) + "(a, b) + s" : "s") + ";\n" +
+        "}\n" +
+        "var g" + i + " = f" + i + "(2, 3);\n" +
+        "\n";
+  }
+
+  private void check(boolean passed, String what) {
+    System.out.println((passed ? "ok     " : "FAILED ") + what);
+    if (!passed) failed = true;
+  }
+
+  private void change(int version, String change) throws IOException {
+    notify("textDocument/didChange", "{\"textDocument\":{\"uri\":\"" + URI + "\",\"version\":" + version +
+        "},\"contentChanges\":[" + change + "]}");
+  }
+
+  private static String position(int line, int character) {
+    return "{\"textDocument\":{\"uri\":\"" + URI + "\"},\"position\":{\"line\":" + line +
+        ",\"character\":" + character + "}}";
+  }
+
+  private static String range(int startLine, int startCharacter, int endLine, int endCharacter) {
+    return "{\"start\":{\"line\":" + startLine + ",\"character\":" + startCharacter +
+        "},\"end\":{\"line\":" + endLine + ",\"character\":" + endCharacter + "}}";
+  }
+
+  // Sends a request and returns its response
+  private String request(String method, String params) throws Exception {
+    int id = nextId++;
+    send("{\"jsonrpc\":\"2.0\",\"id\":" + id + ",\"method\":\"" + method + "\",\"params\":" + params + "}");
+    return await(Pattern.compile("\"id\":" + id + "\\b"));
+  }
+
+  private void notify(String method, String params) throws IOException {
+    send("{\"jsonrpc\":\"2.0\",\"method\":\"" + method + "\",\"params\":" + params + "}");
+  }
+
+  private String awaitDiagnostics(int version) throws Exception {
+    return await(Pattern.compile("publishDiagnostics.*\"version\":" + version + "\\b"));
+  }
+
+  // Returns the first message matching a pattern, dropping the messages before it
+  private String await(Pattern pattern) throws Exception {
+    for (;;) {
+      String message = messages.poll(30, TimeUnit.SECONDS);
+      if (message == null) throw new IllegalStateException("The server stopped answering.");
+      Matcher matcher = pattern.matcher(message);
+      if (matcher.find()) return message;
+    }
+  }
+
+  private void send(String json) throws IOException {
+    byte[] body = json.getBytes(StandardCharsets.UTF_8);
+    toServer.write(("Content-Length: " + body.length + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+    toServer.write(body);
+    toServer.flush();
+  }
+
+  private void readMessages(InputStream in) {
+    try {
+      for (;;) {
+        int length = -1;
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        for (;;) {
+          int c = in.read();
+          if (c < 0) return;
+          if (c != '\n') {
+            if (c != '\r') header.write(c);
+            continue;
+          }
+          String line = header.toString("US-ASCII");
+          header.reset();
+          if (line.isEmpty()) break;
+          if (line.startsWith("Content-Length:")) length = Integer.parseInt(line.substring(15).trim());
+        }
+
+        byte[] body = new byte[length];
+        int read = 0;
+        while (read < length) {
+          int count = in.read(body, read, length - read);
+          if (count < 0) return;
+          read += count;
+        }
+        messages.add(new String(body, StandardCharsets.UTF_8));
+      }
+    } catch (IOException e) {
+      // the server is gone, and await reports it
+    }
+  }
+
+  private static String quote(String text) {
+    StringBuilder quoted = new StringBuilder("\"");
+    for (char c : text.toCharArray()) {
+      switch (c) {
+        case '"': quoted.append("\\\""); break;
+        case '\\': quoted.append("\\\\"); break;
+        case '\n': quoted.append("\\n"); break;
+        default: quoted.append(c);
+      }
+    }
+    return quoted.append('"').toString();
+  }
+
+  private static String millis(long nanos) {
+    return String.format("%.1f", nanos / 1e6);
+  }
+}
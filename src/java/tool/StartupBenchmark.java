@@ -0,0 +1,70 @@
+package tool;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Times whole runs of a script, startup included, under each of several commands, such as the
+// JVM and a native image:
+//     java -cp out tool.StartupBenchmark 20 hello.us "java -cp out utopiascript.UtopiaScript" ./utopiascript
+// Every command runs the script once to warm the file cache and to check it prints the same as
+// the first command, then the given number of times, and the median, 90th percentile and
+// fastest times are reported.
+public class StartupBenchmark {
+  public static void main(String[] args) throws IOException, InterruptedException {
+    if (args.length < 3) {
+      System.err.println("Usage: startup_benchmark <runs> <script> <command>...");
+      System.exit(64);
+    }
+
+    int runs = Integer.parseInt(args[0]);
+    String script = args[1];
+    String expected = null;
+    double baseline = 0;
+
+    System.out.printf("%-50s %10s %10s %10s %8s%n", "command", "median ms", "p90 ms", "min ms", "speedup");
+    for (int i = 2; i < args.length; i++) {
+      List<String> command = new ArrayList<>(Arrays.asList(args[i].trim().split("\\s+")));
+      command.add(script);
+
+      String output = run(command);
+      if (expected == null) {
+        expected = output;
+      } else if (!output.equals(expected)) {
+        System.err.println("'" + args[i] + "' printed something else than '" + args[2] + "'.");
+        System.exit(1);
+      }
+
+      double[] times = new double[runs];
+      for (int run = 0; run < runs; run++) {
+        long start = System.nanoTime();
+        run(command);
+        times[run] = (System.nanoTime() - start) / 1e6;
+      }
+      Arrays.sort(times);
+
+      double median = times[runs / 2];
+      if (i == 2) baseline = median;
+      System.out.printf("%-50s %10.1f %10.1f %10.1f %7.1fx%n",
+          args[i], median, times[(int)Math.ceil(runs * 0.9) - 1], times[0], baseline / median);
+    }
+  }
+
+  // Runs the command to the end and returns what it printed, failing if it fails
+  private static String run(List<String> command) throws IOException, InterruptedException {
+    Process process = new ProcessBuilder(command)
+        .redirectInput(ProcessBuilder.Redirect.from(new File("/dev/null")))
+        .redirectError(ProcessBuilder.Redirect.INHERIT)
+        .start();
+    String output = new String(process.getInputStream().readAllBytes(), StandardCharsets.UTF_8);
+    int status = process.waitFor();
+    if (status != 0) {
+      System.err.println("'" + String.join(" ", command) + "' exited with " + status + ".");
+      System.exit(1);
+    }
+    return output;
+  }
+}
@@ -0,0 +1,435 @@
+package utopiascript;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Writes syntax trees in a compact binary form and reads them back, so parsed code can be kept
+// on disk. Each node is a tag byte followed by its fields, integers are variable length, and a
+// string is written once and referred to by its index after that.
+final class AstCodec {
+    private static final int MAGIC = 0x55534153;
+    // changes whenever the format or the tree does, so stale files are parsed again
+    private static final int VERSION = 3;
+
+    // node tags, with 0 for a missing node
+    private static final int ASSIGN = 1, BINARY = 2, GROUPING = 3, LITERAL = 4, LOGICAL = 5,
+        UNARY = 6, VARIABLE = 7, CALL = 8;
+    private static final int EXPRESSION = 9, PRINT = 10, VAR = 11, BLOCK = 12, IF = 13, WHILE = 14,
+        FUNCTION = 15, RETURN = 16, IMPORT = 17;
+
+    // value tags
+    private static final int NIL = 0, TRUE = 1, FALSE = 2, NUMBER = 3, STRING = 4,
+        ITERATE = 5, HAS_NEXT = 6, NEXT = 7, INTEGER = 8;
+
+    private AstCodec() {
+    }
+
+    static byte[] encode(List<Stmt> statements) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            Writer writer = new Writer(new DataOutputStream(bytes));
+            writer.header();
+            writer.statements(statements);
+            writer.out.flush();
+        } catch (IOException e) {
+            // a ByteArrayOutputStream doesn't throw
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    // Throws an IOException if the bytes aren't a tree in the current format
+    static List<Stmt> decode(byte[] bytes) throws IOException {
+        Reader reader = new Reader(new DataInputStream(new ByteArrayInputStream(bytes)));
+        reader.header();
+        return reader.statements();
+    }
+
+    // Writes nodes, tokens and values to a stream
+    static class Writer implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+        final DataOutputStream out;
+        // whether tokens keep where they are in the source, which only matters to tools
+        boolean offsets = true;
+        private final Map<String, Integer> strings = new HashMap<>();
+
+        Writer(DataOutputStream out) {
+            this.out = out;
+        }
+
+        void header() throws IOException {
+            out.writeInt(MAGIC);
+            varint(VERSION);
+        }
+
+        void varint(int value) throws IOException {
+            while ((value & ~0x7F) != 0) {
+                out.writeByte((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            out.writeByte(value);
+        }
+
+        void string(String value) throws IOException {
+            Integer index = strings.get(value);
+            if (index != null) {
+                varint(index + 1);
+                return;
+            }
+
+            strings.put(value, strings.size());
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            varint(0);
+            varint(bytes.length);
+            out.write(bytes);
+        }
+
+        void value(Object value) throws IOException {
+            if (value == null) {
+                out.writeByte(NIL);
+            } else if (value == Boolean.TRUE) {
+                out.writeByte(TRUE);
+            } else if (value == Boolean.FALSE) {
+                out.writeByte(FALSE);
+            } else if (value instanceof Double) {
+                out.writeByte(NUMBER);
+                out.writeDouble((double)value);
+            } else if (value instanceof Long) {
+                out.writeByte(INTEGER);
+                out.writeLong((long)value);
+            } else if (value instanceof String) {
+                out.writeByte(STRING);
+                string((String)value);
+            } else if (value == UtopiaScriptIterator.ITERATE) {
+                out.writeByte(ITERATE);
+            } else if (value == UtopiaScriptIterator.HAS_NEXT) {
+                out.writeByte(HAS_NEXT);
+            } else if (value == UtopiaScriptIterator.NEXT) {
+                out.writeByte(NEXT);
+            } else {
+                throw new IllegalArgumentException("Can't write " + value + ".");
+            }
+        }
+
+        void token(Token token) throws IOException {
+            varint(token.type.ordinal());
+            string(token.lexeme);
+            value(token.literal);
+            varint(token.line);
+            // tokens made up by the parser have an offset of -1
+            varint(offsets ? token.offset + 1 : 0);
+        }
+
+        void tokens(List<Token> tokens) throws IOException {
+            varint(tokens.size());
+            for (Token token : tokens) {
+                token(token);
+            }
+        }
+
+        void statements(List<Stmt> statements) throws IOException {
+            varint(statements.size());
+            for (Stmt statement : statements) {
+                write(statement);
+            }
+        }
+
+        void write(Stmt stmt) throws IOException {
+            if (stmt == null) {
+                out.writeByte(0);
+                return;
+            }
+            try {
+                stmt.accept(this);
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+        }
+
+        void write(Expr expr) throws IOException {
+            if (expr == null) {
+                out.writeByte(0);
+                return;
+            }
+            try {
+                expr.accept(this);
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+        }
+
+        // the visitor methods can't throw IOException, so they wrap it for write to unwrap
+        private interface Body {
+            void write() throws IOException;
+        }
+
+        private void node(int tag, Body body) {
+            try {
+                out.writeByte(tag);
+                body.write();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        private void stmt(int tag, Stmt stmt, Body body) {
+            node(tag, () -> {
+                varint(stmt.line);
+                body.write();
+            });
+        }
+
+        @Override
+        public Void visitAssignExpr(Expr.Assign expr) {
+            node(ASSIGN, () -> { token(expr.name); write(expr.value); });
+            return null;
+        }
+
+        @Override
+        public Void visitBinaryExpr(Expr.Binary expr) {
+            node(BINARY, () -> { write(expr.left); token(expr.operator); write(expr.right); });
+            return null;
+        }
+
+        @Override
+        public Void visitGroupingExpr(Expr.Grouping expr) {
+            node(GROUPING, () -> write(expr.expression));
+            return null;
+        }
+
+        @Override
+        public Void visitLiteralExpr(Expr.Literal expr) {
+            node(LITERAL, () -> value(expr.value));
+            return null;
+        }
+
+        @Override
+        public Void visitLogicalExpr(Expr.Logical expr) {
+            node(LOGICAL, () -> { write(expr.left); token(expr.operator); write(expr.right); });
+            return null;
+        }
+
+        @Override
+        public Void visitUnaryExpr(Expr.Unary expr) {
+            node(UNARY, () -> { token(expr.operator); write(expr.right); });
+            return null;
+        }
+
+        @Override
+        public Void visitVariableExpr(Expr.Variable expr) {
+            node(VARIABLE, () -> token(expr.name));
+            return null;
+        }
+
+        @Override
+        public Void visitCallExpr(Expr.Call expr) {
+            node(CALL, () -> {
+                write(expr.callee);
+                token(expr.paren);
+                varint(expr.arguments.size());
+                for (Expr argument : expr.arguments) {
+                    write(argument);
+                }
+            });
+            return null;
+        }
+
+        @Override
+        public Void visitExpressionStmt(Stmt.Expression stmt) {
+            stmt(EXPRESSION, stmt, () -> write(stmt.expression));
+            return null;
+        }
+
+        @Override
+        public Void visitPrintStmt(Stmt.Print stmt) {
+            stmt(PRINT, stmt, () -> write(stmt.expression));
+            return null;
+        }
+
+        @Override
+        public Void visitVarStmt(Stmt.Var stmt) {
+            stmt(VAR, stmt, () -> { token(stmt.name); write(stmt.initializer); });
+            return null;
+        }
+
+        @Override
+        public Void visitBlockStmt(Stmt.Block stmt) {
+            stmt(BLOCK, stmt, () -> statements(stmt.statements));
+            return null;
+        }
+
+        @Override
+        public Void visitIfStmt(Stmt.If stmt) {
+            stmt(IF, stmt, () -> { write(stmt.condition); write(stmt.thenBranch); write(stmt.elseBranch); });
+            return null;
+        }
+
+        @Override
+        public Void visitWhileStmt(Stmt.While stmt) {
+            stmt(WHILE, stmt, () -> { write(stmt.condition); write(stmt.body); });
+            return null;
+        }
+
+        @Override
+        public Void visitFunctionStmt(Stmt.Function stmt) {
+            stmt(FUNCTION, stmt, () -> { token(stmt.name); tokens(stmt.params); statements(stmt.body); });
+            return null;
+        }
+
+        @Override
+        public Void visitReturnStmt(Stmt.Return stmt) {
+            stmt(RETURN, stmt, () -> { token(stmt.keyword); write(stmt.value); });
+            return null;
+        }
+
+        @Override
+        public Void visitImportStmt(Stmt.Import stmt) {
+            stmt(IMPORT, stmt, () -> { token(stmt.keyword); token(stmt.path); });
+            return null;
+        }
+    }
+
+    // Reads what a Writer wrote
+    static class Reader {
+        private static final TokenType[] TOKEN_TYPES = TokenType.values();
+
+        final DataInputStream in;
+        private final List<String> strings = new ArrayList<>();
+
+        Reader(DataInputStream in) {
+            this.in = in;
+        }
+
+        void header() throws IOException {
+            if (in.readInt() != MAGIC) throw new IOException("Not a syntax tree.");
+            if (varint() != VERSION) throw new IOException("Syntax tree from another version.");
+        }
+
+        int varint() throws IOException {
+            int value = 0;
+            for (int shift = 0; shift < 32; shift += 7) {
+                int b = in.readUnsignedByte();
+                value |= (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) return value;
+            }
+            throw new IOException("Malformed integer.");
+        }
+
+        String string() throws IOException {
+            int index = varint();
+            if (index > 0) {
+                if (index > strings.size()) throw new IOException("Malformed string reference.");
+                return strings.get(index - 1);
+            }
+
+            byte[] bytes = new byte[varint()];
+            in.readFully(bytes);
+            String value = new String(bytes, StandardCharsets.UTF_8);
+            strings.add(value);
+            return value;
+        }
+
+        Object value() throws IOException {
+            return value(in.readUnsignedByte());
+        }
+
+        // Reads the rest of a value whose tag has been read
+        Object value(int tag) throws IOException {
+            switch (tag) {
+                case NIL: return null;
+                case TRUE: return Boolean.TRUE;
+                case FALSE: return Boolean.FALSE;
+                case NUMBER: return in.readDouble();
+                case INTEGER: return in.readLong();
+                case STRING: return string();
+                case ITERATE: return UtopiaScriptIterator.ITERATE;
+                case HAS_NEXT: return UtopiaScriptIterator.HAS_NEXT;
+                case NEXT: return UtopiaScriptIterator.NEXT;
+                default: throw new IOException("Unknown value tag " + tag + ".");
+            }
+        }
+
+        Token token() throws IOException {
+            int type = varint();
+            if (type >= TOKEN_TYPES.length) throw new IOException("Unknown token type " + type + ".");
+            String lexeme = string();
+            Object literal = value();
+            int line = varint();
+            int offset = varint() - 1;
+            return new Token(TOKEN_TYPES[type], lexeme, literal, line, offset);
+        }
+
+        List<Token> tokens() throws IOException {
+            int count = varint();
+            List<Token> tokens = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                tokens.add(token());
+            }
+            return tokens;
+        }
+
+        List<Stmt> statements() throws IOException {
+            int count = varint();
+            List<Stmt> statements = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                statements.add(stmt());
+            }
+            return statements;
+        }
+
+        Expr expr() throws IOException {
+            int tag = in.readUnsignedByte();
+            switch (tag) {
+                case 0: return null;
+                case ASSIGN: return new Expr.Assign(token(), expr());
+                case BINARY: return new Expr.Binary(expr(), token(), expr());
+                case GROUPING: return new Expr.Grouping(expr());
+                case LITERAL: return new Expr.Literal(value());
+                case LOGICAL: return new Expr.Logical(expr(), token(), expr());
+                case UNARY: return new Expr.Unary(token(), expr());
+                case VARIABLE: return new Expr.Variable(token());
+                case CALL: {
+                    Expr callee = expr();
+                    Token paren = token();
+                    int count = varint();
+                    List<Expr> arguments = new ArrayList<>(count);
+                    for (int i = 0; i < count; i++) {
+                        arguments.add(expr());
+                    }
+                    return new Expr.Call(callee, paren, arguments);
+                }
+                default: throw new IOException("Unknown expression tag " + tag + ".");
+            }
+        }
+
+        Stmt stmt() throws IOException {
+            int tag = in.readUnsignedByte();
+            if (tag == 0) return null;
+
+            int line = varint();
+            Stmt stmt;
+            switch (tag) {
+                case EXPRESSION: stmt = new Stmt.Expression(expr()); break;
+                case PRINT: stmt = new Stmt.Print(expr()); break;
+                case VAR: stmt = new Stmt.Var(token(), expr()); break;
+                case BLOCK: stmt = new Stmt.Block(statements()); break;
+                case IF: stmt = new Stmt.If(expr(), stmt(), stmt()); break;
+                case WHILE: stmt = new Stmt.While(expr(), stmt()); break;
+                case FUNCTION: stmt = new Stmt.Function(token(), tokens(), statements()); break;
+                case RETURN: stmt = new Stmt.Return(token(), expr()); break;
+                case IMPORT: stmt = new Stmt.Import(token(), token()); break;
+                default: throw new IOException("Unknown statement tag " + tag + ".");
+            }
+            stmt.line = line;
+            return stmt;
+        }
+    }
+}
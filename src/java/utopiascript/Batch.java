@@ -0,0 +1,101 @@
+package utopiascript;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+// Runs many scripts across a pool of workers, for --batch.
+// The scripts are the .us files under a directory, or the files a manifest lists one per line,
+// relative to the manifest, skipping blank lines and lines starting with '#'. Every script is
+// read and parsed on the pool, then run there as soon as its parse is done. The output and
+// errors of each are printed in the order of the scripts, under a line naming the script,
+// followed by a summary. The exit status is the worst of the scripts': 65 for a script that
+// doesn't parse, 70 for one with a runtime error and 74 for one that can't be read.
+final class Batch {
+    private Batch() {
+    }
+
+    static int run(Runner runner, Path input, int workers, PrintStream out, PrintStream err) throws IOException {
+        List<Path> scripts = scripts(input);
+        ExecutorService pool = Executors.newFixedThreadPool(workers, task -> {
+            Thread thread = new Thread(task, "utopiascript-batch");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        long start = System.nanoTime();
+        List<CompletableFuture<Runner.Result>> results = new ArrayList<>();
+        for (Path script : scripts) {
+            results.add(CompletableFuture.supplyAsync(() -> read(script), pool)
+                .thenCompose(source -> runner.parse(source, pool))
+                .thenApplyAsync(code -> runner.run(code, script.toAbsolutePath().getParent()), pool)
+                .exceptionally(error -> failure(script, error)));
+        }
+
+        int status = 0;
+        int failed = 0;
+        for (int i = 0; i < scripts.size(); i++) {
+            Runner.Result result = results.get(i).join();
+            out.println("== " + scripts.get(i) + " ==");
+            out.print(result.output);
+            if (!result.errors.isEmpty()) {
+                out.flush();
+                err.println("== " + scripts.get(i) + " ==");
+                err.print(result.errors);
+            }
+            if (result.status != 0) failed++;
+            status = Math.max(status, result.status);
+        }
+        pool.shutdown();
+
+        double seconds = (System.nanoTime() - start) / 1e9;
+        out.flush();
+        err.printf("%d scripts, %d distinct, %d failed in %.2f s (%.0f scripts/s)%n",
+            scripts.size(), runner.sources(), failed, seconds, scripts.size() / seconds);
+        return status;
+    }
+
+    private static List<Path> scripts(Path input) throws IOException {
+        if (Files.isDirectory(input)) {
+            try (Stream<Path> files = Files.walk(input)) {
+                return files.filter(file -> file.toString().endsWith(".us") && Files.isRegularFile(file))
+                    .sorted()
+                    .collect(Collectors.toList());
+            }
+        }
+
+        List<Path> scripts = new ArrayList<>();
+        for (String line : Files.readAllLines(input)) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) continue;
+            scripts.add(input.getParent() == null ? Path.of(line) : input.getParent().resolve(line));
+        }
+        return scripts;
+    }
+
+    private static Runner.Result failure(Path script, Throwable error) {
+        Throwable cause = error.getCause() != null ? error.getCause() : error;
+        if (cause instanceof UncheckedIOException) {
+            return new Runner.Result("", "Can't read script '" + script + "'.\n", 74);
+        }
+        // a bug in the interpreter fails the script rather than the whole batch
+        return new Runner.Result("", "Internal error: " + cause + "\n", 70);
+    }
+
+    private static byte[] read(Path script) {
+        try {
+            return Files.readAllBytes(script);
+        } catch (IOException error) {
+            throw new UncheckedIOException(error);
+        }
+    }
+}
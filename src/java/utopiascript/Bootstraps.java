@@ -0,0 +1,326 @@
+package utopiascript;
+
+import java.lang.constant.ConstantDescs;
+import java.lang.invoke.CallSite;
+import java.lang.invoke.ConstantCallSite;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.MutableCallSite;
+import java.util.Arrays;
+
+// Bootstrap methods for the invokedynamic instructions DynamicCompiler emits, and the helpers
+// compiled code calls. Operator and call sites start out unlinked. The first time a site runs
+// it links a method handle specialized for the types it saw, behind a guard that falls back
+// to relinking, so a site that later sees other types grows a chain of guarded cases. Sites
+// that keep seeing new types give up and link the general form from Operators.
+class Bootstraps {
+    // guarded cases a site may collect before it falls back to the general form
+    private static final int MAX_LINKS = 4;
+
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+
+    private static final MethodType BINARY = MethodType.methodType(Object.class, Object.class, Object.class);
+    private static final MethodType TEST = MethodType.methodType(boolean.class, Object.class, Object.class);
+
+    private static final MethodHandle RELINK_BINARY = find(Bootstraps.class, "relinkBinary",
+        MethodType.methodType(Object.class, BinarySite.class, Object.class, Object.class));
+    private static final MethodHandle BINARY_GENERAL = find(Operators.class, "binary",
+        MethodType.methodType(Object.class, Token.class, Object.class, Object.class));
+    private static final MethodHandle NEGATE = find(Operators.class, "negate",
+        MethodType.methodType(Object.class, Token.class, Object.class));
+
+    private static final MethodHandle RELINK_GLOBAL = find(Bootstraps.class, "relinkGlobal",
+        MethodType.methodType(Object.class, GlobalSite.class, Interpreter.class));
+    private static final MethodHandle RELINK_ASSIGN = find(Bootstraps.class, "relinkAssign",
+        MethodType.methodType(Object.class, GlobalSite.class, Interpreter.class, Object.class));
+    private static final MethodHandle SAME_GLOBALS = find(Bootstraps.class, "sameGlobals",
+        MethodType.methodType(boolean.class, GlobalEnvironment.class, Interpreter.class));
+    private static final MethodHandle READ_CELL = find(Bootstraps.class, "read",
+        MethodType.methodType(Object.class, GlobalEnvironment.Cell.class, Token.class));
+    private static final MethodHandle WRITE_CELL = find(Bootstraps.class, "write",
+        MethodType.methodType(Object.class, GlobalEnvironment.Cell.class, Object.class));
+
+    private static final MethodHandle RELINK_CALL = find(Bootstraps.class, "relinkCall",
+        MethodType.methodType(Object.class, CallSiteState.class, Interpreter.class, Object.class, Object[].class));
+    private static final MethodHandle CALL_GENERAL = find(Bootstraps.class, "call",
+        MethodType.methodType(Object.class, Token.class, Interpreter.class, Object.class, Object[].class));
+    private static final MethodHandle IS = find(Bootstraps.class, "is",
+        MethodType.methodType(boolean.class, Object.class, Object.class));
+    private static final MethodHandle ACCEPTS = find(Bootstraps.class, "accepts",
+        MethodType.methodType(boolean.class, HostFunction.class, Interpreter.class, Object.class, Object[].class));
+    private static final MethodHandle AT_CALL = find(Bootstraps.class, "atCall",
+        MethodType.methodType(Object.class, Token.class, RuntimeError.class));
+    private static final MethodHandle BAIL = find(Bootstraps.class, "bail",
+        MethodType.methodType(double.class, RuntimeError.class));
+
+    private static MethodHandle find(Class<?> owner, String name, MethodType type) {
+        try {
+            return LOOKUP.findStatic(owner, name, type);
+        } catch (ReflectiveOperationException error) {
+            throw new LinkageError("Missing " + name, error);
+        }
+    }
+
+    // Operators
+
+    private static final class BinarySite extends MutableCallSite {
+        final Token operator;
+        int links = 0;
+
+        BinarySite(Token operator, MethodType type) {
+            super(type);
+            this.operator = operator;
+            setTarget(RELINK_BINARY.bindTo(this));
+        }
+    }
+
+    // left operator right, where the name is the operator's TokenType
+    static CallSite binary(MethodHandles.Lookup lookup, String name, MethodType type, String lexeme, int line) {
+        return new BinarySite(new Token(TokenType.valueOf(name), lexeme, null, line), type);
+    }
+
+    // -operand, which only has numbers to handle
+    static CallSite negate(MethodHandles.Lookup lookup, String name, MethodType type, String lexeme, int line) {
+        return new ConstantCallSite(NEGATE.bindTo(new Token(TokenType.MINUS, lexeme, null, line)));
+    }
+
+    private static Object relinkBinary(BinarySite site, Object left, Object right) {
+        Token operator = site.operator;
+        if (operator.type == TokenType.EQUAL_EQUAL || operator.type == TokenType.BANG_EQUAL) {
+            // equality works the same for every type
+            site.setTarget(find(Operators.class,
+                operator.type == TokenType.EQUAL_EQUAL ? "equal" : "notEqual", BINARY));
+        } else if (site.links++ == MAX_LINKS) {
+            site.setTarget(BINARY_GENERAL.bindTo(operator));
+        } else {
+            MethodHandle[] specialized = specialize(operator, left, right);
+            // operands that are an error are not worth a case of their own
+            if (specialized != null) {
+                site.setTarget(MethodHandles.guardWithTest(specialized[0], specialized[1], site.getTarget()));
+            }
+        }
+
+        return Operators.binary(operator, left, right);
+    }
+
+    // Returns the guard and the operation for these operands' types, or null if they are an error
+    private static MethodHandle[] specialize(Token operator, Object left, Object right) {
+        if (Operators.numbers(left, right)) {
+            String name;
+            switch (operator.type) {
+                case PLUS: name = "add"; break;
+                case MINUS: name = "subtract"; break;
+                case STAR: name = "multiply"; break;
+                case GREATER: name = "greater"; break;
+                case GREATER_EQUAL: name = "greaterEqual"; break;
+                case LESS: name = "less"; break;
+                case LESS_EQUAL: name = "lessEqual"; break;
+                case SLASH:
+                    return new MethodHandle[] {
+                        find(Operators.class, "numbers", TEST),
+                        find(Operators.class, "divide", BINARY.insertParameterTypes(0, Token.class))
+                            .bindTo(operator)
+                    };
+                default: return null;
+            }
+            return new MethodHandle[] {
+                find(Operators.class, "numbers", TEST), find(Operators.class, name, BINARY)
+            };
+        }
+
+        if (Operators.integers(left, right)) {
+            String name;
+            switch (operator.type) {
+                case PLUS: name = "addIntegers"; break;
+                case MINUS: name = "subtractIntegers"; break;
+                case STAR: name = "multiplyIntegers"; break;
+                case GREATER: name = "greaterIntegers"; break;
+                case GREATER_EQUAL: name = "greaterEqualIntegers"; break;
+                case LESS: name = "lessIntegers"; break;
+                case LESS_EQUAL: name = "lessEqualIntegers"; break;
+                // division gives a double, or an error, which the general form handles
+                case SLASH:
+                    return new MethodHandle[] {
+                        find(Operators.class, "integers", TEST), BINARY_GENERAL.bindTo(operator)
+                    };
+                default: return null;
+            }
+            return new MethodHandle[] {
+                find(Operators.class, "integers", TEST), find(Operators.class, name, BINARY)
+            };
+        }
+
+        if (operator.type != TokenType.PLUS) return null;
+        if (Operators.strings(left, right)) {
+            return new MethodHandle[] {
+                find(Operators.class, "strings", TEST), find(Operators.class, "concatenate", BINARY)
+            };
+        }
+        if (Operators.leftString(left, right)) {
+            return new MethodHandle[] {
+                find(Operators.class, "leftString", TEST), find(Operators.class, "concatenateLeft", BINARY)
+            };
+        }
+        if (Operators.rightString(left, right)) {
+            return new MethodHandle[] {
+                find(Operators.class, "rightString", TEST), find(Operators.class, "concatenateRight", BINARY)
+            };
+        }
+        return null;
+    }
+
+    // Globals
+
+    // Global sites cache the cell of the variable, guarded by the globals it belongs to,
+    // since compiled code is shared by every interpreter that runs the function
+    private static final class GlobalSite extends MutableCallSite {
+        final Token name;
+
+        GlobalSite(Token name, MethodType type, MethodHandle relink) {
+            super(type);
+            this.name = name;
+            setTarget(relink.bindTo(this));
+        }
+    }
+
+    // Reads the global variable the site is named after
+    static CallSite global(MethodHandles.Lookup lookup, String name, MethodType type, int line) {
+        return new GlobalSite(new Token(TokenType.IDENTIFIER, name, null, line), type, RELINK_GLOBAL);
+    }
+
+    // Assigns to the global variable the site is named after, leaving the value on the stack
+    static CallSite assignGlobal(MethodHandles.Lookup lookup, String name, MethodType type, int line) {
+        return new GlobalSite(new Token(TokenType.IDENTIFIER, name, null, line), type, RELINK_ASSIGN);
+    }
+
+    private static Object relinkGlobal(GlobalSite site, Interpreter interpreter) {
+        GlobalEnvironment.Cell cell = interpreter.globals.cell(site.name, null);
+        MethodHandle read = MethodHandles.dropArguments(
+            MethodHandles.insertArguments(READ_CELL, 0, cell, site.name), 0, Interpreter.class);
+        site.setTarget(MethodHandles.guardWithTest(
+            SAME_GLOBALS.bindTo(interpreter.globals), read, RELINK_GLOBAL.bindTo(site)));
+        return read(cell, site.name);
+    }
+
+    private static Object relinkAssign(GlobalSite site, Interpreter interpreter, Object value) {
+        GlobalEnvironment.Cell cell = interpreter.globals.cell(site.name, null);
+        MethodHandle write = MethodHandles.dropArguments(WRITE_CELL.bindTo(cell), 0, Interpreter.class);
+        site.setTarget(MethodHandles.guardWithTest(
+            SAME_GLOBALS.bindTo(interpreter.globals), write, RELINK_ASSIGN.bindTo(site)));
+        return write(cell, value);
+    }
+
+    private static boolean sameGlobals(GlobalEnvironment globals, Interpreter interpreter) {
+        return interpreter.globals == globals;
+    }
+
+    private static Object read(GlobalEnvironment.Cell cell, Token name) {
+        if (cell.value == null) throw uninitialized(name.lexeme, name.line);
+        return cell.value;
+    }
+
+    private static Object write(GlobalEnvironment.Cell cell, Object value) {
+        cell.value = value;
+        return value;
+    }
+
+    // Calls
+
+    private static final class CallSiteState extends MutableCallSite {
+        final Token paren;
+        int links = 0;
+
+        CallSiteState(Token paren, MethodType type) {
+            super(type);
+            this.paren = paren;
+            setTarget(collect(RELINK_CALL.bindTo(this), type));
+        }
+    }
+
+    // callee(arguments...), called with the interpreter, the callee and the arguments
+    static CallSite call(MethodHandles.Lookup lookup, String name, MethodType type, int line) {
+        return new CallSiteState(new Token(TokenType.RIGHT_PAREN, ")", null, line), type);
+    }
+
+    // Adapts a handle taking the arguments as an array to the site's type
+    private static MethodHandle collect(MethodHandle handle, MethodType type) {
+        return handle.asCollector(Object[].class, type.parameterCount() - 2).asType(type);
+    }
+
+    // Calls to a function that has been compiled by DynamicCompiler are linked straight to its
+    // code, so HotSpot can inline one script function into another. Calls to a host function
+    // are linked straight to its handle while the arguments are of the types it takes, so
+    // numbers are unboxed rather than collected into a list.
+    private static Object relinkCall(CallSiteState site, Interpreter interpreter,
+                                     Object callee, Object[] arguments) {
+        if (callee instanceof UtopiaScriptFunction && interpreter.profiler == null) {
+            MethodHandle entry = Jit.entry(((UtopiaScriptFunction)callee).declaration);
+            if (entry != null && entry.type().parameterCount() == arguments.length + 1) {
+                MethodHandle test = MethodHandles.dropArguments(IS.bindTo(callee), 0, Interpreter.class);
+                link(site, test, MethodHandles.dropArguments(entry, 1, Object.class));
+            }
+        } else if (callee instanceof HostFunction) {
+            HostFunction host = (HostFunction)callee;
+            if (host.arity() == arguments.length && host.accepts(arguments)) {
+                MethodHandle test = collect(ACCEPTS.bindTo(host), site.type().changeReturnType(boolean.class));
+                MethodHandle typed = host.handle.asType(host.handle.type().generic());
+                // errors raised by natives carry no token, so report them at the call site
+                typed = MethodHandles.catchException(typed, RuntimeError.class,
+                    MethodHandles.dropArguments(AT_CALL.bindTo(site.paren), 1, typed.type().parameterList()));
+                link(site, test, MethodHandles.dropArguments(typed, 0, Interpreter.class, Object.class));
+            }
+        }
+
+        return call(site.paren, interpreter, callee, arguments);
+    }
+
+    private static void link(CallSiteState site, MethodHandle test, MethodHandle direct) {
+        if (site.links++ == MAX_LINKS) {
+            site.setTarget(collect(CALL_GENERAL.bindTo(site.paren), site.type()));
+        } else {
+            site.setTarget(MethodHandles.guardWithTest(test, direct.asType(site.type()), site.getTarget()));
+        }
+    }
+
+    private static boolean accepts(HostFunction host, Interpreter interpreter, Object callee, Object[] arguments) {
+        return callee == host && host.accepts(arguments);
+    }
+
+    private static Object atCall(Token paren, RuntimeError error) {
+        if (error.token == null) throw new RuntimeError(paren, error.getMessage());
+        throw error;
+    }
+
+    // A numeric host function called by NumericCompiler code, whose class data lists the handles
+    // of the host functions it calls. An error bails out to the tree-walker, which reports it.
+    static CallSite host(MethodHandles.Lookup lookup, String name, MethodType type, int index)
+            throws IllegalAccessException {
+        MethodHandle handle = MethodHandles.classDataAt(lookup, ConstantDescs.DEFAULT_NAME, MethodHandle.class, index);
+        MethodHandle bail = MethodHandles.dropArguments(BAIL, 1, handle.type().parameterList());
+        return new ConstantCallSite(MethodHandles.catchException(handle, RuntimeError.class, bail).asType(type));
+    }
+
+    private static double bail(RuntimeError error) {
+        throw Jit.Deoptimize.INSTANCE;
+    }
+
+    private static Object call(Token paren, Interpreter interpreter, Object callee, Object[] arguments) {
+        return Operators.call(interpreter, paren, callee, Arrays.asList(arguments));
+    }
+
+    private static boolean is(Object expected, Object actual) {
+        return expected == actual;
+    }
+
+    // Helpers
+
+    static void print(Interpreter interpreter, Object value) {
+        interpreter.out.println(Interpreter.stringify(value));
+    }
+
+    static RuntimeError uninitialized(String name, int line) {
+        return new RuntimeError(new Token(TokenType.IDENTIFIER, name, null, line),
+            "Cannot access a variable that has not been initialized or assigned to");
+    }
+}
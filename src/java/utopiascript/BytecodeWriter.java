@@ -0,0 +1,734 @@
+package utopiascript;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+
+// Assembles a JVM class file for the compilers in Jit.
+// Only the parts of the format the compilers need are supported. Types are tracked as field
+// descriptors ("D", "I", "Ljava/lang/Object;") so that every method gets the StackMapTable
+// the verifier requires, computed from the locals in scope and the operand stack at each label.
+class BytecodeWriter {
+    static final int ACC_PUBLIC = 0x0001;
+    static final int ACC_STATIC = 0x0008;
+    static final int ACC_FINAL = 0x0010;
+    static final int ACC_SUPER = 0x0020;
+
+    static final int ACONST_NULL = 0x01, ICONST_0 = 0x03, LCONST_0 = 0x09, LCONST_1 = 0x0a;
+    static final int DCONST_0 = 0x0e, DCONST_1 = 0x0f;
+    static final int BIPUSH = 0x10, SIPUSH = 0x11, LDC_W = 0x13, LDC2_W = 0x14;
+    static final int ILOAD = 0x15, LLOAD = 0x16, DLOAD = 0x18, ALOAD = 0x19;
+    static final int ISTORE = 0x36, LSTORE = 0x37, DSTORE = 0x39, ASTORE = 0x3a;
+    static final int POP = 0x57, POP2 = 0x58, DUP = 0x59, DUP2 = 0x5c, SWAP = 0x5f;
+    static final int DADD = 0x63, DSUB = 0x67, DMUL = 0x6b, DDIV = 0x6f, DNEG = 0x77;
+    static final int IAND = 0x7e, IOR = 0x80, IXOR = 0x82;
+    static final int L2D = 0x8a;
+    static final int LCMP = 0x94, DCMPL = 0x97, DCMPG = 0x98;
+    static final int IFEQ = 0x99, IFNE = 0x9a, IFLT = 0x9b, IFGE = 0x9c, IFGT = 0x9d, IFLE = 0x9e;
+    static final int IF_ICMPEQ = 0x9f, IF_ICMPNE = 0xa0, IF_ACMPEQ = 0xa5, IF_ACMPNE = 0xa6;
+    static final int GOTO = 0xa7;
+    static final int IRETURN = 0xac, LRETURN = 0xad, DRETURN = 0xaf, ARETURN = 0xb0, RETURN = 0xb1;
+    static final int GETSTATIC = 0xb2;
+    static final int INVOKEVIRTUAL = 0xb6, INVOKESPECIAL = 0xb7, INVOKESTATIC = 0xb8;
+    static final int INVOKEINTERFACE = 0xb9, INVOKEDYNAMIC = 0xba;
+    static final int NEW = 0xbb, ANEWARRAY = 0xbd, ATHROW = 0xbf, CHECKCAST = 0xc0;
+    static final int IFNULL = 0xc6, IFNONNULL = 0xc7;
+
+    static final String OBJECT = "Ljava/lang/Object;";
+
+    // Thrown when a method outgrows what the writer can encode
+    static class TooLarge extends RuntimeException {
+        TooLarge(String message) {
+            super(message, null, false, false);
+        }
+    }
+
+    private final String name;
+    private final String superName;
+    private final String[] interfaces;
+
+    private final ByteArrayOutputStream poolBytes = new ByteArrayOutputStream();
+    private final DataOutputStream pool = new DataOutputStream(poolBytes);
+    private final Map<String, Integer> poolIndex = new HashMap<>();
+    private int poolCount = 1;
+
+    private final List<Code> methods = new ArrayList<>();
+    private final List<int[]> bootstrapMethods = new ArrayList<>();
+
+    BytecodeWriter(String name, String superName, String... interfaces) {
+        this.name = name;
+        this.superName = superName;
+        this.interfaces = interfaces;
+    }
+
+    String name() {
+        return name;
+    }
+
+    // Constant pool
+
+    private interface Entry {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    private int constant(String key, int slots, Entry entry) {
+        Integer index = poolIndex.get(key);
+        if (index != null) return index;
+
+        try {
+            entry.write(pool);
+        } catch (IOException error) {
+            throw new UncheckedIOException(error);
+        }
+        index = poolCount;
+        poolCount += slots;
+        if (poolCount > 0xffff) throw new TooLarge("Too many constants.");
+        poolIndex.put(key, index);
+        return index;
+    }
+
+    int utf8(String value) {
+        return constant("U" + value, 1, out -> {
+            out.writeByte(1);
+            out.writeUTF(value);
+        });
+    }
+
+    int classRef(String internalName) {
+        int nameIndex = utf8(internalName);
+        return constant("C" + internalName, 1, out -> {
+            out.writeByte(7);
+            out.writeShort(nameIndex);
+        });
+    }
+
+    int string(String value) {
+        int valueIndex = utf8(value);
+        return constant("S" + value, 1, out -> {
+            out.writeByte(8);
+            out.writeShort(valueIndex);
+        });
+    }
+
+    int integer(int value) {
+        return constant("I" + value, 1, out -> {
+            out.writeByte(3);
+            out.writeInt(value);
+        });
+    }
+
+    int longConstant(long value) {
+        return constant("J" + value, 2, out -> {
+            out.writeByte(5);
+            out.writeLong(value);
+        });
+    }
+
+    int doubleConstant(double value) {
+        return constant("D" + Double.doubleToRawLongBits(value), 2, out -> {
+            out.writeByte(6);
+            out.writeDouble(value);
+        });
+    }
+
+    private int nameAndType(String name, String descriptor) {
+        int nameIndex = utf8(name);
+        int descriptorIndex = utf8(descriptor);
+        return constant("N" + name + ":" + descriptor, 1, out -> {
+            out.writeByte(12);
+            out.writeShort(nameIndex);
+            out.writeShort(descriptorIndex);
+        });
+    }
+
+    private int member(int tag, String owner, String name, String descriptor) {
+        int ownerIndex = classRef(owner);
+        int typeIndex = nameAndType(name, descriptor);
+        return constant("M" + tag + owner + "." + name + ":" + descriptor, 1, out -> {
+            out.writeByte(tag);
+            out.writeShort(ownerIndex);
+            out.writeShort(typeIndex);
+        });
+    }
+
+    int fieldRef(String owner, String name, String descriptor) {
+        return member(9, owner, name, descriptor);
+    }
+
+    int methodRef(String owner, String name, String descriptor) {
+        return member(10, owner, name, descriptor);
+    }
+
+    int interfaceMethodRef(String owner, String name, String descriptor) {
+        return member(11, owner, name, descriptor);
+    }
+
+    // A REF_invokeStatic method handle, as used for bootstrap methods
+    int staticMethodHandle(String owner, String name, String descriptor) {
+        int methodIndex = methodRef(owner, name, descriptor);
+        return constant("H" + methodIndex, 1, out -> {
+            out.writeByte(15);
+            out.writeByte(6);
+            out.writeShort(methodIndex);
+        });
+    }
+
+    // Registers a bootstrap method with its static arguments, which are constant pool indexes
+    int bootstrapMethod(int handle, int... arguments) {
+        int[] entry = new int[arguments.length + 1];
+        entry[0] = handle;
+        System.arraycopy(arguments, 0, entry, 1, arguments.length);
+        for (int i = 0; i < bootstrapMethods.size(); i++) {
+            if (Arrays.equals(bootstrapMethods.get(i), entry)) return i;
+        }
+        bootstrapMethods.add(entry);
+        return bootstrapMethods.size() - 1;
+    }
+
+    private int invokeDynamic(int bootstrap, String name, String descriptor) {
+        int typeIndex = nameAndType(name, descriptor);
+        return constant("Y" + bootstrap + ":" + name + ":" + descriptor, 1, out -> {
+            out.writeByte(18);
+            out.writeShort(bootstrap);
+            out.writeShort(typeIndex);
+        });
+    }
+
+    // Methods
+
+    Code method(int access, String name, String descriptor) {
+        Code code = new Code(access, name, descriptor);
+        methods.add(code);
+        return code;
+    }
+
+    byte[] toByteArray() {
+        // attribute names have to be in the pool before it is written out
+        int codeName = utf8("Code");
+        int stackMapName = utf8("StackMapTable");
+        int bootstrapName = utf8("BootstrapMethods");
+        int thisIndex = classRef(name);
+        int superIndex = classRef(superName);
+        int[] interfaceIndexes = new int[interfaces.length];
+        for (int i = 0; i < interfaces.length; i++) {
+            interfaceIndexes[i] = classRef(interfaces[i]);
+        }
+        List<byte[]> methodBytes = new ArrayList<>();
+        for (Code method : methods) {
+            methodBytes.add(method.toByteArray(codeName, stackMapName));
+        }
+
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);
+            out.writeShort(52);
+            out.writeShort(poolCount);
+            pool.flush();
+            poolBytes.writeTo(out);
+
+            out.writeShort(ACC_FINAL | ACC_SUPER);
+            out.writeShort(thisIndex);
+            out.writeShort(superIndex);
+            out.writeShort(interfaceIndexes.length);
+            for (int index : interfaceIndexes) {
+                out.writeShort(index);
+            }
+
+            out.writeShort(0);
+            out.writeShort(methodBytes.size());
+            for (byte[] method : methodBytes) {
+                out.write(method);
+            }
+
+            if (bootstrapMethods.isEmpty()) {
+                out.writeShort(0);
+            } else {
+                int length = 2;
+                for (int[] entry : bootstrapMethods) {
+                    length += 2 + 2 * entry.length;
+                }
+                out.writeShort(1);
+                out.writeShort(bootstrapName);
+                out.writeInt(length);
+                out.writeShort(bootstrapMethods.size());
+                for (int[] entry : bootstrapMethods) {
+                    out.writeShort(entry[0]);
+                    out.writeShort(entry.length - 1);
+                    for (int i = 1; i < entry.length; i++) {
+                        out.writeShort(entry[i]);
+                    }
+                }
+            }
+            return bytes.toByteArray();
+        } catch (IOException error) {
+            throw new UncheckedIOException(error);
+        }
+    }
+
+    // A jump target. Its frame is the state of the locals and the stack where it is used.
+    static class Label {
+        private int position = -1;
+        private final List<Integer> jumps = new ArrayList<>();
+        private String[] locals;
+        private List<String> stack;
+    }
+
+    // The code of one method
+    class Code {
+        private final int access;
+        private final String name;
+        private final String descriptor;
+
+        private byte[] code = new byte[256];
+        private int length = 0;
+        private int maxStack = 0;
+
+        // descriptor of the value in each local slot in scope, null where there is none
+        private String[] locals = new String[16];
+        private int maxLocals = 0;
+        private List<String> stack = new ArrayList<>();
+        private int stackSize = 0;
+        // false after an unconditional jump, until a label someone jumps to is placed
+        private boolean reachable = true;
+
+        private final List<Label> labels = new ArrayList<>();
+
+        private Code(int access, String name, String descriptor) {
+            this.access = access;
+            this.name = name;
+            this.descriptor = descriptor;
+
+            if ((access & ACC_STATIC) == 0) declare("L" + BytecodeWriter.this.name + ";");
+            for (String parameter : parameterTypes(descriptor)) {
+                declare(parameter);
+            }
+        }
+
+        // Locals
+
+        // Allocates a slot for a new local. Slots are never reused, so a slot's type never changes.
+        int declare(String type) {
+            int slot = maxLocals;
+            maxLocals += size(type);
+            if (maxLocals > 0xffff) throw new TooLarge("Too many locals.");
+            if (maxLocals > locals.length) locals = Arrays.copyOf(locals, maxLocals * 2);
+            locals[slot] = type;
+            return slot;
+        }
+
+        // Where to roll back to when the current scope ends
+        int scope() {
+            return maxLocals;
+        }
+
+        void endScope(int scope) {
+            Arrays.fill(locals, scope, locals.length, null);
+        }
+
+        void load(String type, int slot) {
+            int opcode = type.equals("D") ? DLOAD : type.equals("I") ? ILOAD : type.equals("J") ? LLOAD : ALOAD;
+            wide(opcode, slot);
+            push(type);
+        }
+
+        void store(String type, int slot) {
+            int opcode = type.equals("D") ? DSTORE : type.equals("I") ? ISTORE : type.equals("J") ? LSTORE : ASTORE;
+            wide(opcode, slot);
+            pop(1);
+        }
+
+        private void wide(int opcode, int slot) {
+            if (slot < 256) {
+                emit(opcode);
+                emit(slot);
+            } else {
+                emit(0xc4);
+                emit(opcode);
+                emitShort(slot);
+            }
+        }
+
+        // Constants
+
+        void iconst(int value) {
+            if (value >= -1 && value <= 5) {
+                emit(ICONST_0 + value);
+            } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+                emit(BIPUSH);
+                emit(value);
+            } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+                emit(SIPUSH);
+                emitShort(value);
+            } else {
+                emit(LDC_W);
+                emitShort(integer(value));
+            }
+            push("I");
+        }
+
+        void dconst(double value) {
+            if (Double.doubleToRawLongBits(value) == 0L) {
+                emit(DCONST_0);
+            } else if (value == 1.0) {
+                emit(DCONST_1);
+            } else {
+                emit(LDC2_W);
+                emitShort(doubleConstant(value));
+            }
+            push("D");
+        }
+
+        void lconst(long value) {
+            if (value == 0L || value == 1L) {
+                emit(LCONST_0 + (int)value);
+            } else {
+                emit(LDC2_W);
+                emitShort(longConstant(value));
+            }
+            push("J");
+        }
+
+        void ldcString(String value) {
+            emit(LDC_W);
+            emitShort(string(value));
+            push("Ljava/lang/String;");
+        }
+
+        void aconstNull() {
+            emit(ACONST_NULL);
+            push("null");
+        }
+
+        // Instructions that pop a number of values and push at most one, given as a descriptor
+        void op(int opcode, int pops, String result) {
+            emit(opcode);
+            pop(pops);
+            if (result != null) push(result);
+            if (opcode == ATHROW || (opcode >= IRETURN && opcode <= RETURN)) reachable = false;
+        }
+
+        // Code after a return or a constant condition is unreachable, with no stack to go by
+        void dup() {
+            if (!reachable) {
+                emit(DUP);
+                return;
+            }
+            String top = stack.get(stack.size() - 1);
+            emit(size(top) == 2 ? DUP2 : DUP);
+            push(top);
+        }
+
+        void swap() {
+            emit(SWAP);
+            if (!reachable) return;
+            String top = stack.remove(stack.size() - 1);
+            stack.add(stack.size() - 1, top);
+        }
+
+        void pop() {
+            if (!reachable) {
+                emit(POP);
+                return;
+            }
+            String top = stack.get(stack.size() - 1);
+            emit(size(top) == 2 ? POP2 : POP);
+            pop(1);
+        }
+
+        // Members
+
+        void getstatic(String owner, String name, String descriptor) {
+            emit(GETSTATIC);
+            emitShort(fieldRef(owner, name, descriptor));
+            push(descriptor);
+        }
+
+        void invokestatic(String owner, String name, String descriptor) {
+            invoke(INVOKESTATIC, methodRef(owner, name, descriptor), descriptor, false);
+        }
+
+        void invokevirtual(String owner, String name, String descriptor) {
+            invoke(INVOKEVIRTUAL, methodRef(owner, name, descriptor), descriptor, true);
+        }
+
+        void invokespecial(String owner, String name, String descriptor) {
+            invoke(INVOKESPECIAL, methodRef(owner, name, descriptor), descriptor, true);
+        }
+
+        void invokeinterface(String owner, String name, String descriptor) {
+            int index = interfaceMethodRef(owner, name, descriptor);
+            int slots = 1;
+            for (String parameter : parameterTypes(descriptor)) {
+                slots += size(parameter);
+            }
+            emit(INVOKEINTERFACE);
+            emitShort(index);
+            emit(slots);
+            emit(0);
+            pop(parameterTypes(descriptor).size() + 1);
+            pushReturn(descriptor);
+        }
+
+        void invokedynamic(int bootstrap, String name, String descriptor) {
+            emit(INVOKEDYNAMIC);
+            emitShort(invokeDynamic(bootstrap, name, descriptor));
+            emitShort(0);
+            pop(parameterTypes(descriptor).size());
+            pushReturn(descriptor);
+        }
+
+        private void invoke(int opcode, int index, String descriptor, boolean hasReceiver) {
+            emit(opcode);
+            emitShort(index);
+            pop(parameterTypes(descriptor).size() + (hasReceiver ? 1 : 0));
+            pushReturn(descriptor);
+        }
+
+        private void pushReturn(String descriptor) {
+            String result = descriptor.substring(descriptor.indexOf(')') + 1);
+            if (!result.equals("V")) push(result);
+        }
+
+        void checkcast(String internalName) {
+            emit(CHECKCAST);
+            emitShort(classRef(internalName));
+            pop(1);
+            push(internalName.startsWith("[") ? internalName : "L" + internalName + ";");
+        }
+
+        void anewarray(String internalName) {
+            emit(ANEWARRAY);
+            emitShort(classRef(internalName));
+            pop(1);
+            push("[L" + internalName + ";");
+        }
+
+        // Control flow
+
+        Label label() {
+            Label label = new Label();
+            labels.add(label);
+            return label;
+        }
+
+        // Emits a conditional or unconditional jump, popping the values the opcode compares
+        void jump(int opcode, Label target) {
+            int pops = opcode == GOTO ? 0 :
+                (opcode >= IF_ICMPEQ && opcode <= IF_ACMPNE) ? 2 : 1;
+            if (!reachable) return;
+
+            int position = length;
+            emit(opcode);
+            emitShort(0);
+            pop(pops);
+            target.jumps.add(position);
+            merge(target);
+
+            if (opcode == GOTO) reachable = false;
+        }
+
+        // Places a label at the current position
+        void place(Label label) {
+            if (reachable) {
+                merge(label);
+                // values that arrive with different types are only known to be objects from here
+                stack = new ArrayList<>(label.stack);
+            } else if (!label.jumps.isEmpty()) {
+                // code after an unconditional jump starts from the state at the jumps
+                locals = Arrays.copyOf(label.locals, Math.max(label.locals.length, locals.length));
+                stack = new ArrayList<>(label.stack);
+                stackSize = 0;
+                for (String type : stack) {
+                    stackSize += size(type);
+                }
+                reachable = true;
+            }
+            label.position = length;
+        }
+
+        boolean reachable() {
+            return reachable;
+        }
+
+        // Combines the current state into a label's frame; locals that differ are dropped
+        private void merge(Label label) {
+            if (label.locals == null) {
+                label.locals = Arrays.copyOf(locals, maxLocals);
+                label.stack = new ArrayList<>(stack);
+                return;
+            }
+
+            for (int slot = 0; slot < label.locals.length; slot++) {
+                String type = slot < locals.length ? locals[slot] : null;
+                if (label.locals[slot] != null && !label.locals[slot].equals(type)) {
+                    label.locals[slot] = null;
+                }
+            }
+            for (int i = 0; i < label.stack.size(); i++) {
+                if (!label.stack.get(i).equals(stack.get(i))) label.stack.set(i, OBJECT);
+            }
+        }
+
+        // Encoding
+
+        private void emit(int value) {
+            if (!reachable) return;
+            if (length == code.length) code = Arrays.copyOf(code, length * 2);
+            code[length++] = (byte)value;
+        }
+
+        private void emitShort(int value) {
+            emit(value >> 8);
+            emit(value);
+        }
+
+        private void push(String type) {
+            if (!reachable) return;
+            stack.add(type);
+            stackSize += size(type);
+            maxStack = Math.max(maxStack, stackSize);
+        }
+
+        private void pop(int count) {
+            if (!reachable) return;
+            for (int i = 0; i < count; i++) {
+                stackSize -= size(stack.remove(stack.size() - 1));
+            }
+        }
+
+        private byte[] toByteArray(int codeName, int stackMapName) {
+            for (Label label : labels) {
+                for (int jump : label.jumps) {
+                    int offset = label.position - jump;
+                    if (offset < Short.MIN_VALUE || offset > Short.MAX_VALUE) {
+                        throw new TooLarge("Jump too far in " + name + ".");
+                    }
+                    code[jump + 1] = (byte)(offset >> 8);
+                    code[jump + 2] = (byte)offset;
+                }
+            }
+            if (length > 0xffff) throw new TooLarge("Method " + name + " is too large.");
+
+            // every jump target needs a frame; labels placed at the same position share one
+            Map<Integer, Label> frames = new TreeMap<>();
+            for (Label label : labels) {
+                if (label.jumps.isEmpty()) continue;
+                Label other = frames.putIfAbsent(label.position, label);
+                if (other != null) {
+                    for (int slot = 0; slot < other.locals.length; slot++) {
+                        if (slot >= label.locals.length ||
+                                !Objects.equals(other.locals[slot], label.locals[slot])) {
+                            other.locals[slot] = null;
+                        }
+                    }
+                }
+            }
+
+            try {
+                ByteArrayOutputStream frameBytes = new ByteArrayOutputStream();
+                DataOutputStream frameOut = new DataOutputStream(frameBytes);
+                int previous = -1;
+                for (Map.Entry<Integer, Label> frame : frames.entrySet()) {
+                    frameOut.writeByte(255);
+                    frameOut.writeShort(frame.getKey() - previous - 1);
+                    writeLocals(frameOut, frame.getValue().locals);
+                    frameOut.writeShort(frame.getValue().stack.size());
+                    for (String type : frame.getValue().stack) {
+                        writeType(frameOut, type);
+                    }
+                    previous = frame.getKey();
+                }
+
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                DataOutputStream out = new DataOutputStream(bytes);
+                out.writeShort(access);
+                out.writeShort(utf8(name));
+                out.writeShort(utf8(descriptor));
+                out.writeShort(1);
+
+                out.writeShort(codeName);
+                int attributes = frames.isEmpty() ? 0 : 6 + 2 + frameBytes.size();
+                out.writeInt(2 + 2 + 4 + length + 2 + 2 + attributes);
+                out.writeShort(maxStack);
+                out.writeShort(maxLocals);
+                out.writeInt(length);
+                out.write(code, 0, length);
+                out.writeShort(0);
+                if (frames.isEmpty()) {
+                    out.writeShort(0);
+                } else {
+                    out.writeShort(1);
+                    out.writeShort(stackMapName);
+                    out.writeInt(2 + frameBytes.size());
+                    out.writeShort(frames.size());
+                    frameBytes.writeTo(out);
+                }
+                return bytes.toByteArray();
+            } catch (IOException error) {
+                throw new UncheckedIOException(error);
+            }
+        }
+
+        // Locals are listed in slot order; a two-slot type covers the slot after it
+        private void writeLocals(DataOutputStream out, String[] frameLocals) throws IOException {
+            int last = frameLocals.length;
+            while (last > 0 && frameLocals[last - 1] == null) last--;
+
+            List<String> entries = new ArrayList<>();
+            for (int slot = 0; slot < last; slot++) {
+                String type = frameLocals[slot];
+                entries.add(type);
+                if (type != null && size(type) == 2) slot++;
+            }
+
+            out.writeShort(entries.size());
+            for (String type : entries) {
+                writeType(out, type);
+            }
+        }
+
+        private void writeType(DataOutputStream out, String type) throws IOException {
+            if (type == null) {
+                out.writeByte(0);
+            } else if (type.equals("I") || type.equals("Z")) {
+                out.writeByte(1);
+            } else if (type.equals("D")) {
+                out.writeByte(3);
+            } else if (type.equals("J")) {
+                out.writeByte(4);
+            } else if (type.equals("null")) {
+                out.writeByte(5);
+            } else {
+                out.writeByte(7);
+                out.writeShort(classRef(type.startsWith("[") ? type : type.substring(1, type.length() - 1)));
+            }
+        }
+    }
+
+    static int size(String type) {
+        return type.equals("D") || type.equals("J") ? 2 : 1;
+    }
+
+    static List<String> parameterTypes(String descriptor) {
+        List<String> types = new ArrayList<>();
+        int i = 1;
+        while (descriptor.charAt(i) != ')') {
+            int start = i;
+            while (descriptor.charAt(i) == '[') i++;
+            if (descriptor.charAt(i) == 'L') i = descriptor.indexOf(';', i);
+            i++;
+            types.add(descriptor.substring(start, i));
+        }
+        return types;
+    }
+}
@@ -0,0 +1,61 @@
+package utopiascript;
+
+import java.util.Arrays;
+import java.util.function.IntFunction;
+import java.util.function.IntUnaryOperator;
+
+// The script functions an interpreter is running, each with the line it was called from, so a
+// runtime error can report the calls it passed through.
+// The arrays only grow, so tracking a call is two stores and no allocation. Calls set site to the
+// line of the call before calling, and the function pushes itself with it.
+final class CallStack {
+    // frames shown at each end of a trace, with the ones between elided
+    private static final int SHOWN = 10;
+
+    // the line of the call being made, set by whoever makes it
+    int site = 0;
+
+    // the names of the functions, since flat code has no declarations
+    private String[] functions = new String[64];
+    private int[] sites = new int[64];
+    private int depth = 0;
+
+    void push(String function) {
+        if (depth == functions.length) {
+            functions = Arrays.copyOf(functions, depth * 2);
+            sites = Arrays.copyOf(sites, depth * 2);
+        }
+        functions[depth] = function;
+        sites[depth++] = site;
+    }
+
+    void pop() {
+        functions[--depth] = null;
+    }
+
+    // The trace of an error at a line of the innermost function, or null outside any function
+    String trace(int line) {
+        if (depth == 0) return null;
+        // frame 0 is the innermost function and frame depth the top level, each at the line it is
+        // running, which for all but the innermost is where it called the frame inside it
+        return format(depth + 1,
+            frame -> frame == depth ? "<script>" : functions[depth - 1 - frame],
+            frame -> frame == 0 ? line : sites[depth - frame]);
+    }
+
+    // Lists count frames from the innermost out, eliding the middle of deep stacks
+    static String format(int count, IntFunction<String> names, IntUnaryOperator lines) {
+        StringBuilder trace = new StringBuilder();
+        for (int frame = 0; frame < count; frame++) {
+            if (count > 2 * SHOWN && frame == SHOWN) {
+                int skipped = count - 2 * SHOWN;
+                trace.append("    ... ").append(skipped).append(" more\n");
+                frame += skipped - 1;
+                continue;
+            }
+            trace.append("    at ").append(names.apply(frame))
+                .append(" [line ").append(lines.applyAsInt(frame)).append("]\n");
+        }
+        return trace.toString();
+    }
+}
@@ -0,0 +1,146 @@
+package utopiascript;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+// Runs scripts for clients connecting over a Unix domain socket, for --serve.
+// The process stays up, so runs after the first skip starting a JVM and find the interpreter's
+// classes loaded, HotSpot's code warm, and sources they share with earlier runs parsed and
+// compiled. Each run is isolated: it gets globals and modules of its own, and no input.
+// A client sends the absolute path of a script; the daemon reads and runs it and answers with
+// the status the command line would have exited with, then what it printed, then its errors.
+final class Daemon {
+    // parses kept for scripts run before, which is far more than a project has
+    private static final int CAPACITY = 1024;
+    // how long a client has to send its request, since one that never does holds a worker
+    private static final long READ_TIMEOUT_SECONDS = 10;
+
+    private Daemon() {
+    }
+
+    static int serve(Interpreter settings, boolean flat, Path socket, int workers, PrintStream err)
+            throws IOException {
+        Runner runner = new Runner(settings, flat, CAPACITY, true);
+        ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        try {
+            server.bind(UnixDomainSocketAddress.of(socket));
+        } catch (IOException error) {
+            if (!stale(socket)) {
+                err.println("Can't listen on '" + socket + "': " + error.getMessage());
+                return 74;
+            }
+            Files.delete(socket);
+            server.bind(UnixDomainSocketAddress.of(socket));
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                Files.deleteIfExists(socket);
+            } catch (IOException error) {
+                // the next daemon finds it stale and replaces it
+            }
+        }));
+
+        ExecutorService pool = Executors.newFixedThreadPool(workers, task -> {
+            Thread thread = new Thread(task, "utopiascript-daemon");
+            thread.setDaemon(true);
+            return thread;
+        });
+        // a Unix domain socket has no read timeout, so a deadline closes the channel instead
+        ScheduledExecutorService deadlines = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "utopiascript-deadlines");
+            thread.setDaemon(true);
+            return thread;
+        });
+        err.println("Serving scripts on " + socket);
+        for (;;) {
+            SocketChannel client = server.accept();
+            pool.execute(() -> answer(runner, client, deadlines, err));
+        }
+    }
+
+    // Whether a socket file is left over from a daemon that has gone, rather than in use
+    private static boolean stale(Path socket) {
+        if (!Files.exists(socket)) return false;
+        try {
+            SocketChannel.open(UnixDomainSocketAddress.of(socket)).close();
+            return false;
+        } catch (IOException error) {
+            return true;
+        }
+    }
+
+    private static void answer(Runner runner, SocketChannel client, ScheduledExecutorService deadlines,
+            PrintStream err) {
+        try (client) {
+            DataInputStream in = new DataInputStream(Channels.newInputStream(client));
+            DataOutputStream out = new DataOutputStream(Channels.newOutputStream(client));
+
+            ScheduledFuture<?> deadline = deadlines.schedule(() -> close(client),
+                READ_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            String script;
+            try {
+                script = in.readUTF();
+            } finally {
+                deadline.cancel(false);
+            }
+            // the deadline may have passed just as the request came in
+            if (!client.isOpen()) throw new AsynchronousCloseException();
+
+            Runner.Result result = run(runner, Paths.get(script));
+            out.writeInt(result.status);
+            Client.writeFrame(out, result.output.getBytes(StandardCharsets.UTF_8));
+            Client.writeFrame(out, result.errors.getBytes(StandardCharsets.UTF_8));
+            out.flush();
+        } catch (EOFException error) {
+            // another daemon checking whether this one is up, which sends nothing
+        } catch (AsynchronousCloseException error) {
+            err.println("Closed a client that sent no script within " + READ_TIMEOUT_SECONDS + " s");
+        } catch (IOException error) {
+            // the client went away, which only costs it the answer
+            err.println("Lost a client: " + error.getMessage());
+        }
+    }
+
+    private static void close(SocketChannel client) {
+        try {
+            client.close();
+        } catch (IOException error) {
+            // closing is all that was wanted
+        }
+    }
+
+    private static Runner.Result run(Runner runner, Path script) {
+        byte[] source;
+        try {
+            source = Files.readAllBytes(script);
+        } catch (IOException error) {
+            return new Runner.Result("", "Can't read script '" + script + "'.\n", 74);
+        }
+
+        try {
+            // parsed on this thread, since waiting here on the pool could take every worker
+            return runner.run(runner.parse(source, Runnable::run).join(), script.getParent());
+        } catch (RuntimeException | StackOverflowError error) {
+            // a bug in the interpreter fails the run rather than the daemon
+            return new Runner.Result("", "Internal error: " + error + "\n", 70);
+        }
+    }
+}
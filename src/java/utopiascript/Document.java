@@ -0,0 +1,261 @@
+package utopiascript;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+
+// A source text that is edited in place, as in the REPL or an editor, and kept parsed.
+// The text is split into its top-level declarations. An edit rescans and reparses from the
+// declaration before the edited range, one declaration at a time, until a declaration ends
+// where one ended before the edit. The declarations after that point are kept as they were,
+// with their positions shifted, so an edit only costs as much as the declarations it touches.
+class Document {
+    // A scanner or parser error, at a position in the current text
+    static final class Diagnostic {
+        final int line;
+        final int offset;
+        final int length;
+        final String where;
+        final String message;
+
+        Diagnostic(int line, int offset, int length, String where, String message) {
+            this.line = line;
+            this.offset = offset;
+            this.length = length;
+            this.where = where;
+            this.message = message;
+        }
+
+        @Override
+        public String toString() {
+            return "[line " + line + "] Error" + where + ": " + message;
+        }
+    }
+
+    // A top-level declaration and the text it was parsed from, which runs from the end of the
+    // previous declaration, so it includes the whitespace and comments before it.
+    // The statement and diagnostics keep the positions they were parsed at; lineShift and
+    // offsetShift map those to the current text.
+    static final class Declaration {
+        int start;
+        int end;
+        // the lines the declaration's text starts and ends on
+        int line;
+        int endLine;
+        int lineShift = 0;
+        int offsetShift = 0;
+        // null if the declaration had an error
+        Stmt stmt;
+        final List<Diagnostic> diagnostics = new ArrayList<>();
+
+        Declaration(int start, int line) {
+            this.start = start;
+            this.line = line;
+        }
+
+        int line(Token token) {
+            return token.line + lineShift;
+        }
+
+        int offset(Token token) {
+            return token.offset + offsetShift;
+        }
+
+        private void shift(int offsets, int lines) {
+            start += offsets;
+            end += offsets;
+            offsetShift += offsets;
+            line += lines;
+            endLine += lines;
+            lineShift += lines;
+        }
+    }
+
+    // Collects parse errors into the declaration being parsed. The scanner runs ahead of the
+    // parser by a token, so its errors are kept aside and handed out by offset instead.
+    private static final class Collector implements ErrorReporter {
+        List<Diagnostic> diagnostics;
+        final List<Diagnostic> scanned = new ArrayList<>();
+
+        @Override
+        public void error(int line, int offset, String message) {
+            scanned.add(new Diagnostic(line, offset, 1, "", message));
+        }
+
+        @Override
+        public void error(Token token, String message) {
+            String where = token.type == TokenType.EOF ? " at end" : " at '" + token.lexeme + "'";
+            diagnostics.add(new Diagnostic(token.line, token.offset, token.lexeme.length(), where, message));
+        }
+    }
+
+    private String text = "";
+    private List<Declaration> declarations = new ArrayList<>();
+    // how many declarations the last edit parsed
+    private int reparsed = 0;
+
+    Document(String text) {
+        edit(0, 0, text);
+    }
+
+    String text() {
+        return text;
+    }
+
+    List<Declaration> declarations() {
+        return Collections.unmodifiableList(declarations);
+    }
+
+    int reparsed() {
+        return reparsed;
+    }
+
+    // The statements of the declarations that parsed, in order
+    List<Stmt> statements() {
+        List<Stmt> statements = new ArrayList<>();
+        for (Declaration declaration : declarations) {
+            if (declaration.stmt != null) statements.add(declaration.stmt);
+        }
+        return statements;
+    }
+
+    // Every error in the text, with positions in the current text
+    List<Diagnostic> diagnostics() {
+        List<Diagnostic> diagnostics = new ArrayList<>();
+        for (Declaration declaration : declarations) {
+            for (Diagnostic diagnostic : declaration.diagnostics) {
+                diagnostics.add(new Diagnostic(diagnostic.line + declaration.lineShift,
+                    diagnostic.offset + declaration.offsetShift, diagnostic.length,
+                    diagnostic.where, diagnostic.message));
+            }
+        }
+        return diagnostics;
+    }
+
+    // The declaration whose text holds an offset, where an offset at the end of a declaration
+    // counts as in it. Text after the last declaration counts as in that one.
+    Declaration declarationAt(int offset) {
+        if (declarations.isEmpty()) return null;
+
+        int low = 0;
+        int high = declarations.size() - 1;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (declarations.get(middle).end < offset) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return declarations.get(low);
+    }
+
+    // Whether the text only has errors because it stops too early, like an unclosed block
+    boolean incomplete() {
+        List<Diagnostic> diagnostics = diagnostics();
+        if (diagnostics.isEmpty()) return false;
+
+        for (Diagnostic diagnostic : diagnostics) {
+            if (diagnostic.offset < text.length()) return false;
+        }
+        return true;
+    }
+
+    // Replaces 'length' characters at 'offset' with 'replacement'
+    void edit(int offset, int length, String replacement) {
+        if (offset < 0 || length < 0 || offset + length > text.length()) {
+            throw new IndexOutOfBoundsException("Edit outside the document.");
+        }
+        text = text.substring(0, offset) + replacement + text.substring(offset + length);
+        int delta = replacement.length() - length;
+        int editEnd = offset + replacement.length();
+
+        // Start a declaration early: how the one before the edit ends can depend on the tokens
+        // after it, like an 'alie' after an if statement or where error recovery stops.
+        int first = 0;
+        while (first < declarations.size() && declarations.get(first).end < offset) first++;
+        first = Math.max(0, first - 1);
+
+        List<Declaration> previous = declarations;
+        List<Declaration> result = new ArrayList<>(previous.subList(0, Math.min(first, previous.size())));
+        int start = first < previous.size() ? previous.get(first).start : 0;
+        int line = first < previous.size() ? previous.get(first).line : 1;
+
+        Collector collector = new Collector();
+        Parser parser = new Parser(new Scanner(text, start, line, collector).lazyTokens(), collector);
+        reparsed = 0;
+
+        while (!parser.isAtEnd()) {
+            Declaration declaration = new Declaration(start, line);
+            collector.diagnostics = declaration.diagnostics;
+            declaration.stmt = parser.nextDeclaration();
+
+            Token last = parser.previous();
+            declaration.end = last.offset + last.lexeme.length();
+            declaration.endLine = last.line;
+            claim(declaration, collector.scanned);
+            result.add(declaration);
+            reparsed++;
+            start = declaration.end;
+            line = declaration.endLine;
+
+            // past the edit, the old declarations line up again once one ends where an old one did
+            if (declaration.end >= editEnd) {
+                int same = endingAt(previous, first, declaration.end - delta);
+                if (same >= 0) {
+                    // the kept declarations already have the errors from scanning past this one
+                    collector.scanned.clear();
+                    int lines = declaration.endLine - previous.get(same).endLine;
+                    for (Declaration kept : previous.subList(same + 1, previous.size())) {
+                        kept.shift(delta, lines);
+                        result.add(kept);
+                    }
+                    break;
+                }
+            }
+        }
+
+        // errors after the last declaration get a declaration of their own
+        if (!collector.scanned.isEmpty()) {
+            Declaration rest = new Declaration(start, line);
+            rest.end = text.length();
+            rest.endLine = line + (int)text.substring(start).chars().filter(c -> c == '\n').count();
+            rest.diagnostics.addAll(collector.scanned);
+            result.add(rest);
+        }
+
+        declarations = result;
+    }
+
+    // Moves the scanner errors inside a declaration's text into it, in order of offset
+    private static void claim(Declaration declaration, List<Diagnostic> scanned) {
+        Iterator<Diagnostic> iterator = scanned.iterator();
+        while (iterator.hasNext()) {
+            Diagnostic diagnostic = iterator.next();
+            if (diagnostic.offset >= declaration.end) continue;
+            declaration.diagnostics.add(diagnostic);
+            iterator.remove();
+        }
+        declaration.diagnostics.sort(Comparator.comparingInt(diagnostic -> diagnostic.offset));
+    }
+
+    // Finds the declaration from 'from' on that ends at an offset, by binary search
+    private static int endingAt(List<Declaration> declarations, int from, int end) {
+        int low = from;
+        int high = declarations.size() - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int middleEnd = declarations.get(middle).end;
+            if (middleEnd < end) {
+                low = middle + 1;
+            } else if (middleEnd > end) {
+                high = middle - 1;
+            } else {
+                return middle;
+            }
+        }
+        return -1;
+    }
+}
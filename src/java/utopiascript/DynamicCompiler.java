@@ -0,0 +1,378 @@
+package utopiascript;
+
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static utopiascript.BytecodeWriter.*;
+
+// Translates a function into a class whose static 'run' method keeps every value as an Object,
+// like the interpreter does. Locals live in JVM locals, while operators, calls and globals are
+// invokedynamic instructions linked by Bootstraps, so the dynamic semantics are resolved at
+// runtime per site and HotSpot can inline through them. Everything but nested function
+// declarations is supported.
+class DynamicCompiler implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+    private static final String INTERPRETER = "Lutopiascript/Interpreter;";
+    private static final String BOOTSTRAPS = "utopiascript/Bootstraps";
+    private static final String BOOTSTRAP_PREFIX =
+        "(Ljava/lang/invoke/MethodHandles$Lookup;Ljava/lang/String;Ljava/lang/invoke/MethodType;";
+
+    // Thrown when the function uses something the compiler doesn't handle
+    private static class Unsupported extends RuntimeException {
+        Unsupported() {
+            super(null, null, false, false);
+        }
+    }
+
+    private final Stmt.Function function;
+    private final BytecodeWriter writer;
+    private BytecodeWriter.Code code;
+    private final List<Map<Symbol, Integer>> scopes = new ArrayList<>();
+
+    private DynamicCompiler(Stmt.Function function) {
+        this.function = function;
+        this.writer = new BytecodeWriter("utopiascript/Compiled_" + function.name.lexeme, "java/lang/Object");
+    }
+
+    // run takes the interpreter followed by one Object per parameter
+    static MethodType runType(int arity) {
+        MethodType type = MethodType.methodType(Object.class, Interpreter.class);
+        for (int i = 0; i < arity; i++) {
+            type = type.appendParameterTypes(Object.class);
+        }
+        return type;
+    }
+
+    // Returns the class file, or null if the function can't be compiled
+    static byte[] compile(Stmt.Function function) {
+        try {
+            return new DynamicCompiler(function).compile();
+        } catch (Unsupported | BytecodeWriter.TooLarge error) {
+            return null;
+        }
+    }
+
+    private byte[] compile() {
+        code = writer.method(ACC_PUBLIC | ACC_STATIC, "run",
+            runType(function.params.size()).toMethodDescriptorString());
+        beginScope();
+        for (int i = 0; i < function.params.size(); i++) {
+            // the interpreter is in slot 0 and the parameters follow it
+            scopes.get(0).put(function.params.get(i).symbol, i + 1);
+        }
+        for (Stmt statement : function.body) {
+            compile(statement);
+        }
+        if (code.reachable()) {
+            code.aconstNull();
+            code.op(ARETURN, 1, null);
+        }
+
+        return writer.toByteArray();
+    }
+
+    private void compile(Stmt stmt) {
+        stmt.accept(this);
+    }
+
+    // Emits code leaving the value on the stack
+    private void compile(Expr expr) {
+        expr.accept(this);
+    }
+
+    private void beginScope() {
+        scopes.add(new HashMap<>());
+    }
+
+    private void endScope() {
+        scopes.remove(scopes.size() - 1);
+    }
+
+    // Returns the slot of a local, or -1 for a global
+    private int resolve(Token name) {
+        for (int i = scopes.size() - 1; i >= 0; i--) {
+            Integer slot = scopes.get(i).get(name.symbol);
+            if (slot != null) return slot;
+        }
+        return -1;
+    }
+
+    private void interpreter() {
+        code.load(INTERPRETER, 0);
+    }
+
+    // Emits an invokedynamic bootstrapped by the named method in Bootstraps, passing the line
+    // and optionally a lexeme along as static arguments
+    private void invokedynamic(String bootstrap, String name, String descriptor, String lexeme, int line) {
+        int handle;
+        int index;
+        if (lexeme == null) {
+            handle = writer.staticMethodHandle(BOOTSTRAPS, bootstrap,
+                BOOTSTRAP_PREFIX + "I)Ljava/lang/invoke/CallSite;");
+            index = writer.bootstrapMethod(handle, writer.integer(line));
+        } else {
+            handle = writer.staticMethodHandle(BOOTSTRAPS, bootstrap,
+                BOOTSTRAP_PREFIX + "Ljava/lang/String;I)Ljava/lang/invoke/CallSite;");
+            index = writer.bootstrapMethod(handle, writer.string(lexeme), writer.integer(line));
+        }
+        code.invokedynamic(index, name, descriptor);
+    }
+
+    private void truthy() {
+        code.invokestatic("utopiascript/Interpreter", "isTruthy", "(Ljava/lang/Object;)Z");
+    }
+
+    private void bool(boolean value) {
+        code.getstatic("java/lang/Boolean", value ? "TRUE" : "FALSE", "Ljava/lang/Boolean;");
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        compile(stmt.expression);
+        code.pop();
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+        interpreter();
+        compile(stmt.expression);
+        code.invokestatic(BOOTSTRAPS, "print", "(" + INTERPRETER + "Ljava/lang/Object;)V");
+        return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+        if (stmt.initializer != null) {
+            compile(stmt.initializer);
+        } else {
+            code.aconstNull();
+        }
+
+        int slot = code.declare(OBJECT);
+        code.store(OBJECT, slot);
+        scopes.get(scopes.size() - 1).put(stmt.name.symbol, slot);
+        return null;
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        int scope = code.scope();
+        beginScope();
+        for (Stmt statement : stmt.statements) {
+            compile(statement);
+        }
+        endScope();
+        code.endScope(scope);
+        return null;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        BytecodeWriter.Label elseBranch = code.label();
+        compile(stmt.condition);
+        truthy();
+        code.jump(IFEQ, elseBranch);
+        compile(stmt.thenBranch);
+
+        if (stmt.elseBranch == null) {
+            code.place(elseBranch);
+            return null;
+        }
+
+        BytecodeWriter.Label end = code.label();
+        code.jump(GOTO, end);
+        code.place(elseBranch);
+        compile(stmt.elseBranch);
+        code.place(end);
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        BytecodeWriter.Label start = code.label();
+        BytecodeWriter.Label end = code.label();
+        code.place(start);
+        compile(stmt.condition);
+        truthy();
+        code.jump(IFEQ, end);
+        compile(stmt.body);
+        code.jump(GOTO, start);
+        code.place(end);
+        return null;
+    }
+
+    // a nested function would need an environment of its own
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+        throw new Unsupported();
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+        if (stmt.value != null) {
+            compile(stmt.value);
+        } else {
+            code.aconstNull();
+        }
+        code.op(ARETURN, 1, null);
+        return null;
+    }
+
+    // imports define locals by name, which can't be given slots ahead of time
+    @Override
+    public Void visitImportStmt(Stmt.Import stmt) {
+        throw new Unsupported();
+    }
+
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr) {
+        int slot = resolve(expr.name);
+        if (slot < 0) {
+            interpreter();
+            compile(expr.value);
+            invokedynamic("assignGlobal", expr.name.lexeme,
+                "(" + INTERPRETER + OBJECT + ")" + OBJECT, null, expr.name.line);
+            return null;
+        }
+
+        compile(expr.value);
+        code.dup();
+        code.store(OBJECT, slot);
+        return null;
+    }
+
+    // The right operand is evaluated first, as in the interpreter
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+        compile(expr.right);
+        compile(expr.left);
+        code.swap();
+        invokedynamic("binary", expr.operator.type.name(), "(" + OBJECT + OBJECT + ")" + OBJECT,
+            expr.operator.lexeme, expr.operator.line);
+        return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+        compile(expr.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr) {
+        Object value = expr.value;
+        if (value == null) {
+            code.aconstNull();
+        } else if (value instanceof Double) {
+            code.dconst((double)value);
+            code.invokestatic("java/lang/Double", "valueOf", "(D)Ljava/lang/Double;");
+        } else if (value instanceof Long) {
+            code.lconst((long)value);
+            code.invokestatic("java/lang/Long", "valueOf", "(J)Ljava/lang/Long;");
+        } else if (value instanceof Boolean) {
+            bool((boolean)value);
+        } else if (value instanceof String) {
+            code.ldcString((String)value);
+        } else if (value == UtopiaScriptIterator.ITERATE) {
+            iteration("ITERATE");
+        } else if (value == UtopiaScriptIterator.HAS_NEXT) {
+            iteration("HAS_NEXT");
+        } else if (value == UtopiaScriptIterator.NEXT) {
+            iteration("NEXT");
+        } else {
+            throw new Unsupported();
+        }
+        return null;
+    }
+
+    // the natives a for-each loop is desugared into
+    private void iteration(String name) {
+        code.getstatic("utopiascript/UtopiaScriptIterator", name, "Lutopiascript/UtopiaScriptCallable;");
+    }
+
+    // au returns vera rather than its left operand, kaj returns its left operand when it is false
+    @Override
+    public Void visitLogicalExpr(Expr.Logical expr) {
+        BytecodeWriter.Label end = code.label();
+        compile(expr.left);
+
+        if (expr.operator.type == TokenType.AU) {
+            BytecodeWriter.Label right = code.label();
+            truthy();
+            code.jump(IFEQ, right);
+            bool(true);
+            code.jump(GOTO, end);
+            code.place(right);
+        } else {
+            code.dup();
+            truthy();
+            code.jump(IFEQ, end);
+            code.pop();
+        }
+
+        compile(expr.right);
+        code.place(end);
+        return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+        compile(expr.right);
+
+        if (expr.operator.type == TokenType.MINUS) {
+            invokedynamic("negate", "negate", "(" + OBJECT + ")" + OBJECT,
+                expr.operator.lexeme, expr.operator.line);
+            return null;
+        }
+
+        BytecodeWriter.Label isTrue = code.label();
+        BytecodeWriter.Label end = code.label();
+        truthy();
+        code.jump(IFNE, isTrue);
+        bool(true);
+        code.jump(GOTO, end);
+        code.place(isTrue);
+        bool(false);
+        code.place(end);
+        return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr) {
+        int slot = resolve(expr.name);
+        if (slot < 0) {
+            interpreter();
+            invokedynamic("global", expr.name.lexeme, "(" + INTERPRETER + ")" + OBJECT, null, expr.name.line);
+            return null;
+        }
+
+        BytecodeWriter.Label initialized = code.label();
+        code.load(OBJECT, slot);
+        code.dup();
+        code.jump(IFNONNULL, initialized);
+        code.ldcString(expr.name.lexeme);
+        code.iconst(expr.name.line);
+        code.invokestatic(BOOTSTRAPS, "uninitialized", "(Ljava/lang/String;I)Lutopiascript/RuntimeError;");
+        code.op(ATHROW, 1, null);
+        code.place(initialized);
+        return null;
+    }
+
+    @Override
+    public Void visitCallExpr(Expr.Call expr) {
+        interpreter();
+        compile(expr.callee);
+        StringBuilder descriptor = new StringBuilder("(" + INTERPRETER + OBJECT);
+        for (Expr argument : expr.arguments) {
+            compile(argument);
+            descriptor.append(OBJECT);
+        }
+        descriptor.append(")").append(OBJECT);
+
+        invokedynamic("call", "call", descriptor.toString(), null, expr.paren.line);
+        return null;
+    }
+}
@@ -1,28 +1,106 @@
 package utopiascript;
 
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 
+// A scope's variables are kept in parallel arrays searched by identity, since symbols are
+// interned and most scopes hold a handful of names. A scope that grows past INDEXED names gets a
+// map from name to slot as well, so large scopes don't degrade to linear search.
 public class Environment {
-    final Environment enclosing;
-    private final Map<String, Object> values = new HashMap<String, Object>();
+    private static final int INDEXED = 8;
+    private static final Symbol[] NO_NAMES = {};
+    private static final Object[] NO_VALUES = {};
+
+    // set again when a pooled scope is reused
+    Environment enclosing;
+    private Symbol[] names = NO_NAMES;
+    private Object[] values = NO_VALUES;
+    private int count = 0;
+    private Map<Symbol, Integer> index = null;
 
     Environment() {
-        enclosing = null;
+        this(null);
     }
 
     Environment(Environment enclosing) {
         this.enclosing = enclosing;
+        if (Metrics.ENABLED) Metrics.environmentAllocated();
+    }
+
+    // Scopes an interpreter has finished with, for its blocks and calls to reuse.
+    // UtopiaScript has no closures: a function runs in the globals whatever scope declared it, and
+    // nothing else keeps hold of a scope, so none outlives the block or call that made it. Each can
+    // be released as soon as that ends. A pool belongs to one interpreter, and so to one thread.
+    static final class Pool {
+        private static final int SIZE = 256;
+
+        private final Environment[] free = new Environment[SIZE];
+        private int count = 0;
+
+        Environment acquire(Environment enclosing) {
+            if (count == 0) return new Environment(enclosing);
+
+            Environment environment = free[--count];
+            free[count] = null;
+            environment.enclosing = enclosing;
+            return environment;
+        }
+
+        void release(Environment environment) {
+            Arrays.fill(environment.values, 0, environment.count, null);
+            Arrays.fill(environment.names, 0, environment.count, null);
+            environment.count = 0;
+            environment.index = null;
+            environment.enclosing = null;
+            if (count < SIZE) free[count++] = environment;
+        }
+    }
+
+    // Returns the slot of a name in this scope alone, or -1
+    private int slot(Symbol name) {
+        if (index != null) {
+            Integer slot = index.get(name);
+            return slot == null ? -1 : slot;
+        }
+        for (int i = 0; i < count; i++) {
+            if (names[i] == name) return i;
+        }
+        return -1;
+    }
+
+    void define(Symbol name, Object value) {
+        int slot = slot(name);
+        if (slot >= 0) {
+            values[slot] = value;
+            return;
+        }
+
+        if (count == names.length) {
+            int length = Math.max(4, count * 2);
+            names = Arrays.copyOf(names, length);
+            values = Arrays.copyOf(values, length);
+        }
+        names[count] = name;
+        values[count] = value;
+        if (index != null) {
+            index.put(name, count);
+        } else if (count == INDEXED) {
+            index = new HashMap<>();
+            for (int i = 0; i <= count; i++) {
+                index.put(names[i], i);
+            }
+        }
+        count++;
     }
 
     void define(String name, Object value) {
-        values.put(name, value);
+        define(Symbol.intern(name), value);
     }
 
     Object get(Token name) {
-        if (values.containsKey(name.lexeme)) {
-            return values.get(name.lexeme);
-        }
+        int slot = slot(name.symbol);
+        if (slot >= 0) return values[slot];
 
         if (enclosing != null) return enclosing.get(name);
 
@@ -30,8 +108,9 @@ public class Environment {
     }
 
     void assign(Token name, Object value) {
-        if (values.containsKey(name.lexeme)) {
-            values.put(name.lexeme, value);
+        int slot = slot(name.symbol);
+        if (slot >= 0) {
+            values[slot] = value;
             return;
         }
 
@@ -42,4 +121,61 @@ public class Environment {
 
         throw new RuntimeError(name, "Undefined variable '" + name.lexeme + "'.'");
     }
+
+    // Reads a variable for an expression node
+    // The local scopes are searched by name; once they miss, the node's cached global cell is used
+    Object get(Expr.Variable expr) {
+        Symbol name = expr.name.symbol;
+        Environment environment = this;
+        while (environment.enclosing != null) {
+            int slot = environment.slot(name);
+            if (slot >= 0) return environment.values[slot];
+            environment = environment.enclosing;
+        }
+
+        GlobalEnvironment.Cell cell = ((GlobalEnvironment)environment).cell(expr.name, expr.cell);
+        expr.cell = cell;
+        return cell.value;
+    }
+
+    // Returned by getLocal when no local scope defines a name, so it has to be a global
+    static final Object GLOBAL = new Object();
+
+    // Reads a name from the local scopes only, for code that caches global cells itself
+    Object getLocal(Symbol name) {
+        Environment environment = this;
+        while (environment.enclosing != null) {
+            int slot = environment.slot(name);
+            if (slot >= 0) return environment.values[slot];
+            environment = environment.enclosing;
+        }
+        return GLOBAL;
+    }
+
+    // Assigns a name in the local scopes only, returning false when none of them defines it
+    boolean assignLocal(Symbol name, Object value) {
+        Environment environment = this;
+        while (environment.enclosing != null) {
+            int slot = environment.slot(name);
+            if (slot >= 0) {
+                environment.values[slot] = value;
+                return true;
+            }
+            environment = environment.enclosing;
+        }
+        return false;
+    }
+
+    // Assigns a variable for an assignment node, caching the global cell like get(Expr.Variable)
+    void assign(Expr.Assign expr, Object value) {
+        if (assignLocal(expr.name.symbol, value)) return;
+
+        Environment environment = this;
+        while (environment.enclosing != null) {
+            environment = environment.enclosing;
+        }
+        GlobalEnvironment.Cell cell = ((GlobalEnvironment)environment).cell(expr.name, expr.cell);
+        expr.cell = cell;
+        cell.value = value;
+    }
 }
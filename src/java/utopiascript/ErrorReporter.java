@@ -0,0 +1,11 @@
+package utopiascript;
+
+// Receives the errors found while scanning and parsing.
+// UtopiaScript.reporter prints them, while a Document keeps them as diagnostics.
+interface ErrorReporter {
+    // An error the scanner found at a position in the source
+    void error(int line, int offset, String message);
+
+    // An error the parser found at a token
+    void error(Token token, String message);
+}
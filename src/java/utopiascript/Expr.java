@@ -13,7 +13,7 @@ abstract class Expr {
     R visitVariableExpr(Variable expr);
     R visitCallExpr(Call expr);
   }
-  static class Assign extends Expr {
+  static final class Assign extends Expr {
     Assign(Token name, Expr value) {
       this.name = name;
       this.value = value;
@@ -24,10 +24,17 @@ abstract class Expr {
       return visitor.visitAssignExpr(this);
     }
 
+    @Override
+    Object evaluate(Frame frame) {
+      return Nodes.evaluate(this, frame);
+    }
+
     final Token name;
     final Expr value;
+
+    GlobalEnvironment.Cell cell;
   }
-  static class Binary extends Expr {
+  static final class Binary extends Expr {
     Binary(Expr left, Token operator, Expr right) {
       this.left = left;
       this.operator = operator;
@@ -39,11 +46,34 @@ abstract class Expr {
       return visitor.visitBinaryExpr(this);
     }
 
+    @Override
+    Object evaluate(Frame frame) {
+      return Nodes.evaluate(this, frame);
+    }
+
+    @Override
+    long evaluateLong(Frame frame) {
+      return Nodes.evaluateLong(this, frame);
+    }
+
+    @Override
+    double evaluateDouble(Frame frame) {
+      return Nodes.evaluateDouble(this, frame);
+    }
+
+    @Override
+    boolean evaluateBoolean(Frame frame) {
+      return Nodes.evaluateBoolean(this, frame);
+    }
+
     final Expr left;
     final Token operator;
     final Expr right;
+
+    boolean doubles;
+    boolean generic;
   }
-  static class Grouping extends Expr {
+  static final class Grouping extends Expr {
     Grouping(Expr expression) {
       this.expression = expression;
     }
@@ -53,9 +83,29 @@ abstract class Expr {
       return visitor.visitGroupingExpr(this);
     }
 
+    @Override
+    Object evaluate(Frame frame) {
+      return Nodes.evaluate(this, frame);
+    }
+
+    @Override
+    long evaluateLong(Frame frame) {
+      return Nodes.evaluateLong(this, frame);
+    }
+
+    @Override
+    double evaluateDouble(Frame frame) {
+      return Nodes.evaluateDouble(this, frame);
+    }
+
+    @Override
+    boolean evaluateBoolean(Frame frame) {
+      return Nodes.evaluateBoolean(this, frame);
+    }
+
     final Expr expression;
   }
-  static class Literal extends Expr {
+  static final class Literal extends Expr {
     Literal(Object value) {
       this.value = value;
     }
@@ -65,9 +115,29 @@ abstract class Expr {
       return visitor.visitLiteralExpr(this);
     }
 
+    @Override
+    Object evaluate(Frame frame) {
+      return Nodes.evaluate(this, frame);
+    }
+
+    @Override
+    long evaluateLong(Frame frame) {
+      return Nodes.evaluateLong(this, frame);
+    }
+
+    @Override
+    double evaluateDouble(Frame frame) {
+      return Nodes.evaluateDouble(this, frame);
+    }
+
+    @Override
+    boolean evaluateBoolean(Frame frame) {
+      return Nodes.evaluateBoolean(this, frame);
+    }
+
     final Object value;
   }
-  static class Logical extends Expr {
+  static final class Logical extends Expr {
     Logical(Expr left, Token operator, Expr right) {
       this.left = left;
       this.operator = operator;
@@ -79,11 +149,21 @@ abstract class Expr {
       return visitor.visitLogicalExpr(this);
     }
 
+    @Override
+    Object evaluate(Frame frame) {
+      return Nodes.evaluate(this, frame);
+    }
+
+    @Override
+    boolean evaluateBoolean(Frame frame) {
+      return Nodes.evaluateBoolean(this, frame);
+    }
+
     final Expr left;
     final Token operator;
     final Expr right;
   }
-  static class Unary extends Expr {
+  static final class Unary extends Expr {
     Unary(Token operator, Expr right) {
       this.operator = operator;
       this.right = right;
@@ -94,10 +174,30 @@ abstract class Expr {
       return visitor.visitUnaryExpr(this);
     }
 
+    @Override
+    Object evaluate(Frame frame) {
+      return Nodes.evaluate(this, frame);
+    }
+
+    @Override
+    long evaluateLong(Frame frame) {
+      return Nodes.evaluateLong(this, frame);
+    }
+
+    @Override
+    double evaluateDouble(Frame frame) {
+      return Nodes.evaluateDouble(this, frame);
+    }
+
+    @Override
+    boolean evaluateBoolean(Frame frame) {
+      return Nodes.evaluateBoolean(this, frame);
+    }
+
     final Token operator;
     final Expr right;
   }
-  static class Variable extends Expr {
+  static final class Variable extends Expr {
     Variable(Token name) {
       this.name = name;
     }
@@ -107,9 +207,16 @@ abstract class Expr {
       return visitor.visitVariableExpr(this);
     }
 
+    @Override
+    Object evaluate(Frame frame) {
+      return Nodes.evaluate(this, frame);
+    }
+
     final Token name;
+
+    GlobalEnvironment.Cell cell;
   }
-  static class Call extends Expr {
+  static final class Call extends Expr {
     Call(Expr callee, Token paren, List<Expr> arguments) {
       this.callee = callee;
       this.paren = paren;
@@ -121,10 +228,34 @@ abstract class Expr {
       return visitor.visitCallExpr(this);
     }
 
+    @Override
+    Object evaluate(Frame frame) {
+      return Nodes.evaluate(this, frame);
+    }
+
+    @Override
+    double evaluateDouble(Frame frame) {
+      return Nodes.evaluateDouble(this, frame);
+    }
+
     final Expr callee;
     final Token paren;
     final List<Expr> arguments;
   }
 
   abstract <R> R accept(Visitor<R> visitor);
+
+  abstract Object evaluate(Frame frame);
+
+  long evaluateLong(Frame frame) {
+    return Nodes.expectLong(evaluate(frame));
+  }
+
+  double evaluateDouble(Frame frame) {
+    return Nodes.expectDouble(evaluate(frame));
+  }
+
+  boolean evaluateBoolean(Frame frame) {
+    return Nodes.expectBoolean(evaluate(frame));
+  }
 }
@@ -0,0 +1,556 @@
+package utopiascript;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// A syntax tree stored in a few flat arrays instead of one object per node, run with --flat.
+// Node i has the kind kinds[i], the line lines[i] and up to three operands in first[i], second[i]
+// and third[i], which are node indices, constant indices or list indices depending on the kind.
+// A list, like a block's statements, is its length followed by its items in the lists array.
+// Names are Symbols in the constants and no tokens are kept: an error makes one up from the
+// node's kind, name and line. Groupings leave no node behind. A function's node keeps the
+// declaration it was made from in the constants, for PurityChecker to check.
+// The interpreter below walks the arrays directly, with the same semantics as Interpreter, but
+// without the profiler or the JIT.
+final class FlatAst {
+    // node kinds
+    private static final int LITERAL = 0, VARIABLE = 1, ASSIGN = 2, ADD = 3, SUBTRACT = 4,
+        MULTIPLY = 5, DIVIDE = 6, GREATER = 7, GREATER_EQUAL = 8, LESS = 9, LESS_EQUAL = 10,
+        EQUAL = 11, NOT_EQUAL = 12, AND = 13, OR = 14, NEGATE = 15, NOT = 16, CALL = 17,
+        EXPRESSION = 18, PRINT = 19, VAR = 20, BLOCK = 21, IF = 22, WHILE = 23, FUNCTION = 24,
+        RETURN = 25, IMPORT = 26;
+
+    // the token an error at an operator node reports, by kind
+    private static final TokenType[] OPERATORS = new TokenType[IMPORT + 1];
+    private static final String[] LEXEMES = new String[IMPORT + 1];
+
+    static {
+        operator(ADD, TokenType.PLUS, "+");
+        operator(SUBTRACT, TokenType.MINUS, "-");
+        operator(MULTIPLY, TokenType.STAR, "*");
+        operator(DIVIDE, TokenType.SLASH, "/");
+        operator(GREATER, TokenType.GREATER, ">");
+        operator(GREATER_EQUAL, TokenType.GREATER_EQUAL, ">=");
+        operator(LESS, TokenType.LESS, "<");
+        operator(LESS_EQUAL, TokenType.LESS_EQUAL, "<=");
+        operator(EQUAL, TokenType.EQUAL_EQUAL, "==");
+        operator(NOT_EQUAL, TokenType.BANG_EQUAL, "!=");
+        operator(NEGATE, TokenType.MINUS, "-");
+        operator(NOT, TokenType.BANG, "!");
+        operator(CALL, TokenType.RIGHT_PAREN, ")");
+        operator(IMPORT, TokenType.IMPORTI, "importi");
+    }
+
+    private static void operator(int kind, TokenType type, String lexeme) {
+        OPERATORS[kind] = type;
+        LEXEMES[kind] = lexeme;
+    }
+
+    // what execute returns when a statement completes without returning
+    private static final Object NORMAL = new Object();
+
+    private final int[] kinds;
+    private final int[] lines;
+    private final int[] first;
+    private final int[] second;
+    private final int[] third;
+    private final int[] lists;
+    private final Object[] constants;
+    // the global cell each variable and assignment node resolved to, by the slot in its third operand
+    private final GlobalEnvironment.Cell[] cells;
+    // the list of top-level statements
+    private final int root;
+
+    private FlatAst(Builder builder, int root) {
+        this.kinds = Arrays.copyOf(builder.kinds, builder.count);
+        this.lines = Arrays.copyOf(builder.lines, builder.count);
+        this.first = Arrays.copyOf(builder.first, builder.count);
+        this.second = Arrays.copyOf(builder.second, builder.count);
+        this.third = Arrays.copyOf(builder.third, builder.count);
+        this.lists = Arrays.copyOf(builder.lists, builder.listsLength);
+        this.constants = builder.constants.toArray();
+        this.cells = new GlobalEnvironment.Cell[builder.cacheSlots];
+        this.root = root;
+    }
+
+    static FlatAst of(List<Stmt> statements) {
+        Builder builder = new Builder();
+        return new FlatAst(builder, builder.statements(statements));
+    }
+
+    // The number of top-level statements
+    int statements() {
+        return lists[root];
+    }
+
+    // Runs the top-level statements, leaving runtime errors to the caller
+    void run(Interpreter interpreter) {
+        executeList(root, interpreter.globals, interpreter);
+    }
+
+    // A function declared in flat code
+    static final class Function implements UtopiaScriptCallable {
+        private final FlatAst code;
+        private final int node;
+
+        private Function(FlatAst code, int node) {
+            this.code = code;
+            this.node = node;
+        }
+
+        @Override
+        public int arity() {
+            return code.lists[code.second[node]];
+        }
+
+        @Override
+        public Object call(Interpreter interpreter, List<Object> arguments) {
+            Environment environment = new Environment(interpreter.globals);
+            int params = code.second[node];
+            for (int i = 0; i < arguments.size(); i++) {
+                environment.define(code.symbol(code.lists[params + 1 + i]), arguments.get(i));
+            }
+
+            String name = name();
+            CallStack calls = interpreter.calls;
+            calls.push(name);
+            if (Metrics.ENABLED) Metrics.called(++interpreter.callDepth);
+            try {
+                Object result = code.executeList(code.third[node], environment, interpreter);
+                return result == NORMAL ? null : result;
+            } catch (RuntimeError error) {
+                // the innermost function an error leaves is the first to see it
+                if (error.trace == null && error.token != null) error.trace = calls.trace(error.token.line);
+                throw error;
+            } catch (StackOverflowError error) {
+                RuntimeError overflow = new RuntimeError(
+                    new Token(TokenType.IDENTIFIER, name, null, code.lines[node]),
+                    "Stack overflow in '" + name + "'; --deep allows deeper recursion.");
+                overflow.trace = calls.trace(code.lines[node]);
+                throw overflow;
+            } finally {
+                if (Metrics.ENABLED) interpreter.callDepth--;
+                calls.pop();
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "<fn " + name() + ">";
+        }
+
+        // the declaration the function was flattened from, for PurityChecker
+        Stmt.Function declaration() {
+            return (Stmt.Function)code.constants[code.first[node]];
+        }
+
+        private String name() {
+            return declaration().name.lexeme;
+        }
+    }
+
+    private Symbol symbol(int constant) {
+        return (Symbol)constants[constant];
+    }
+
+    // Makes up the token an error at a node reports
+    private Token token(int node) {
+        int kind = kinds[node];
+        if (kind == VARIABLE || kind == ASSIGN) {
+            return new Token(TokenType.IDENTIFIER, symbol(first[node]).name, null, lines[node]);
+        }
+        return new Token(OPERATORS[kind], LEXEMES[kind], null, lines[node]);
+    }
+
+    // Returns NORMAL, or the value of a return statement
+    private Object executeList(int list, Environment environment, Interpreter interpreter) {
+        int count = lists[list];
+        for (int i = 1; i <= count; i++) {
+            Object result = execute(lists[list + i], environment, interpreter);
+            if (result != NORMAL) return result;
+        }
+        return NORMAL;
+    }
+
+    private Object execute(int node, Environment environment, Interpreter interpreter) {
+        switch (kinds[node]) {
+            case EXPRESSION:
+                evaluate(first[node], environment, interpreter);
+                return NORMAL;
+            case PRINT:
+                interpreter.out.println(Interpreter.stringify(evaluate(first[node], environment, interpreter)));
+                return NORMAL;
+            case VAR: {
+                Object value = second[node] < 0 ? null : evaluate(second[node], environment, interpreter);
+                environment.define(symbol(first[node]), value);
+                return NORMAL;
+            }
+            case BLOCK:
+                return executeList(first[node], new Environment(environment), interpreter);
+            case IF:
+                if (Interpreter.isTruthy(evaluate(first[node], environment, interpreter))) {
+                    return execute(second[node], environment, interpreter);
+                }
+                if (third[node] >= 0) return execute(third[node], environment, interpreter);
+                return NORMAL;
+            case WHILE:
+                while (Interpreter.isTruthy(evaluate(first[node], environment, interpreter))) {
+                    Object result = execute(second[node], environment, interpreter);
+                    if (result != NORMAL) return result;
+                }
+                return NORMAL;
+            case FUNCTION:
+                environment.define(((Stmt.Function)constants[first[node]]).name.symbol, new Function(this, node));
+                return NORMAL;
+            case RETURN:
+                return first[node] < 0 ? null : evaluate(first[node], environment, interpreter);
+            case IMPORT: {
+                Token path = new Token(TokenType.STRING, "\"" + constants[first[node]] + "\"",
+                    constants[first[node]], lines[node]);
+                Stmt.Import stmt = new Stmt.Import(token(node), path);
+                for (Map.Entry<Symbol, Object> export : interpreter.modules.load(interpreter, stmt).entrySet()) {
+                    environment.define(export.getKey(), export.getValue());
+                }
+                return NORMAL;
+            }
+            default:
+                throw new IllegalStateException("Not a statement: " + kinds[node]);
+        }
+    }
+
+    private Object evaluate(int node, Environment environment, Interpreter interpreter) {
+        switch (kinds[node]) {
+            case LITERAL:
+                return constants[first[node]];
+            case VARIABLE: {
+                Object value = environment.getLocal(symbol(first[node]));
+                if (value == Environment.GLOBAL) value = cell(node, interpreter).value;
+                if (value == null) {
+                    throw new RuntimeError(token(node), "Cannot access a variable that has not been initialized or assigned to");
+                }
+                return value;
+            }
+            case ASSIGN: {
+                Object value = evaluate(second[node], environment, interpreter);
+                if (!environment.assignLocal(symbol(first[node]), value)) cell(node, interpreter).value = value;
+                return value;
+            }
+            case AND: {
+                Object left = evaluate(first[node], environment, interpreter);
+                if (!Interpreter.isTruthy(left)) return left;
+                return evaluate(second[node], environment, interpreter);
+            }
+            case OR: {
+                Object left = evaluate(first[node], environment, interpreter);
+                if (Interpreter.isTruthy(left)) return true;
+                return evaluate(second[node], environment, interpreter);
+            }
+            case NEGATE: {
+                Object right = evaluate(first[node], environment, interpreter);
+                if (right instanceof Double) return -(double)right;
+                return Operators.negate(token(node), right);
+            }
+            case NOT:
+                return !Interpreter.isTruthy(evaluate(first[node], environment, interpreter));
+            case CALL:
+                return call(node, environment, interpreter);
+            default:
+                return binary(node, environment, interpreter);
+        }
+    }
+
+    // The right operand is evaluated first, as in the interpreter. Numbers are handled here and
+    // everything else, including the errors, by Operators.
+    private Object binary(int node, Environment environment, Interpreter interpreter) {
+        Object right = evaluate(second[node], environment, interpreter);
+        Object left = evaluate(first[node], environment, interpreter);
+        int kind = kinds[node];
+        if (kind == EQUAL) return Operators.isEqual(left, right);
+        if (kind == NOT_EQUAL) return !Operators.isEqual(left, right);
+
+        if (left instanceof Long && right instanceof Long) {
+            long a = (long)left;
+            long b = (long)right;
+            switch (kind) {
+                case ADD: return Operators.add(a, b);
+                case SUBTRACT: return Operators.subtract(a, b);
+                case MULTIPLY: return Operators.multiply(a, b);
+                case GREATER: return a > b;
+                case GREATER_EQUAL: return a >= b;
+                case LESS: return a < b;
+                case LESS_EQUAL: return a <= b;
+                default: break;
+            }
+        } else if (left instanceof Double && right instanceof Double) {
+            double a = (double)left;
+            double b = (double)right;
+            switch (kind) {
+                case ADD: return a + b;
+                case SUBTRACT: return a - b;
+                case MULTIPLY: return a * b;
+                case DIVIDE: if (b != 0.0) return a / b; break;
+                case GREATER: return a > b;
+                case GREATER_EQUAL: return a >= b;
+                case LESS: return a < b;
+                case LESS_EQUAL: return a <= b;
+                default: throw new IllegalStateException("Not an expression: " + kind);
+            }
+        }
+        return Operators.binary(token(node), left, right);
+    }
+
+    private Object call(int node, Environment environment, Interpreter interpreter) {
+        Object callee = evaluate(first[node], environment, interpreter);
+        int list = second[node];
+        int count = lists[list];
+        if (callee instanceof HostFunction) {
+            Object[] arguments = new Object[count];
+            for (int i = 0; i < count; i++) {
+                arguments[i] = evaluate(lists[list + 1 + i], environment, interpreter);
+            }
+            return Operators.call(token(node), (HostFunction)callee, arguments);
+        }
+
+        List<Object> arguments = new ArrayList<>(count);
+        for (int i = 1; i <= count; i++) {
+            arguments.add(evaluate(lists[list + i], environment, interpreter));
+        }
+
+        if (!(callee instanceof UtopiaScriptCallable)) {
+            throw new RuntimeError(token(node), "Can only call functions and classes");
+        }
+        UtopiaScriptCallable function = (UtopiaScriptCallable)callee;
+        if (count != function.arity()) {
+            throw new RuntimeError(token(node), "Expected " + function.arity() + " arguments but got " + count + ".");
+        }
+
+        interpreter.calls.site = lines[node];
+        try {
+            return function.call(interpreter, arguments);
+        } catch (RuntimeError error) {
+            // errors raised by natives carry no token, so report them at the call site
+            if (error.token == null) throw new RuntimeError(token(node), error.getMessage());
+            throw error;
+        }
+    }
+
+    // Returns the global cell a node names, resolving it again when the cache belongs to other globals
+    private GlobalEnvironment.Cell cell(int node, Interpreter interpreter) {
+        GlobalEnvironment.Cell cell = cells[third[node]];
+        if (cell == null || cell.owner != interpreter.globals) {
+            cell = interpreter.globals.cell(token(node), null);
+            cells[third[node]] = cell;
+        }
+        return cell;
+    }
+
+    // Appends the nodes of a tree to growing arrays
+    private static final class Builder implements Expr.Visitor<Integer>, Stmt.Visitor<Integer> {
+        int[] kinds = new int[256];
+        int[] lines = new int[256];
+        int[] first = new int[256];
+        int[] second = new int[256];
+        int[] third = new int[256];
+        int count = 0;
+        int[] lists = new int[256];
+        int listsLength = 0;
+        final List<Object> constants = new ArrayList<>();
+        private final Map<Object, Integer> constantIndices = new HashMap<>();
+        int cacheSlots = 0;
+
+        private int node(int kind, int line) {
+            if (count == kinds.length) {
+                int length = count * 2;
+                kinds = Arrays.copyOf(kinds, length);
+                lines = Arrays.copyOf(lines, length);
+                first = Arrays.copyOf(first, length);
+                second = Arrays.copyOf(second, length);
+                third = Arrays.copyOf(third, length);
+            }
+            kinds[count] = kind;
+            lines[count] = line;
+            first[count] = -1;
+            second[count] = -1;
+            third[count] = -1;
+            return count++;
+        }
+
+        private int set(int node, int a, int b, int c) {
+            first[node] = a;
+            second[node] = b;
+            third[node] = c;
+            return node;
+        }
+
+        private int constant(Object value) {
+            Integer index = constantIndices.get(value);
+            if (index != null) return index;
+
+            constants.add(value);
+            constantIndices.put(value, constants.size() - 1);
+            return constants.size() - 1;
+        }
+
+        // Appends a list whose items have already been added
+        private int list(int[] items) {
+            while (listsLength + items.length + 1 > lists.length) {
+                lists = Arrays.copyOf(lists, lists.length * 2);
+            }
+            int start = listsLength;
+            lists[listsLength++] = items.length;
+            for (int item : items) {
+                lists[listsLength++] = item;
+            }
+            return start;
+        }
+
+        int statements(List<Stmt> statements) {
+            // statements that failed to parse were never added, and don't run
+            int[] items = new int[statements.size()];
+            int length = 0;
+            for (Stmt statement : statements) {
+                if (statement != null) items[length++] = add(statement);
+            }
+            return list(Arrays.copyOf(items, length));
+        }
+
+        private int add(Stmt stmt) {
+            return stmt == null ? -1 : stmt.accept(this);
+        }
+
+        private int add(Expr expr) {
+            return expr == null ? -1 : expr.accept(this);
+        }
+
+        @Override
+        public Integer visitAssignExpr(Expr.Assign expr) {
+            int node = node(ASSIGN, expr.name.line);
+            return set(node, constant(expr.name.symbol), add(expr.value), cacheSlots++);
+        }
+
+        @Override
+        public Integer visitBinaryExpr(Expr.Binary expr) {
+            int kind;
+            switch (expr.operator.type) {
+                case PLUS: kind = ADD; break;
+                case MINUS: kind = SUBTRACT; break;
+                case STAR: kind = MULTIPLY; break;
+                case SLASH: kind = DIVIDE; break;
+                case GREATER: kind = GREATER; break;
+                case GREATER_EQUAL: kind = GREATER_EQUAL; break;
+                case LESS: kind = LESS; break;
+                case LESS_EQUAL: kind = LESS_EQUAL; break;
+                case EQUAL_EQUAL: kind = EQUAL; break;
+                case BANG_EQUAL: kind = NOT_EQUAL; break;
+                default: throw new IllegalArgumentException("Unknown operator " + expr.operator.lexeme);
+            }
+            int node = node(kind, expr.operator.line);
+            return set(node, add(expr.left), add(expr.right), -1);
+        }
+
+        @Override
+        public Integer visitGroupingExpr(Expr.Grouping expr) {
+            return add(expr.expression);
+        }
+
+        @Override
+        public Integer visitLiteralExpr(Expr.Literal expr) {
+            return set(node(LITERAL, 0), constant(expr.value), -1, -1);
+        }
+
+        @Override
+        public Integer visitLogicalExpr(Expr.Logical expr) {
+            int node = node(expr.operator.type == TokenType.AU ? OR : AND, expr.operator.line);
+            return set(node, add(expr.left), add(expr.right), -1);
+        }
+
+        @Override
+        public Integer visitUnaryExpr(Expr.Unary expr) {
+            int node = node(expr.operator.type == TokenType.MINUS ? NEGATE : NOT, expr.operator.line);
+            return set(node, add(expr.right), -1, -1);
+        }
+
+        @Override
+        public Integer visitVariableExpr(Expr.Variable expr) {
+            int node = node(VARIABLE, expr.name.line);
+            return set(node, constant(expr.name.symbol), -1, cacheSlots++);
+        }
+
+        @Override
+        public Integer visitCallExpr(Expr.Call expr) {
+            int node = node(CALL, expr.paren.line);
+            int callee = add(expr.callee);
+            int[] arguments = new int[expr.arguments.size()];
+            for (int i = 0; i < arguments.length; i++) {
+                arguments[i] = add(expr.arguments.get(i));
+            }
+            return set(node, callee, list(arguments), -1);
+        }
+
+        @Override
+        public Integer visitExpressionStmt(Stmt.Expression stmt) {
+            int node = node(EXPRESSION, stmt.line);
+            return set(node, add(stmt.expression), -1, -1);
+        }
+
+        @Override
+        public Integer visitPrintStmt(Stmt.Print stmt) {
+            int node = node(PRINT, stmt.line);
+            return set(node, add(stmt.expression), -1, -1);
+        }
+
+        @Override
+        public Integer visitVarStmt(Stmt.Var stmt) {
+            int node = node(VAR, stmt.line);
+            return set(node, constant(stmt.name.symbol), add(stmt.initializer), -1);
+        }
+
+        @Override
+        public Integer visitBlockStmt(Stmt.Block stmt) {
+            int node = node(BLOCK, stmt.line);
+            return set(node, statements(stmt.statements), -1, -1);
+        }
+
+        @Override
+        public Integer visitIfStmt(Stmt.If stmt) {
+            int node = node(IF, stmt.line);
+            int condition = add(stmt.condition);
+            int thenBranch = add(stmt.thenBranch);
+            return set(node, condition, thenBranch, add(stmt.elseBranch));
+        }
+
+        @Override
+        public Integer visitWhileStmt(Stmt.While stmt) {
+            int node = node(WHILE, stmt.line);
+            int condition = add(stmt.condition);
+            return set(node, condition, add(stmt.body), -1);
+        }
+
+        @Override
+        public Integer visitFunctionStmt(Stmt.Function stmt) {
+            int node = node(FUNCTION, stmt.line);
+            int[] params = new int[stmt.params.size()];
+            for (int i = 0; i < params.length; i++) {
+                params[i] = constant(stmt.params.get(i).symbol);
+            }
+            int declaration = constant(stmt);
+            int paramList = list(params);
+            return set(node, declaration, paramList, statements(stmt.body));
+        }
+
+        @Override
+        public Integer visitReturnStmt(Stmt.Return stmt) {
+            int node = node(RETURN, stmt.line);
+            return set(node, add(stmt.value), -1, -1);
+        }
+
+        @Override
+        public Integer visitImportStmt(Stmt.Import stmt) {
+            int node = node(IMPORT, stmt.keyword.line);
+            return set(node, constant(stmt.path.literal), -1, -1);
+        }
+    }
+}
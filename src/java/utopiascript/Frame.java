@@ -0,0 +1,18 @@
+package utopiascript;
+
+// The state code runs in under the generated node methods: the interpreter, and the innermost
+// scope, which blocks replace while they run.
+// Unlike the visitor, which keeps the current scope in the Interpreter, each call gets a frame of
+// its own, and statements return their outcome instead of throwing Return.
+final class Frame {
+    // what execute returns when a statement completes without returning
+    static final Object NORMAL = new Object();
+
+    final Interpreter interpreter;
+    Environment environment;
+
+    Frame(Interpreter interpreter, Environment environment) {
+        this.interpreter = interpreter;
+        this.environment = environment;
+    }
+}
@@ -0,0 +1,665 @@
+package utopiascript;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+// Checks that every engine runs random programs the way the tree-walker does, and times them:
+//     java -cp out utopiascript.Fuzzer [--seed n] [--programs count] [--record file] [--baseline file] [--print]
+// Programs come from a generator that follows the grammar of Parser and keeps to well-typed code,
+// with an occasional deliberate error so the error paths are compared too, some of them only
+// reached once a function is hot enough to be compiled. Every loop is bounded and recursion
+// only gets small arguments, so every program ends. Each program runs in each mode through a
+// Runner of its own, and its status, output and error, trace included, must match the
+// tree-walker's. Its time in a mode is the fastest of a few more runs.
+// --record writes the times per program and mode, and --baseline compares them against an earlier
+// recording with the same seed, flagging runs that got much slower than the rest. The program a
+// seed generates is printed by --print. Exits with 1 if anything differs or regressed.
+final class Fuzzer {
+    private static final String[] MODES = { "tree", "jit", "nodes", "flat", "deep" };
+    // runs after the first, the fastest of which is the time
+    private static final int REPEATS = 3;
+    // a run regressed when it takes this much longer than the baseline, and by at least NOISE_MILLIS
+    private static final double REGRESSION = 2.0;
+    private static final double NOISE_MILLIS = 1.0;
+
+    private Fuzzer() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        long seed = System.currentTimeMillis();
+        int programs = 200;
+        String recordPath = null;
+        String baselinePath = null;
+        boolean print = false;
+        for (int arg = 0; arg < args.length; arg++) {
+            switch (args[arg]) {
+                case "--seed":
+                    if (++arg == args.length) usage();
+                    seed = Long.parseLong(args[arg]);
+                    break;
+                case "--programs":
+                    if (++arg == args.length) usage();
+                    programs = Integer.parseInt(args[arg]);
+                    break;
+                case "--record":
+                    if (++arg == args.length) usage();
+                    recordPath = args[arg];
+                    break;
+                case "--baseline":
+                    if (++arg == args.length) usage();
+                    baselinePath = args[arg];
+                    break;
+                case "--print":
+                    print = true;
+                    break;
+                default:
+                    usage();
+            }
+        }
+
+        if (print) {
+            for (int i = 0; i < programs; i++) {
+                System.out.println("// seed " + (seed + i));
+                System.out.print(new Generator(seed + i).program());
+            }
+            return;
+        }
+
+        Map<String, Double> baseline = baselinePath == null ? Map.of() : read(baselinePath);
+        System.out.println("Fuzzing " + programs + " programs from seed " + seed);
+
+        int failing = 0;
+        int mismatches = 0;
+        double[] totals = new double[MODES.length];
+        // the time of each program in each mode, by seed and mode
+        Map<String, Double> times = new LinkedHashMap<>();
+        for (int i = 0; i < programs; i++) {
+            long programSeed = seed + i;
+            byte[] source = new Generator(programSeed).program().getBytes(StandardCharsets.UTF_8);
+
+            String expected = null;
+            for (int mode = 0; mode < MODES.length; mode++) {
+                Runner runner = runner(MODES[mode]);
+                Runner.Parsed code = runner.parse(source, Runnable::run).join();
+
+                long start = System.nanoTime();
+                String outcome = outcome(run(runner, code));
+                double millis = Math.min((System.nanoTime() - start) / 1e6, fastest(runner, code, REPEATS));
+                totals[mode] += millis;
+                times.put(programSeed + "\t" + MODES[mode], millis);
+
+                if (expected == null) {
+                    expected = outcome;
+                    if (!outcome.startsWith("status 0\n")) failing++;
+                } else if (!outcome.equals(expected)) {
+                    mismatches++;
+                    System.out.println("seed " + programSeed + ": " + MODES[mode] + " differs from tree");
+                    System.out.println(difference(expected, outcome));
+                }
+            }
+        }
+
+        int regressions = baseline.isEmpty() ? 0 : regressions(times, baseline);
+        if (recordPath != null) {
+            try (PrintWriter record = new PrintWriter(Files.newBufferedWriter(Paths.get(recordPath), StandardCharsets.UTF_8))) {
+                times.forEach((key, millis) -> record.printf("%s\t%.3f%n", key, millis));
+            }
+        }
+
+        System.out.printf("%d programs, %d ending in an error, %d mismatches, %d regressions%n",
+            programs, failing, mismatches, regressions);
+        for (int mode = 0; mode < MODES.length; mode++) {
+            System.out.printf("  %-6s %9.1f ms %6.2fx%n", MODES[mode], totals[mode], totals[0] / totals[mode]);
+        }
+        System.exit(mismatches + regressions > 0 ? 1 : 0);
+    }
+
+    private static void usage() {
+        System.out.println("Usage: utopiascript.Fuzzer [--seed n] [--programs count] [--record file] " +
+            "[--baseline file] [--print]");
+        System.exit(64);
+    }
+
+    // A runner with the settings the command line gives a mode
+    private static Runner runner(String mode) {
+        Interpreter settings = new Interpreter();
+        settings.jit = mode.equals("jit");
+        settings.nodes = mode.equals("nodes");
+        if (mode.equals("deep")) settings.machine = new StackMachine(settings, StackMachine.DEFAULT_MAX_DEPTH);
+        return new Runner(settings, mode.equals("flat"));
+    }
+
+    // Flags the runs that got much slower than in the baseline.
+    // Everything runs slower on a busy machine, so times are first scaled by how much slower
+    // the runs both have times for took altogether. A run that still looks slow is timed again,
+    // since a single pause can double a short run, and only counts if it is slow again.
+    private static int regressions(Map<String, Double> times, Map<String, Double> baseline) {
+        double now = 0;
+        double before = 0;
+        for (Map.Entry<String, Double> time : times.entrySet()) {
+            Double earlier = baseline.get(time.getKey());
+            if (earlier == null) continue;
+            now += time.getValue();
+            before += earlier;
+        }
+        if (before == 0) return 0;
+        double scale = now / before;
+        System.out.printf("%.2fx the time of the baseline altogether%n", scale);
+
+        int regressions = 0;
+        for (Map.Entry<String, Double> time : times.entrySet()) {
+            Double earlier = baseline.get(time.getKey());
+            if (earlier == null || !slower(time.getValue() / scale, earlier)) continue;
+
+            String[] key = time.getKey().split("\t");
+            byte[] source = new Generator(Long.parseLong(key[0])).program().getBytes(StandardCharsets.UTF_8);
+            Runner runner = runner(key[1]);
+            Runner.Parsed code = runner.parse(source, Runnable::run).join();
+            run(runner, code);
+            double millis = Math.min(time.getValue(), fastest(runner, code, REPEATS * 4));
+            time.setValue(millis);
+            if (!slower(millis / scale, earlier)) continue;
+
+            regressions++;
+            System.out.printf("seed %s: %s took %.2f ms, up from %.2f ms%n", key[0], key[1], millis, earlier);
+        }
+        return regressions;
+    }
+
+    private static boolean slower(double millis, double before) {
+        return millis > before * REGRESSION && millis - before > NOISE_MILLIS;
+    }
+
+    // The fastest of a number of runs of code that has run already
+    private static double fastest(Runner runner, Runner.Parsed code, int runs) {
+        double best = Double.MAX_VALUE;
+        for (int i = 0; i < runs; i++) {
+            long start = System.nanoTime();
+            run(runner, code);
+            best = Math.min(best, (System.nanoTime() - start) / 1e6);
+        }
+        return best;
+    }
+
+    private static Runner.Result run(Runner runner, Runner.Parsed code) {
+        try {
+            return runner.run(code, null);
+        } catch (RuntimeException | StackOverflowError error) {
+            // a crash is a difference like any other
+            return new Runner.Result("", "Internal error: " + error + "\n", -1);
+        }
+    }
+
+    // What a run must agree on: its status, its output and its error with the calls it came through
+    private static String outcome(Runner.Result result) {
+        return "status " + result.status + "\n" + result.output + result.errors;
+    }
+
+    private static String difference(String expected, String actual) {
+        String[] left = expected.split("\n", -1);
+        String[] right = actual.split("\n", -1);
+        int line = 0;
+        while (line < left.length && line < right.length && left[line].equals(right[line])) line++;
+        return "  line " + line + " of the outcome\n" +
+            "  tree: " + (line < left.length ? left[line] : "(end)") + "\n" +
+            "  this: " + (line < right.length ? right[line] : "(end)");
+    }
+
+    private static Map<String, Double> read(String path) throws IOException {
+        Map<String, Double> times = new HashMap<>();
+        for (String line : Files.readAllLines(Paths.get(path))) {
+            int tab = line.lastIndexOf('\t');
+            if (tab > 0) times.put(line.substring(0, tab), Double.parseDouble(line.substring(tab + 1)));
+        }
+        return times;
+    }
+
+    // Writes one random program, the same one for the same seed.
+    // Values are typed as numbers, strings or booleans, and expressions only combine values the
+    // operators take. Functions take and return numbers and only call functions declared before
+    // them, except for one that may call itself on smaller numbers. A budget of operations per
+    // function and for the program keeps loops and calls from multiplying into long runs.
+    private static final class Generator {
+        private enum Type { NUMBER, STRING, BOOLEAN }
+
+        private static final String[] DOUBLES = { "0.5", "1.25", "2.5", "3.75", "0.1" };
+        private static final String[] STRINGS = { "\"\"", "\"a\"", "\"saluton\"", "\"mondo\"" };
+        // the odds of a program having an error on purpose, one in ERROR_ODDS for each kind
+        private static final int ERROR_ODDS = 12;
+        private static final long FUNCTION_BUDGET = 40;
+        private static final long PROGRAM_BUDGET = 60000;
+        // enough calls for the Jit to compile the function a hot loop calls
+        private static final int HOT_CALLS = Jit.HOT_CALLS + 200;
+
+        // A function later code can call, with the operations a call costs
+        private static final class Function {
+            final String name;
+            final int arity;
+            final long cost;
+            // whether it calls itself, so it only gets small constant arguments
+            final boolean recursive;
+
+            Function(String name, int arity, long cost, boolean recursive) {
+                this.name = name;
+                this.arity = arity;
+                this.cost = cost;
+                this.recursive = recursive;
+            }
+        }
+
+        private final Random random;
+        private final StringBuilder out = new StringBuilder();
+        // the variables in scope, with the globals first
+        private final List<Map<String, Type>> scopes = new ArrayList<>();
+        // loop variables, which only their loops assign
+        private final Set<String> fixed = new HashSet<>();
+        private final List<Function> functions = new ArrayList<>();
+        private int names = 0;
+        private int indent = 0;
+        private boolean inFunction = false;
+        // whether string expressions are kept to literals
+        private boolean constantStrings = false;
+        // the operations the code being generated may still run, and how often the current
+        // statement runs
+        private long budget;
+        private long repeats = 1;
+
+        Generator(long seed) {
+            this.random = new Random(seed);
+        }
+
+        String program() {
+            scopes.add(new LinkedHashMap<>());
+            int globals = 2 + random.nextInt(3);
+            for (int i = 0; i < globals; i++) {
+                Type type = type();
+                String name = "g" + names++;
+                line("var " + name + " = " + expression(type, 2) + ";");
+                scopes.get(0).put(name, type);
+            }
+
+            boolean trap = random.nextInt(ERROR_ODDS) == 0;
+            int count = 1 + random.nextInt(4);
+            for (int i = 0; i < count; i++) {
+                function(trap && i == count - 1);
+            }
+            if (random.nextBoolean()) recursive();
+
+            budget = PROGRAM_BUDGET;
+            repeats = 1;
+            int statements = 3 + random.nextInt(6);
+            int hot = random.nextInt(statements + 1);
+            int error = random.nextInt(ERROR_ODDS) == 0 ? random.nextInt(statements + 1) : -1;
+            for (int i = 0; i <= statements; i++) {
+                if (i == hot) hotLoop(trap ? functions.get(count - 1) : hot());
+                if (i == error) error();
+                if (i < statements) statement(3);
+            }
+            return out.toString();
+        }
+
+        // A function of numbers ending in a return, which starts with a trap when trap is set:
+        // an error only a call with a first argument past Jit.HOT_CALLS runs into, so the
+        // function has been compiled by then
+        private void function(boolean trap) {
+            String name = "f" + names++;
+            int arity = (trap ? 1 : 0) + random.nextInt(3);
+            Map<String, Type> parameters = new LinkedHashMap<>();
+            for (int i = 0; i < arity; i++) {
+                parameters.put("p" + names++, Type.NUMBER);
+            }
+
+            line("funkcio " + name + "(" + String.join(", ", parameters.keySet()) + ") {");
+            enter(parameters);
+            inFunction = true;
+            budget = FUNCTION_BUDGET;
+            repeats = 1;
+            if (trap) {
+                line("se (" + parameters.keySet().iterator().next() + " > " + Jit.HOT_CALLS + ") {");
+                indent++;
+                error();
+                indent--;
+                line("}");
+            }
+            int statements = 1 + random.nextInt(4);
+            for (int i = 0; i < statements; i++) {
+                statement(2);
+            }
+            line("revenigi " + expression(Type.NUMBER, 3) + ";");
+            inFunction = false;
+            exit();
+            line("}");
+
+            functions.add(new Function(name, arity, Math.max(1, FUNCTION_BUDGET - budget), false));
+        }
+
+        // A function that calls itself twice on smaller numbers, like fib
+        private void recursive() {
+            String name = "f" + names++;
+            String parameter = "p" + names++;
+            Map<String, Type> parameters = new LinkedHashMap<>();
+            parameters.put(parameter, Type.NUMBER);
+
+            line("funkcio " + name + "(" + parameter + ") {");
+            enter(parameters);
+            // no calls in the base case, which runs most often
+            budget = 0;
+            repeats = 1;
+            line("se (" + parameter + " < 2) revenigi " + expression(Type.NUMBER, 2) + ";");
+            String operator = random.nextBoolean() ? "+" : "-";
+            line("revenigi " + name + "(" + parameter + " - 1) " + operator + " " +
+                name + "(" + parameter + " - 2);");
+            exit();
+            line("}");
+
+            functions.add(new Function(name, 1, 0, true));
+        }
+
+        // A function cheap enough to call HOT_CALLS times, or the cheapest if none is
+        private Function hot() {
+            List<Function> cheap = new ArrayList<>();
+            Function cheapest = functions.get(0);
+            for (Function function : functions) {
+                if (cost(function) * HOT_CALLS < PROGRAM_BUDGET / 2) cheap.add(function);
+                if (cost(function) < cost(cheapest)) cheapest = function;
+            }
+            return cheap.isEmpty() ? cheapest : cheap.get(random.nextInt(cheap.size()));
+        }
+
+        // the operations a call runs, where a recursive function gets arguments up to about 10
+        private static long cost(Function function) {
+            return function.recursive ? 200 : function.cost;
+        }
+
+        // A loop calling a function HOT_CALLS times and summing what it returns, passing the loop
+        // variable first so a trap goes off once the function is hot
+        private void hotLoop(Function function) {
+            String sum = "h" + names++;
+            String counter = "i" + names++;
+            line("var " + sum + " = 0;");
+            line("por (var " + counter + " = 0; " + counter + " < " + HOT_CALLS + "; " +
+                counter + " = " + counter + " + 1) {");
+            enter(Map.of(counter, Type.NUMBER));
+            fixed.add(counter);
+
+            List<String> arguments = new ArrayList<>();
+            if (function.recursive) {
+                arguments.add("mod(" + counter + ", " + (6 + random.nextInt(6)) + ")");
+            } else {
+                for (int i = 0; i < function.arity; i++) {
+                    arguments.add(i == 0 ? counter : expression(Type.NUMBER, 1));
+                }
+            }
+            line(sum + " = " + sum + " + " + function.name + "(" + String.join(", ", arguments) + ");");
+            exit();
+            line("}");
+            budget -= HOT_CALLS * cost(function);
+            scopes.get(scopes.size() - 1).put(sum, Type.NUMBER);
+            line("presi " + sum + ";");
+        }
+
+        // A statement the operators or the call reject, or that names an undefined variable
+        private void error() {
+            switch (random.nextInt(6)) {
+                case 0: line("presi " + expression(Type.STRING, 1) + " - 1;"); break;
+                case 1: line("presi nedifinita;"); break;
+                case 2: line("presi " + expression(Type.NUMBER, 1) + " / 0;"); break;
+                case 3: line("presi -" + expression(Type.STRING, 0) + ";"); break;
+                case 4: line("presi " + expression(Type.BOOLEAN, 1) + " < 1;"); break;
+                default: line("presi sqrt(1, 2);"); break;
+            }
+        }
+
+        private void statement(int depth) {
+            budget -= repeats;
+            switch (random.nextInt(depth > 0 ? 9 : 5)) {
+                case 0:
+                case 1: {
+                    Type type = type();
+                    String name = "v" + names++;
+                    line("var " + name + " = " + expression(type, 3) + ";");
+                    scopes.get(scopes.size() - 1).put(name, type);
+                    break;
+                }
+                case 2: {
+                    Type type = type();
+                    String name = variable(type, true);
+                    if (name == null) {
+                        line("presi " + expression(type, 3) + ";");
+                    } else {
+                        // a string assigned from strings that include itself doubles with every loop
+                        constantStrings = type == Type.STRING;
+                        line(name + " = " + expression(type, 3) + ";");
+                        constantStrings = false;
+                    }
+                    break;
+                }
+                case 3:
+                    line("presi " + expression(type(), 3) + ";");
+                    break;
+                case 4:
+                    if (inFunction && random.nextBoolean()) {
+                        line("se (" + expression(Type.BOOLEAN, 2) + ") revenigi " + expression(Type.NUMBER, 2) + ";");
+                    } else {
+                        line("presi " + expression(type(), 2) + ";");
+                    }
+                    break;
+                case 5:
+                case 6:
+                    line("se (" + expression(Type.BOOLEAN, 2) + ") {");
+                    block(depth);
+                    if (random.nextBoolean()) {
+                        line("} alie {");
+                        block(depth);
+                    }
+                    line("}");
+                    break;
+                default:
+                    loop(depth);
+                    break;
+            }
+        }
+
+        private void block(int depth) {
+            enter(Map.of());
+            int statements = 1 + random.nextInt(3);
+            for (int i = 0; i < statements; i++) {
+                statement(depth - 1);
+            }
+            exit();
+        }
+
+        // A por, dum or por-en loop with a constant bound, or a block if the budget can't run one
+        private void loop(int depth) {
+            int bound = 1 + random.nextInt(inFunction ? 3 : 8);
+            if (repeats * bound * 4 > budget) {
+                line("{");
+                block(depth);
+                line("}");
+                return;
+            }
+
+            String counter = "i" + names++;
+            boolean increments = false;
+            switch (random.nextInt(3)) {
+                case 0:
+                    line("por (var " + counter + " = 0; " + counter + " < " + bound + "; " +
+                        counter + " = " + counter + " + 1) {");
+                    break;
+                case 1:
+                    line("por (" + counter + " en intervalo(0, " + bound + ")) {");
+                    break;
+                default: {
+                    line("var " + counter + " = 0;");
+                    scopes.get(scopes.size() - 1).put(counter, Type.NUMBER);
+                    line("dum (" + counter + " < " + bound + ") {");
+                    increments = true;
+                    break;
+                }
+            }
+            fixed.add(counter);
+            enter(Map.of(counter, Type.NUMBER));
+            long outer = repeats;
+            repeats *= bound;
+            int statements = 1 + random.nextInt(3);
+            for (int i = 0; i < statements; i++) {
+                statement(depth - 1);
+            }
+            if (increments) line(counter + " = " + counter + " + 1;");
+            repeats = outer;
+            exit();
+            line("}");
+        }
+
+        private String expression(Type type, int depth) {
+            if (depth <= 0 || random.nextInt(4) == 0) return atom(type);
+            switch (type) {
+                case NUMBER: return number(depth - 1);
+                case STRING: return "(" + expression(Type.STRING, depth - 1) + " + " + expression(Type.STRING, depth - 1) + ")";
+                default: return bool(depth - 1);
+            }
+        }
+
+        private String number(int depth) {
+            switch (random.nextInt(8)) {
+                case 0:
+                case 1: {
+                    String operator = new String[] { "+", "-", "*" }[random.nextInt(3)];
+                    return "(" + expression(Type.NUMBER, depth) + " " + operator + " " + expression(Type.NUMBER, depth) + ")";
+                }
+                case 2:
+                    return "(" + expression(Type.NUMBER, depth) + " / " + (1 + random.nextInt(9)) + ")";
+                case 3:
+                    return "-(" + expression(Type.NUMBER, depth) + ")";
+                case 4:
+                case 5: {
+                    String call = call(depth);
+                    if (call != null) return call;
+                    return expression(Type.NUMBER, depth);
+                }
+                default:
+                    return intrinsic(depth);
+            }
+        }
+
+        // A call to a function the budget affords, or null
+        private String call(int depth) {
+            List<Function> affordable = new ArrayList<>();
+            for (Function function : functions) {
+                if (repeats * cost(function) <= budget) affordable.add(function);
+            }
+            if (affordable.isEmpty()) return null;
+
+            Function function = affordable.get(random.nextInt(affordable.size()));
+            budget -= repeats * cost(function);
+            List<String> arguments = new ArrayList<>();
+            if (function.recursive) {
+                arguments.add(String.valueOf(random.nextInt(11)));
+            } else {
+                for (int i = 0; i < function.arity; i++) {
+                    arguments.add(expression(Type.NUMBER, depth));
+                }
+            }
+            return function.name + "(" + String.join(", ", arguments) + ")";
+        }
+
+        private String intrinsic(int depth) {
+            String argument = expression(Type.NUMBER, depth);
+            switch (random.nextInt(8)) {
+                case 0: return "sqrt(abs(" + argument + "))";
+                case 1: return "floor(" + argument + ")";
+                case 2: return "abs(" + argument + ")";
+                case 3: return "min(" + argument + ", " + expression(Type.NUMBER, depth) + ")";
+                case 4: return "max(" + argument + ", " + expression(Type.NUMBER, depth) + ")";
+                case 5: return "div(" + argument + ", " + (1 + random.nextInt(9)) + ")";
+                case 6: return "mod(" + argument + ", " + (1 + random.nextInt(9)) + ")";
+                default: return "pow(" + argument + ", " + random.nextInt(4) + ")";
+            }
+        }
+
+        private String bool(int depth) {
+            switch (random.nextInt(6)) {
+                case 0:
+                case 1: {
+                    String operator = new String[] { "<", "<=", ">", ">=" }[random.nextInt(4)];
+                    return "(" + expression(Type.NUMBER, depth) + " " + operator + " " + expression(Type.NUMBER, depth) + ")";
+                }
+                case 2: {
+                    // values of different types are simply unequal
+                    String operator = random.nextBoolean() ? "==" : "!=";
+                    return "(" + expression(type(), depth) + " " + operator + " " + expression(type(), depth) + ")";
+                }
+                case 3:
+                    return "!(" + expression(Type.BOOLEAN, depth) + ")";
+                default: {
+                    String operator = random.nextBoolean() ? "kaj" : "au";
+                    return "(" + expression(Type.BOOLEAN, depth) + " " + operator + " " + expression(Type.BOOLEAN, depth) + ")";
+                }
+            }
+        }
+
+        private String atom(Type type) {
+            if (random.nextBoolean() && !(constantStrings && type == Type.STRING)) {
+                String name = variable(type, false);
+                if (name != null) return name;
+            }
+            switch (type) {
+                case NUMBER:
+                    switch (random.nextInt(6)) {
+                        case 0: return DOUBLES[random.nextInt(DOUBLES.length)];
+                        // near the largest integer, so arithmetic overflows into doubles
+                        case 1: return random.nextBoolean() ? "9223372036854775807" : "4611686018427387904";
+                        default: return String.valueOf(random.nextInt(100));
+                    }
+                case STRING:
+                    return STRINGS[random.nextInt(STRINGS.length)];
+                default:
+                    return random.nextBoolean() ? "vera" : "malvera";
+            }
+        }
+
+        // A variable of the type in scope, or null if there is none
+        private String variable(Type type, boolean assignable) {
+            List<String> names = new ArrayList<>();
+            for (Map<String, Type> scope : scopes) {
+                for (Map.Entry<String, Type> variable : scope.entrySet()) {
+                    if (variable.getValue() != type) continue;
+                    if (assignable && fixed.contains(variable.getKey())) continue;
+                    names.add(variable.getKey());
+                }
+            }
+            return names.isEmpty() ? null : names.get(random.nextInt(names.size()));
+        }
+
+        private Type type() {
+            // mostly numbers, which is what the engines optimize
+            int pick = random.nextInt(6);
+            return pick < 4 ? Type.NUMBER : pick == 4 ? Type.STRING : Type.BOOLEAN;
+        }
+
+        private void enter(Map<String, Type> variables) {
+            scopes.add(new LinkedHashMap<>(variables));
+            indent++;
+        }
+
+        private void exit() {
+            scopes.remove(scopes.size() - 1);
+            indent--;
+        }
+
+        private void line(String text) {
+            out.append("    ".repeat(indent)).append(text).append('\n');
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package utopiascript;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+// The outermost environment.
+// Each global gets a Cell the first time it is defined. The cell is its slot for the rest of the
+// run: redefining the name, as the REPL does, stores into the same cell. Variable and assignment
+// nodes cache the cell they resolved to, so later reads skip the name lookup entirely.
+class GlobalEnvironment extends Environment {
+    static final class Cell {
+        final GlobalEnvironment owner;
+        final Symbol name;
+        Object value;
+
+        Cell(GlobalEnvironment owner, Symbol name) {
+            this.owner = owner;
+            this.name = name;
+        }
+    }
+
+    private final Map<Symbol, Cell> cells = new HashMap<>();
+
+    @Override
+    void define(Symbol name, Object value) {
+        Cell cell = cells.get(name);
+        if (cell == null) {
+            cell = new Cell(this, name);
+            cells.put(name, cell);
+        }
+        cell.value = value;
+    }
+
+    @Override
+    Object get(Token name) {
+        return cell(name).value;
+    }
+
+    @Override
+    void assign(Token name, Object value) {
+        cell(name).value = value;
+    }
+
+    // Returns the value of a global, or null when it is not defined
+    Object value(Symbol name) {
+        Cell cell = cells.get(name);
+        return cell == null ? null : cell.value;
+    }
+
+    // The names of the defined globals
+    Set<Symbol> names() {
+        return Collections.unmodifiableSet(cells.keySet());
+    }
+
+    // Returns the cell a node cached, re-resolving it when the cache belongs to another
+    // interpreter's globals, since parsed code can be shared between interpreters
+    Cell cell(Token name, Cell cached) {
+        if (cached != null && cached.owner == this) return cached;
+        return cell(name);
+    }
+
+    private Cell cell(Token name) {
+        Cell cell = cells.get(name.symbol);
+        if (cell == null) {
+            throw new RuntimeError(name, "Undefined variable '" + name.lexeme + "'.'");
+        }
+        return cell;
+    }
+}
@@ -0,0 +1,168 @@
+package utopiascript;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.List;
+import java.util.function.DoubleBinaryOperator;
+import java.util.function.DoubleSupplier;
+import java.util.function.DoubleUnaryOperator;
+
+// A native bound to a Java method through a method handle with a typed signature.
+// Parameters may be double, boolean, String or Object, which takes any value, and results any of
+// those or void, which returns nenio. A double parameter takes integers as well. A call from the
+// tree-walker checks and unboxes the arguments. Compiled code links calls straight to the handle
+// instead: the DynamicCompiler behind a guard on the argument types, and the NumericCompiler with
+// primitive doubles, so numeric code calls a numeric host function without boxing anything.
+// Compiled code may run a call again in the tree-walker when it bails out, so a host function
+// with a numeric signature shouldn't have side effects.
+// An intrinsic is a static method that can't fail, which the NumericCompiler calls directly.
+final class HostFunction implements UtopiaScriptCallable {
+    // A native image only finds the methods listed in META-INF/native-image, so a method bound
+    // here has to be added to the reflect-config.json there as well
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+
+    final String name;
+    final MethodHandle handle;
+    // takes the arguments as an Object[] and returns the result boxed
+    private final MethodHandle spread;
+    // the internal name of the class and the method of an intrinsic, or null
+    final String owner;
+    final String method;
+
+    HostFunction(String name, MethodHandle handle) {
+        this(name, handle, null, null);
+    }
+
+    private HostFunction(String name, MethodHandle handle, String owner, String method) {
+        MethodType type = handle.type();
+        for (Class<?> parameter : type.parameterArray()) {
+            if (!supported(parameter)) {
+                throw new IllegalArgumentException("Host function '" + name + "' takes a " + parameter.getName() + ".");
+            }
+        }
+        if (!supported(type.returnType()) && type.returnType() != void.class) {
+            throw new IllegalArgumentException("Host function '" + name + "' returns a " + type.returnType().getName() + ".");
+        }
+
+        this.name = name;
+        this.handle = handle;
+        int count = type.parameterCount();
+        this.spread = handle.asType(MethodType.genericMethodType(count)).asSpreader(Object[].class, count);
+        this.owner = owner;
+        this.method = method;
+    }
+
+    private static boolean supported(Class<?> type) {
+        return type == double.class || type == boolean.class || type == String.class || type == Object.class;
+    }
+
+    static HostFunction of(String name, DoubleSupplier function) {
+        return bind(name, DoubleSupplier.class, "getAsDouble", function, MethodType.methodType(double.class));
+    }
+
+    static HostFunction of(String name, DoubleUnaryOperator function) {
+        return bind(name, DoubleUnaryOperator.class, "applyAsDouble", function,
+            MethodType.methodType(double.class, double.class));
+    }
+
+    static HostFunction of(String name, DoubleBinaryOperator function) {
+        return bind(name, DoubleBinaryOperator.class, "applyAsDouble", function,
+            MethodType.methodType(double.class, double.class, double.class));
+    }
+
+    // Binds the public static method of a class with the given name, which must not be overloaded
+    static HostFunction of(String name, Class<?> owner, String method) {
+        Method found = null;
+        for (Method candidate : owner.getMethods()) {
+            if (!candidate.getName().equals(method) || !Modifier.isStatic(candidate.getModifiers())) continue;
+            if (found != null) throw new IllegalArgumentException(owner.getName() + "." + method + " is overloaded.");
+            found = candidate;
+        }
+        if (found == null) throw new IllegalArgumentException("No static method " + owner.getName() + "." + method + ".");
+
+        try {
+            return new HostFunction(name, LOOKUP.unreflect(found));
+        } catch (IllegalAccessException error) {
+            throw new IllegalArgumentException(error);
+        }
+    }
+
+    // Binds a public static method that can't fail as an intrinsic
+    static HostFunction intrinsic(String name, Class<?> owner, String method, MethodType type) {
+        try {
+            return new HostFunction(name, LOOKUP.findStatic(owner, method, type),
+                owner.getName().replace('.', '/'), method);
+        } catch (ReflectiveOperationException error) {
+            throw new LinkageError("Missing " + method, error);
+        }
+    }
+
+    private static HostFunction bind(String name, Class<?> face, String method, Object function, MethodType type) {
+        try {
+            return new HostFunction(name, LOOKUP.findVirtual(face, method, type).bindTo(function));
+        } catch (ReflectiveOperationException error) {
+            throw new LinkageError("Missing " + method, error);
+        }
+    }
+
+    // Whether it takes and returns only numbers, so compiled numeric code can call it directly
+    boolean numeric() {
+        MethodType type = handle.type();
+        if (type.returnType() != double.class) return false;
+        for (Class<?> parameter : type.parameterArray()) {
+            if (parameter != double.class) return false;
+        }
+        return true;
+    }
+
+    // Whether arguments are of the types the handle takes, so unboxing them can't fail
+    boolean accepts(Object[] arguments) {
+        for (int i = 0; i < arguments.length; i++) {
+            if (describe(handle.type().parameterType(i), arguments[i]) != null) return false;
+        }
+        return true;
+    }
+
+    // Returns what a parameter takes if a value doesn't fit it, or null if it does
+    private static String describe(Class<?> parameter, Object value) {
+        if (parameter == double.class) return Operators.isNumber(value) ? null : "a number";
+        if (parameter == boolean.class) return value instanceof Boolean ? null : "vera or malvera";
+        if (parameter == String.class) return value instanceof String ? null : "a string";
+        return null;
+    }
+
+    @Override
+    public int arity() {
+        return handle.type().parameterCount();
+    }
+
+    @Override
+    public Object call(Interpreter interpreter, List<Object> arguments) {
+        return call(arguments.toArray());
+    }
+
+    // Calls it with arguments already in an array, which callers that know they have a host
+    // function use rather than building a list
+    Object call(Object[] values) {
+        for (int i = 0; i < values.length; i++) {
+            String expected = describe(handle.type().parameterType(i), values[i]);
+            if (expected != null) {
+                throw new RuntimeError("Argument " + (i + 1) + " of '" + name + "' must be " + expected + ".");
+            }
+        }
+
+        try {
+            return (Object)spread.invokeExact(values);
+        } catch (RuntimeException | Error error) {
+            throw error;
+        } catch (Throwable error) {
+            throw new IllegalStateException(error);
+        }
+    }
+
+    @Override
+    public String toString() { return "<native fn>"; }
+}
@@ -1,42 +1,148 @@
 package utopiascript;
 
+import java.io.BufferedReader;
+import java.io.PrintStream;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 
 class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     // fixed reference to outermost global environment
-    final Environment globals = new Environment();
+    final GlobalEnvironment globals;
     // current environemnt
-    private Environment environment = globals;
+    private Environment environment;
+    // collects timings and counts when running with --profile
+    Profiler profiler;
+    // compiles hot functions to bytecode when running with --jit
+    boolean jit = false;
+    // runs code through the node methods GenerateAst emits rather than the visitor, with --nodes
+    boolean nodes = false;
+    // runs code with its call stack on the heap, with --deep, or null
+    StackMachine machine = null;
+    // the script functions this interpreter is running, for traces
+    final CallStack calls = new CallStack();
+    // the scopes of finished blocks and calls, reused by later ones
+    final Environment.Pool scopes = new Environment.Pool();
+    // number of script functions currently executing, tracked for Metrics
+    int callDepth = 0;
+    // the modules loaded so far, shared by every interpreter of the engine
+    final Modules modules;
+    // where presi writes, which a batch run captures for each script
+    PrintStream out = System.out;
+    // where legi_linion reads, or null for standard input, which a daemon's scripts don't have
+    BufferedReader in = null;
+    // where the running script is, which imports are relative to
+    Path directory = Paths.get("");
 
     Interpreter() {
+        this(new Modules());
+    }
+
+    // Host functions are shared by every interpreter, so code compiled against one's globals
+    // still finds the same function in another's
+    private static final HostFunction CLOCK =
+        HostFunction.of("clock", () -> (double)System.currentTimeMillis() / 1000.0);
+
+    // Creates an interpreter with globals of its own that loads modules through a shared cache
+    Interpreter(Modules modules) {
+        this(new GlobalEnvironment(), modules);
+
         // define a library function for determining time
-        globals.define("clock", new UtopiaScriptCallable() {
-            @Override
-            public int arity() { return 0; }
+        globals.define("clock", CLOCK);
 
-            @Override
-            public Object call(Interpreter interpreter, List<Object> arguments) {
-                return (double)System.currentTimeMillis() / 1000.0;
-            }
+        MathNatives.define(globals);
+        IterationNatives.define(globals);
+        ParallelNatives.define(globals);
+        IoNatives.define(globals);
+    }
+
+    // Shares an existing global environment without redefining the natives
+    private Interpreter(GlobalEnvironment globals, Modules modules) {
+        this.globals = globals;
+        this.environment = globals;
+        this.modules = modules;
+    }
 
-            @Override
-            public String toString() { return "<native fn>"; };
-        });
+    // Creates an interpreter for running script code on another thread.
+    // The current environment is per-thread state, so each worker needs its own interpreter,
+    // while the globals are shared.
+    Interpreter worker() {
+        Interpreter worker = new Interpreter(globals, modules);
+        worker.jit = jit;
+        worker.nodes = nodes;
+        if (machine != null) worker.machine = new StackMachine(worker, machine.maxDepth);
+        // a worker's traces end at the call that started it
+        worker.calls.site = calls.site;
+        worker.directory = directory;
+        worker.out = out;
+        worker.in = in;
+        return worker;
+    }
+
+    // Creates an interpreter to run a module in, with the same settings as this one
+    Interpreter module(Path directory) {
+        Interpreter module = new Interpreter(modules);
+        module.jit = jit;
+        module.nodes = nodes;
+        if (machine != null) module.machine = new StackMachine(module, machine.maxDepth);
+        module.profiler = profiler;
+        module.directory = directory;
+        module.out = out;
+        module.in = in;
+        return module;
     }
 
     void interpret(List<Stmt> statements){
+        Metrics.ExecutionEvent event = null;
+        long start = 0;
+        if (Metrics.ENABLED) {
+            event = new Metrics.ExecutionEvent();
+            event.begin();
+            start = System.nanoTime();
+        }
+
         try {
-            for (Stmt statement : statements){
-                execute(statement);
-            }
+            execute(statements);
         } catch(RuntimeError error) {
+            if (Metrics.ENABLED) Metrics.runtimeError(error);
+            UtopiaScript.runtimeError(error);
+        } finally {
+            if (Metrics.ENABLED) {
+                Metrics.executed(System.nanoTime() - start);
+                event.statements = statements.size();
+                event.commit();
+            }
+        }
+    }
+
+    // Runs code in the flat representation, reporting runtime errors like interpret
+    void interpret(FlatAst code) {
+        Metrics.ExecutionEvent event = null;
+        long start = 0;
+        if (Metrics.ENABLED) {
+            event = new Metrics.ExecutionEvent();
+            event.begin();
+            start = System.nanoTime();
+        }
+
+        try {
+            code.run(this);
+        } catch (RuntimeError error) {
+            if (Metrics.ENABLED) Metrics.runtimeError(error);
             UtopiaScript.runtimeError(error);
+        } finally {
+            if (Metrics.ENABLED) {
+                Metrics.executed(System.nanoTime() - start);
+                event.statements = code.statements();
+                event.commit();
+            }
         }
     }
 
     // Stringifies an object for output
-    private String stringify(Object object) {
+    static String stringify(Object object) {
         if (object == null) return "nenio";
         if (object == Boolean.TRUE) return "vera";
         if (object == Boolean.FALSE) return "malvera";
@@ -92,8 +198,7 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
         switch (expr.operator.type){
             case MINUS:
-                checkNumberOperand(expr.operator, right);
-                return -(double)right;
+                return Operators.negate(expr.operator, right);
             case BANG:
                 return !isTruthy(right);
             default:
@@ -103,16 +208,6 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         return null;
     }
 
-    private void checkNumberOperand(Token operator, Object operand){
-        if (operand instanceof Double) return;
-        throw new RuntimeError(operator, "Operand must be a number.");
-    }
-
-    private void checkNumberOperand(Token operator, Object left, Object right){
-        if (left instanceof Double && right instanceof Double) return;
-        throw new RuntimeError(operator, "Operands must be numbers.");
-    }
-
     // Interprets a binary expression
     // A binary expression is of the form: left operator right
     @Override
@@ -120,70 +215,31 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         Object right = evaluate(expr.right);
         Object left = evaluate(expr.left);
 
-        switch(expr.operator.type) {
-            case GREATER:
-                checkNumberOperand(expr.operator, left, right);
-                return (double)left > (double)right;
-
-            case GREATER_EQUAL:
-                checkNumberOperand(expr.operator, left, right);
-                return (double)left >= (double)right;
-
-            case LESS:
-                checkNumberOperand(expr.operator, left, right);
-                return (double)left < (double)right;
-
-            case LESS_EQUAL:
-                checkNumberOperand(expr.operator, left, right);
-                return (double)left <= (double)right;
-
-            case MINUS:
-                checkNumberOperand(expr.operator, left, right);
-                return (double)left - (double)right;
-
-            case PLUS:
-                if (left instanceof Double && right instanceof Double){
-                    return (double)left + (double)right;
-                }
-                if (left instanceof String && right instanceof String){
-                    return (String)left + (String)right;
-                }
-                if (left instanceof String) {
-                    return (String)left + stringify(right);
-                }
-                if (right instanceof String){
-                    return stringify(left) + (String)right;
-                }
-
-                throw new RuntimeError(expr.operator, "Operands must be two numbers or two strings.");
-
-            case SLASH:
-                checkNumberOperand(expr.operator, left, right);
-                if ((double)right == 0.0){
-                    throw new RuntimeError(expr.operator, "Cannot divide by zero.");
-                }
-                return (double)left / (double)right;
-
-            case STAR:
-                checkNumberOperand(expr.operator, left, right);
-                return (double)left * (double)right;
-
-            case BANG_EQUAL: return !isEqual(left, right);
-
-            case EQUAL_EQUAL: return isEqual(left, right);
-
-            default:
-                break;
-        }
-
-        return null;
+        return Operators.binary(expr.operator, left, right);
     }
 
     private Object evaluate(Expr expr){
         return expr.accept(this);
     }
 
+    // Runs statements, leaving runtime errors to the caller.
+    // Profiled runs always go through the visitor, which is what reports lines.
+    void execute(List<Stmt> statements) {
+        if ((machine != null || nodes) && profiler == null) {
+            Object result = machine != null ? machine.execute(statements, environment) :
+                Nodes.execute(statements, new Frame(this, environment));
+            // a return outside any function ends up where the visitor's would
+            if (result != Frame.NORMAL) throw new Return(result);
+            return;
+        }
+
+        for (Stmt statement : statements) {
+            execute(statement);
+        }
+    }
+
     private void execute(Stmt stmt){
+        if (profiler != null) profiler.line(stmt.line);
         stmt.accept(this);
     }
 
@@ -197,30 +253,23 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     @Override
     public Void visitPrintStmt(Stmt.Print stmt){
         Object value = evaluate(stmt.expression);
-        System.out.println(stringify(value));
+        out.println(stringify(value));
         return null;
     }
 
     // Helper to check if an object should be evaluated to true or false
-    private boolean isTruthy(Object object){
+    static boolean isTruthy(Object object){
         if (object == null) return false;
         if (object instanceof Boolean) return (boolean)object;
 
         return true;
     }
 
-    // Helper to check if two objects should be considered equal or not
-    private boolean isEqual(Object a, Object b) {
-        if (a == null && b == null) return true;
-        if (a == null) return false;
-        return a.equals(b);
-    }
-
     // Interprets a variable expression
     // Grabs the value for the variable from the environment's map of values to values
     @Override 
     public Object visitVariableExpr(Expr.Variable expr) {
-        Object value = environment.get(expr.name);
+        Object value = environment.get(expr);
         if (value == null) {
             throw new RuntimeError(expr.name, "Cannot access a variable that has not been initialized or assigned to");
         }
@@ -237,7 +286,7 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
             value = evaluate(stmt.initializer);
         }
 
-        environment.define(stmt.name.lexeme, value);
+        environment.define(stmt.name.symbol, value);
         return null;
     }
 
@@ -245,13 +294,18 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     @Override
     public Object visitAssignExpr(Expr.Assign expr) {
         Object value = evaluate(expr.value);
-        environment.assign(expr.name, value);
+        environment.assign(expr, value);
         return value;
     }
 
     @Override
     public Void visitBlockStmt(Stmt.Block stmt) {
-        executeBlock(stmt.statements, new Environment(environment));
+        Environment scope = scopes.acquire(environment);
+        try {
+            executeBlock(stmt.statements, scope);
+        } finally {
+            scopes.release(scope);
+        }
         return null;
     }
 
@@ -298,8 +352,17 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     public Object visitCallExpr(Expr.Call expr) {
         Object callee = evaluate(expr.callee);
 
+        // host functions take their arguments in an array, so the list is skipped
+        if (callee instanceof HostFunction && profiler == null) {
+            Object[] arguments = new Object[expr.arguments.size()];
+            for (int i = 0; i < arguments.length; i++) {
+                arguments[i] = evaluate(expr.arguments.get(i));
+            }
+            return Operators.call(expr.paren, (HostFunction)callee, arguments);
+        }
+
         // evaluate and store the argument values
-        List<Object> arguments = new ArrayList<>();
+        List<Object> arguments = new ArrayList<>(expr.arguments.size());
         for (Expr argument : expr.arguments) {
             arguments.add(evaluate(argument));
         }
@@ -319,14 +382,22 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
             arguments.size() + ".");
         }
 
-        return function.call(this, arguments);
+        calls.site = expr.paren.line;
+        try {
+            if (profiler != null) return profiler.call(this, expr, function, arguments);
+            return function.call(this, arguments);
+        } catch (RuntimeError error) {
+            // errors raised by natives carry no token, so report them at the call site
+            if (error.token == null) throw new RuntimeError(expr.paren, error.getMessage());
+            throw error;
+        }
     } 
 
     // Interprets a function declaration
     @Override
     public Void visitFunctionStmt(Stmt.Function stmt) {
         UtopiaScriptFunction function = new UtopiaScriptFunction(stmt);
-        environment.define(stmt.name.lexeme, function);
+        environment.define(stmt.name.symbol, function);
         return null;
     }
 
@@ -341,4 +412,13 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
         throw new Return(value);
     }
+
+    // Defines what a module exports in the current scope, running the module on its first import
+    @Override
+    public Void visitImportStmt(Stmt.Import stmt) {
+        for (Map.Entry<Symbol, Object> export : modules.load(this, stmt).entrySet()) {
+            environment.define(export.getKey(), export.getValue());
+        }
+        return null;
+    }
 }
@@ -0,0 +1,18 @@
+package utopiascript;
+
+import java.util.Map;
+
+// The interpreter metrics exported over JMX when running with -Dutopiascript.metrics=true.
+// Histograms are arrays of counts where bucket 0 holds durations under 1 microsecond
+// and bucket i holds durations from 2^(i-1) up to 2^i microseconds.
+public interface InterpreterMetricsMXBean {
+    long getScriptsExecuted();
+    long getParseTimeNanos();
+    long[] getParseTimeHistogram();
+    long getExecutionTimeNanos();
+    long[] getExecutionTimeHistogram();
+    long getCalls();
+    long getEnvironmentAllocations();
+    long getPeakCallDepth();
+    Map<String, Long> getRuntimeErrors();
+}
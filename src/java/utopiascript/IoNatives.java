@@ -0,0 +1,298 @@
+package utopiascript;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+// Library functions for reading and writing text.
+// Input is exposed as lazy iterators, so a script can stream a file of any size
+// through 'por (linio en dosieraj_linioj(vojo))' in constant memory.
+class IoNatives {
+    private static BufferedReader stdin;
+
+    // writers the script has not closed yet, flushed when the process exits
+    private static final Set<Writer> openWriters = new LinkedHashSet<>();
+
+    static {
+        Runtime.getRuntime().addShutdownHook(new Thread(IoNatives::closeAll));
+    }
+
+    // Natives with side effects. These are never run on parallel workers.
+    abstract static class Effectful implements UtopiaScriptCallable {
+        private final int arity;
+
+        Effectful(int arity) {
+            this.arity = arity;
+        }
+
+        @Override
+        public int arity() { return arity; }
+
+        @Override
+        public String toString() { return "<native fn>"; }
+    }
+
+    // A buffered output file opened by malfermi_skribe
+    private static class Writer {
+        final String path;
+        BufferedWriter writer;
+
+        Writer(String path, BufferedWriter writer) {
+            this.path = path;
+            this.writer = writer;
+        }
+
+        @Override
+        public String toString() { return "<writer " + path + ">"; }
+    }
+
+    // The REPL and scripts share one buffered reader, so neither loses input buffered by the other
+    static synchronized BufferedReader stdin() {
+        if (stdin == null) {
+            stdin = new BufferedReader(new InputStreamReader(System.in));
+        }
+        return stdin;
+    }
+
+    // Where an interpreter's scripts read input from
+    private static BufferedReader input(Interpreter interpreter) {
+        return interpreter.in != null ? interpreter.in : stdin();
+    }
+
+    static void define(Environment globals) {
+        // legi_linion() reads a line from standard input, or returns malvera at the end of input,
+        // since a variable can't hold nenio: dum (linio) reads to the end, as even "" is true
+        globals.define("legi_linion", new Effectful(0) {
+            @Override
+            public Object call(Interpreter interpreter, List<Object> arguments) {
+                try {
+                    String line = input(interpreter).readLine();
+                    return line != null ? line : Boolean.FALSE;
+                } catch (IOException error) {
+                    throw new RuntimeError("Could not read standard input: " + error.getMessage());
+                }
+            }
+        });
+
+        // eniraj_linioj() lazily iterates over the remaining lines of standard input
+        globals.define("eniraj_linioj", new Effectful(0) {
+            @Override
+            public Object call(Interpreter interpreter, List<Object> arguments) {
+                return lines(input(interpreter), "standard input", false);
+            }
+        });
+
+        // dosieraj_linioj(vojo) lazily iterates over the lines of a file
+        globals.define("dosieraj_linioj", new Effectful(1) {
+            @Override
+            public Object call(Interpreter interpreter, List<Object> arguments) {
+                String path = string(arguments.get(0));
+                try {
+                    // unlike Files.newBufferedReader, the reader replaces malformed input instead of failing
+                    return lines(new BufferedReader(new InputStreamReader(
+                        Files.newInputStream(Paths.get(path)), Charset.defaultCharset())), path, true);
+                } catch (IOException error) {
+                    throw new RuntimeError("Could not open file '" + path + "': " + error.getMessage());
+                }
+            }
+        });
+
+        // dosieraj_pecoj(vojo, grandeco) lazily iterates over a file as strings decoded
+        // from chunks of at most grandeco bytes
+        globals.define("dosieraj_pecoj", new Effectful(2) {
+            @Override
+            public Object call(Interpreter interpreter, List<Object> arguments) {
+                String path = string(arguments.get(0));
+                Object size = arguments.get(1);
+                if (!Operators.isNumber(size) || Operators.number(size) < 1) {
+                    throw new RuntimeError("Chunk size must be a positive number.");
+                }
+
+                try {
+                    return chunks(FileChannel.open(Paths.get(path), StandardOpenOption.READ),
+                        (int)Operators.number(size), path);
+                } catch (IOException error) {
+                    throw new RuntimeError("Could not open file '" + path + "': " + error.getMessage());
+                }
+            }
+        });
+
+        // malfermi_skribe(vojo) opens a file for buffered writing, replacing its contents
+        globals.define("malfermi_skribe", new Effectful(1) {
+            @Override
+            public Object call(Interpreter interpreter, List<Object> arguments) {
+                String path = string(arguments.get(0));
+                try {
+                    Writer writer = new Writer(path, new BufferedWriter(new OutputStreamWriter(
+                        Files.newOutputStream(Paths.get(path)), Charset.defaultCharset())));
+                    synchronized (openWriters) {
+                        openWriters.add(writer);
+                    }
+                    return writer;
+                } catch (IOException error) {
+                    throw new RuntimeError("Could not open file '" + path + "': " + error.getMessage());
+                }
+            }
+        });
+
+        // skribi(skribilo, valoro) writes a value to an open file
+        globals.define("skribi", new Effectful(2) {
+            @Override
+            public Object call(Interpreter interpreter, List<Object> arguments) {
+                Writer writer = writer(arguments.get(0));
+                try {
+                    writer.writer.write(Interpreter.stringify(arguments.get(1)));
+                } catch (IOException error) {
+                    throw new RuntimeError("Could not write file '" + writer.path + "': " + error.getMessage());
+                }
+                return null;
+            }
+        });
+
+        // fermi(skribilo) flushes and closes a file opened by malfermi_skribe
+        globals.define("fermi", new Effectful(1) {
+            @Override
+            public Object call(Interpreter interpreter, List<Object> arguments) {
+                Writer writer = writer(arguments.get(0));
+                synchronized (openWriters) {
+                    openWriters.remove(writer);
+                }
+                try {
+                    writer.writer.close();
+                } catch (IOException error) {
+                    throw new RuntimeError("Could not write file '" + writer.path + "': " + error.getMessage());
+                } finally {
+                    writer.writer = null;
+                }
+                return null;
+            }
+        });
+    }
+
+    private static String string(Object value) {
+        if (value instanceof String) return (String)value;
+        throw new RuntimeError("Operand must be a string.");
+    }
+
+    private static Writer writer(Object value) {
+        if (!(value instanceof Writer)) {
+            throw new RuntimeError("Operand must be a file opened with malfermi_skribe.");
+        }
+
+        Writer writer = (Writer)value;
+        if (writer.writer == null) {
+            throw new RuntimeError("Cannot use " + writer + " after it has been closed.");
+        }
+        return writer;
+    }
+
+    // Reads one line ahead; the reader is closed once it is exhausted if the iterator owns it
+    private static UtopiaScriptIterator lines(BufferedReader reader, String name, boolean owned) {
+        return new UtopiaScriptIterator() {
+            private String line;
+            private boolean done = false;
+
+            @Override
+            public boolean hasNext() {
+                if (line != null) return true;
+                if (done) return false;
+
+                try {
+                    line = reader.readLine();
+                    if (line == null) {
+                        done = true;
+                        if (owned) reader.close();
+                    }
+                } catch (IOException error) {
+                    throw new RuntimeError("Could not read " + name + ": " + error.getMessage());
+                }
+                return line != null;
+            }
+
+            @Override
+            public Object next() {
+                if (!hasNext()) throw new NoSuchElementException();
+                String result = line;
+                line = null;
+                return result;
+            }
+        };
+    }
+
+    // Decodes a channel chunk by chunk. A character split across two chunks is carried over
+    // by the decoder, so every element is valid text.
+    private static UtopiaScriptIterator chunks(FileChannel channel, int size, String name) {
+        CharsetDecoder decoder = Charset.defaultCharset().newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        ByteBuffer bytes = ByteBuffer.allocate(size);
+        CharBuffer chars = CharBuffer.allocate((int)Math.ceil(size * (double)decoder.maxCharsPerByte()) + 1);
+
+        return new UtopiaScriptIterator() {
+            private String chunk;
+            private boolean done = false;
+
+            @Override
+            public boolean hasNext() {
+                try {
+                    while (chunk == null && !done) {
+                        if (channel.read(bytes) < 0) {
+                            bytes.flip();
+                            decoder.decode(bytes, chars, true);
+                            decoder.flush(chars);
+                            done = true;
+                            channel.close();
+                        } else {
+                            bytes.flip();
+                            decoder.decode(bytes, chars, false);
+                            bytes.compact();
+                        }
+
+                        chars.flip();
+                        if (chars.hasRemaining()) chunk = chars.toString();
+                        chars.clear();
+                    }
+                } catch (IOException error) {
+                    throw new RuntimeError("Could not read " + name + ": " + error.getMessage());
+                }
+                return chunk != null;
+            }
+
+            @Override
+            public Object next() {
+                if (!hasNext()) throw new NoSuchElementException();
+                String result = chunk;
+                chunk = null;
+                return result;
+            }
+        };
+    }
+
+    private static void closeAll() {
+        synchronized (openWriters) {
+            for (Writer writer : openWriters) {
+                try {
+                    writer.writer.close();
+                } catch (IOException error) {
+                    System.err.println("Could not write file '" + writer.path + "': " + error.getMessage());
+                }
+            }
+            openWriters.clear();
+        }
+    }
+}
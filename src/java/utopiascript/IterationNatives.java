@@ -0,0 +1,169 @@
+package utopiascript;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+// Library functions for building lazy pipelines over iterators.
+// mapi and filtri wrap their source without reading from it, so a chain like
+// redukti(filtri(mapi(xs, f), g), h, 0) pulls each element through every stage
+// in a single pass and never materializes an intermediate collection.
+class IterationNatives {
+    // Natives that call a function they are given, so they are only as pure as that function
+    abstract static class HigherOrder implements UtopiaScriptCallable {
+        private final int arity;
+        // the position of the argument they call
+        final int function;
+
+        HigherOrder(int arity, int function) {
+            this.arity = arity;
+            this.function = function;
+        }
+
+        @Override
+        public int arity() { return arity; }
+
+        @Override
+        public String toString() { return "<native fn>"; }
+    }
+
+    static void define(Environment globals) {
+        // intervalo(komenco, fino) yields the numbers komenco, komenco + 1, ... below fino,
+        // which are integers when komenco is
+        globals.define("intervalo", new UtopiaScriptCallable() {
+            @Override
+            public int arity() { return 2; }
+
+            @Override
+            public Object call(Interpreter interpreter, List<Object> arguments) {
+                double end = number(arguments.get(1));
+                if (arguments.get(0) instanceof Long) {
+                    long start = (long)arguments.get(0);
+                    return new UtopiaScriptIterator() {
+                        private long current = start;
+
+                        @Override
+                        public boolean hasNext() { return current < end; }
+
+                        @Override
+                        public Object next() {
+                            if (!hasNext()) throw new NoSuchElementException();
+                            return current++;
+                        }
+                    };
+                }
+
+                double start = number(arguments.get(0));
+                return new UtopiaScriptIterator() {
+                    private double current = start;
+
+                    @Override
+                    public boolean hasNext() { return current < end; }
+
+                    @Override
+                    public Object next() {
+                        if (!hasNext()) throw new NoSuchElementException();
+                        return current++;
+                    }
+                };
+            }
+
+            @Override
+            public String toString() { return "<native fn>"; }
+        });
+
+        // mapi(xs, funkcio) lazily applies funkcio to every element of xs
+        globals.define("mapi", new HigherOrder(2, 1) {
+            @Override
+            public Object call(Interpreter interpreter, List<Object> arguments) {
+                UtopiaScriptIterator source = UtopiaScriptIterator.from(arguments.get(0));
+                UtopiaScriptCallable function = callable(arguments.get(1), 1);
+
+                return new UtopiaScriptIterator() {
+                    @Override
+                    public boolean hasNext() { return source.hasNext(); }
+
+                    @Override
+                    public Object next() {
+                        return function.call(interpreter, Collections.singletonList(source.next()));
+                    }
+                };
+            }
+        });
+
+        // filtri(xs, funkcio) lazily keeps the elements of xs for which funkcio is truthy
+        globals.define("filtri", new HigherOrder(2, 1) {
+            @Override
+            public Object call(Interpreter interpreter, List<Object> arguments) {
+                UtopiaScriptIterator source = UtopiaScriptIterator.from(arguments.get(0));
+                UtopiaScriptCallable predicate = callable(arguments.get(1), 1);
+
+                return new UtopiaScriptIterator() {
+                    // one element of lookahead, since nenio is a valid element
+                    private boolean buffered = false;
+                    private Object element;
+
+                    @Override
+                    public boolean hasNext() {
+                        while (!buffered && source.hasNext()) {
+                            Object candidate = source.next();
+                            if (Interpreter.isTruthy(predicate.call(interpreter,
+                                    Collections.singletonList(candidate)))) {
+                                element = candidate;
+                                buffered = true;
+                            }
+                        }
+                        return buffered;
+                    }
+
+                    @Override
+                    public Object next() {
+                        if (!hasNext()) throw new NoSuchElementException();
+                        buffered = false;
+                        Object result = element;
+                        element = null;
+                        return result;
+                    }
+                };
+            }
+        });
+
+        // redukti(xs, funkcio, komenco) folds xs from the left, consuming it
+        globals.define("redukti", new HigherOrder(3, 1) {
+            @Override
+            public Object call(Interpreter interpreter, List<Object> arguments) {
+                UtopiaScriptIterator source = UtopiaScriptIterator.from(arguments.get(0));
+                UtopiaScriptCallable function = callable(arguments.get(1), 2);
+
+                Object accumulator = arguments.get(2);
+                while (source.hasNext()) {
+                    accumulator = function.call(interpreter,
+                        Arrays.asList(accumulator, source.next()));
+                }
+
+                return accumulator;
+            }
+        });
+    }
+
+    private static double number(Object value) {
+        if (Operators.isNumber(value)) return Operators.number(value);
+        throw new RuntimeError("Operand must be a number.");
+    }
+
+    // checks that a value passed to a native can be called with the given number of arguments
+    static UtopiaScriptCallable callable(Object value, int arity) {
+        if (!(value instanceof UtopiaScriptCallable)) {
+            throw new RuntimeError("Can only call functions and classes");
+        }
+
+        UtopiaScriptCallable function = (UtopiaScriptCallable)value;
+        if (function.arity() != arity) {
+            throw new RuntimeError("Expected " + function.arity() +
+                " arguments but got " + arity + ".");
+        }
+
+        return function;
+    }
+}
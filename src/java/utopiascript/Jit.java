@@ -0,0 +1,157 @@
+package utopiascript;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+// Compiles hot functions to JVM bytecode, enabled with --jit.
+// A function is compiled once it has been called HOT_CALLS times. The compiled code is a hidden
+// class in this package, which HotSpot then optimizes like any other Java code. Functions are
+// compiled by the NumericCompiler when they only do arithmetic, and by the DynamicCompiler
+// otherwise. Functions neither can handle keep running in the tree-walker.
+// A native image can't define classes at run time, so there --jit compiles nothing.
+class Jit {
+    static final int HOT_CALLS = 1000;
+    // whether this is a JVM rather than a native image, which sets this property
+    static final boolean AVAILABLE = System.getProperty("org.graalvm.nativeimage.imagecode") == null;
+
+    // The entry point of a compiled function, taking the same arguments as UtopiaScriptCallable.
+    // Returns null when the call has to be run by the interpreter instead.
+    interface Compiled {
+        Object invoke(Interpreter interpreter, List<Object> arguments);
+    }
+
+    // Thrown by compiled code when it reaches something it doesn't handle, such as a division by
+    // zero or the end of the function body. An integer overflow throws ArithmeticException
+    // instead. Compiled code has no side effects, so the call can simply be run again in the
+    // tree-walker, which then behaves exactly as it would have.
+    static final class Deoptimize extends RuntimeException {
+        static final Deoptimize INSTANCE = new Deoptimize();
+
+        private Deoptimize() {
+            super(null, null, false, false);
+        }
+    }
+
+    // marks functions that failed to compile or deoptimized, so they are not tried again
+    private static final Compiled NOT_COMPILED = (interpreter, arguments) -> null;
+
+    // Code from the NumericCompiler only takes numbers of the types it was compiled for, and calls
+    // itself and the host functions it was compiled against directly, which is only right while
+    // their names are bound to them
+    private static final class Numeric implements Compiled {
+        private final Stmt.Function declaration;
+        private final Compiled code;
+        // 'J' for each parameter that takes a Long and 'D' for each that takes a Double
+        private final String parameters;
+        private final Map<Symbol, HostFunction> hosts;
+
+        Numeric(Stmt.Function declaration, Compiled code, String parameters, Map<Symbol, HostFunction> hosts) {
+            this.declaration = declaration;
+            this.code = code;
+            this.parameters = parameters;
+            this.hosts = hosts;
+        }
+
+        @Override
+        public Object invoke(Interpreter interpreter, List<Object> arguments) {
+            for (int i = 0; i < arguments.size(); i++) {
+                Object argument = arguments.get(i);
+                if (!(parameters.charAt(i) == 'J' ? argument instanceof Long : argument instanceof Double)) {
+                    return null;
+                }
+            }
+            Object bound = interpreter.globals.value(declaration.name.symbol);
+            if (!(bound instanceof UtopiaScriptFunction) ||
+                    ((UtopiaScriptFunction)bound).declaration != declaration) {
+                return null;
+            }
+            for (Map.Entry<Symbol, HostFunction> host : hosts.entrySet()) {
+                if (interpreter.globals.value(host.getKey()) != host.getValue()) return null;
+            }
+
+            try {
+                return code.invoke(interpreter, arguments);
+            } catch (Deoptimize | ArithmeticException deoptimize) {
+                // whatever made it bail out, such as an integer overflowing, is likely to happen again
+                declaration.compiled = NOT_COMPILED;
+                return null;
+            }
+        }
+    }
+
+    // Code from the DynamicCompiler handles any arguments. Its run method is also what
+    // call sites in other compiled functions link to.
+    private static final class Dynamic implements Compiled {
+        final MethodHandle run;
+        private final MethodHandle spread;
+
+        Dynamic(MethodHandle run) {
+            this.run = run;
+            this.spread = run.asSpreader(Object[].class, run.type().parameterCount() - 1);
+        }
+
+        @Override
+        public Object invoke(Interpreter interpreter, List<Object> arguments) {
+            try {
+                return (Object)spread.invokeExact(interpreter, arguments.toArray());
+            } catch (RuntimeException | Error error) {
+                throw error;
+            } catch (Throwable error) {
+                throw new IllegalStateException(error);
+            }
+        }
+    }
+
+    // Runs a call in compiled code if the function is hot and compilable.
+    // Returns null when the call has to be run by the interpreter instead.
+    static Object call(Interpreter interpreter, UtopiaScriptFunction function, List<Object> arguments) {
+        Stmt.Function declaration = function.declaration;
+        Compiled compiled = declaration.compiled;
+        if (compiled == null) {
+            if (++declaration.calls < HOT_CALLS) return null;
+            compiled = compile(declaration, interpreter.globals, arguments);
+            declaration.compiled = compiled;
+        }
+
+        return compiled.invoke(interpreter, arguments);
+    }
+
+    // The run method of a function compiled by the DynamicCompiler, or null
+    static MethodHandle entry(Stmt.Function declaration) {
+        Compiled compiled = declaration.compiled;
+        return compiled instanceof Dynamic ? ((Dynamic)compiled).run : null;
+    }
+
+    // Host functions are looked up in the globals of the interpreter that made the function hot,
+    // and numeric code is compiled for the types of the arguments of the call that did
+    private static Compiled compile(Stmt.Function declaration, GlobalEnvironment globals, List<Object> arguments) {
+        if (!AVAILABLE) return NOT_COMPILED;
+        try {
+            NumericCompiler.Output numeric = NumericCompiler.compile(declaration, globals, arguments);
+            if (numeric != null) {
+                List<MethodHandle> handles = new ArrayList<>();
+                for (HostFunction host : numeric.hosts.values()) {
+                    handles.add(host.handle);
+                }
+                Class<?> compiledClass = MethodHandles.lookup()
+                    .defineHiddenClassWithClassData(numeric.bytes, List.copyOf(handles), true).lookupClass();
+                Compiled code = (Compiled)compiledClass.getDeclaredConstructor().newInstance();
+                return new Numeric(declaration, code, numeric.parameters, numeric.hosts);
+            }
+
+            byte[] bytes = DynamicCompiler.compile(declaration);
+            if (bytes != null) {
+                MethodHandles.Lookup lookup = MethodHandles.lookup().defineHiddenClass(bytes, true);
+                return new Dynamic(lookup.findStatic(lookup.lookupClass(), "run",
+                    DynamicCompiler.runType(declaration.params.size())));
+            }
+        } catch (ReflectiveOperationException | LinkageError error) {
+            // a class the verifier rejects is a compiler bug, but the interpreter can still run it
+        }
+        return NOT_COMPILED;
+    }
+}
@@ -0,0 +1,230 @@
+package utopiascript;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Reads and writes JSON, for the language server.
+// Objects are Maps, arrays are Lists, numbers are Doubles and null is null.
+final class Json {
+    static final class ParseError extends RuntimeException {
+        ParseError(String message) {
+            super(message);
+        }
+    }
+
+    private final String text;
+    private int current = 0;
+
+    private Json(String text) {
+        this.text = text;
+    }
+
+    static Object parse(String text) {
+        Json json = new Json(text);
+        Object value = json.value();
+        json.whitespace();
+        if (json.current != text.length()) throw json.error("Unexpected text after the value.");
+        return value;
+    }
+
+    static String write(Object value) {
+        StringBuilder builder = new StringBuilder();
+        write(builder, value);
+        return builder.toString();
+    }
+
+    // Builds an object from alternating keys and values
+    static Map<String, Object> object(Object... entries) {
+        Map<String, Object> object = new LinkedHashMap<>();
+        for (int i = 0; i < entries.length; i += 2) {
+            object.put((String)entries[i], entries[i + 1]);
+        }
+        return object;
+    }
+
+    private Object value() {
+        whitespace();
+        if (current == text.length()) throw error("Expect a value.");
+
+        char c = text.charAt(current);
+        switch (c) {
+            case '{': return object();
+            case '[': return array();
+            case '"': return string();
+            case 't': return literal("true", Boolean.TRUE);
+            case 'f': return literal("false", Boolean.FALSE);
+            case 'n': return literal("null", null);
+            default:
+                if (c == '-' || (c >= '0' && c <= '9')) return number();
+                throw error("Unexpected character.");
+        }
+    }
+
+    private Map<String, Object> object() {
+        Map<String, Object> object = new LinkedHashMap<>();
+        current++;
+        whitespace();
+        if (match('}')) return object;
+
+        do {
+            whitespace();
+            if (current == text.length() || text.charAt(current) != '"') throw error("Expect a key.");
+            String key = string();
+            whitespace();
+            expect(':');
+            object.put(key, value());
+            whitespace();
+        } while (match(','));
+
+        expect('}');
+        return object;
+    }
+
+    private List<Object> array() {
+        List<Object> array = new ArrayList<>();
+        current++;
+        whitespace();
+        if (match(']')) return array;
+
+        do {
+            array.add(value());
+            whitespace();
+        } while (match(','));
+
+        expect(']');
+        return array;
+    }
+
+    private String string() {
+        StringBuilder builder = new StringBuilder();
+        current++;
+        while (current < text.length()) {
+            char c = text.charAt(current++);
+            if (c == '"') return builder.toString();
+            if (c != '\\') {
+                builder.append(c);
+                continue;
+            }
+
+            if (current == text.length()) break;
+            char escaped = text.charAt(current++);
+            switch (escaped) {
+                case 'b': builder.append('\b'); break;
+                case 'f': builder.append('\f'); break;
+                case 'n': builder.append('\n'); break;
+                case 'r': builder.append('\r'); break;
+                case 't': builder.append('\t'); break;
+                case 'u':
+                    if (current + 4 > text.length()) throw error("Unterminated escape.");
+                    try {
+                        builder.append((char)Integer.parseInt(text.substring(current, current + 4), 16));
+                    } catch (NumberFormatException e) {
+                        throw error("Invalid escape.");
+                    }
+                    current += 4;
+                    break;
+                default: builder.append(escaped);
+            }
+        }
+        throw error("Unterminated string.");
+    }
+
+    private Double number() {
+        int start = current;
+        if (text.charAt(current) == '-') current++;
+        while (current < text.length() && "0123456789.eE+-".indexOf(text.charAt(current)) >= 0) current++;
+        try {
+            return Double.parseDouble(text.substring(start, current));
+        } catch (NumberFormatException e) {
+            throw error("Invalid number.");
+        }
+    }
+
+    private Object literal(String word, Object value) {
+        if (!text.startsWith(word, current)) throw error("Unexpected character.");
+        current += word.length();
+        return value;
+    }
+
+    private void whitespace() {
+        while (current < text.length() && Character.isWhitespace(text.charAt(current))) current++;
+    }
+
+    private boolean match(char expected) {
+        if (current == text.length() || text.charAt(current) != expected) return false;
+        current++;
+        return true;
+    }
+
+    private void expect(char expected) {
+        if (!match(expected)) throw error("Expect '" + expected + "'.");
+    }
+
+    private ParseError error(String message) {
+        return new ParseError(message + " At offset " + current + ".");
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void write(StringBuilder builder, Object value) {
+        if (value == null) {
+            builder.append("null");
+        } else if (value instanceof String) {
+            writeString(builder, (String)value);
+        } else if (value instanceof Double || value instanceof Float) {
+            double number = ((Number)value).doubleValue();
+            // ids and positions are integers, and clients expect them without a fraction
+            if (number == Math.rint(number) && !Double.isInfinite(number)) {
+                builder.append((long)number);
+            } else {
+                builder.append(number);
+            }
+        } else if (value instanceof Number || value instanceof Boolean) {
+            builder.append(value);
+        } else if (value instanceof Map) {
+            builder.append('{');
+            boolean first = true;
+            for (Map.Entry<String, Object> entry : ((Map<String, Object>)value).entrySet()) {
+                if (!first) builder.append(',');
+                first = false;
+                writeString(builder, entry.getKey());
+                builder.append(':');
+                write(builder, entry.getValue());
+            }
+            builder.append('}');
+        } else if (value instanceof List) {
+            builder.append('[');
+            boolean first = true;
+            for (Object element : (List<Object>)value) {
+                if (!first) builder.append(',');
+                first = false;
+                write(builder, element);
+            }
+            builder.append(']');
+        } else {
+            throw new IllegalArgumentException("Can't write " + value.getClass() + " as JSON.");
+        }
+    }
+
+    private static void writeString(StringBuilder builder, String string) {
+        builder.append('"');
+        for (int i = 0; i < string.length(); i++) {
+            char c = string.charAt(i);
+            switch (c) {
+                case '"': builder.append("\\\""); break;
+                case '\\': builder.append("\\\\"); break;
+                case '\n': builder.append("\\n"); break;
+                case '\r': builder.append("\\r"); break;
+                case '\t': builder.append("\\t"); break;
+                default:
+                    if (c < 0x20) {
+                        builder.append(String.format("\\u%04x", (int)c));
+                    } else {
+                        builder.append(c);
+                    }
+            }
+        }
+        builder.append('"');
+    }
+}
@@ -0,0 +1,470 @@
+package utopiascript;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import static utopiascript.TokenType.*;
+
+// A Language Server Protocol server over stdin and stdout, started with --lsp.
+// It reports parse errors as diagnostics and answers go-to-definition and completion requests.
+// Each open file is a Document, so an edit only rescans and reparses the declarations around it,
+// and name resolution is cached per declaration, so it is only redone for the reparsed ones.
+class LanguageServer {
+    // the keywords of statements and expressions the parser handles
+    private static final String[] KEYWORDS = {
+        "alie", "au", "dum", "en", "funkcio", "importi", "kaj", "malvera", "nenio",
+        "por", "presi", "revenigi", "se", "var", "vera"
+    };
+
+    // completion item kinds and the error severity, as numbered by the protocol
+    private static final int FUNCTION_KIND = 3;
+    private static final int VARIABLE_KIND = 6;
+    private static final int KEYWORD_KIND = 14;
+    private static final int ERROR_SEVERITY = 1;
+
+    private static final int PARSE_ERROR = -32700;
+    private static final int METHOD_NOT_FOUND = -32601;
+    private static final int INTERNAL_ERROR = -32603;
+
+    // completion scans code that is usually broken while it is being typed
+    private static final ErrorReporter IGNORE_ERRORS = new ErrorReporter() {
+        @Override
+        public void error(int line, int offset, String message) {}
+
+        @Override
+        public void error(Token token, String message) {}
+    };
+
+    // Answers a request with an error instead of a result
+    private static final class ResponseError extends RuntimeException {
+        final int code;
+
+        ResponseError(int code, String message) {
+            super(message);
+            this.code = code;
+        }
+    }
+
+    // A file the client has open, and what is cached about it
+    private static final class OpenFile {
+        final Document document;
+        Object version;
+        // the offset each line starts at
+        private int[] lineStarts;
+        private int lineCount;
+        // kept declarations are the same objects after an edit, so their entries stay, while
+        // replaced ones are dropped with the declarations
+        private final Map<Document.Declaration, Resolution> resolutions = new WeakHashMap<>();
+
+        OpenFile(String text, Object version) {
+            this.document = new Document(text);
+            this.version = version;
+            findLines();
+        }
+
+        void edit(int offset, int length, String replacement) {
+            document.edit(offset, length, replacement);
+            findLines();
+        }
+
+        // null when the declaration didn't parse
+        Resolution resolution(Document.Declaration declaration) {
+            if (declaration.stmt == null) return null;
+            return resolutions.computeIfAbsent(declaration, key -> Resolution.of(key.stmt));
+        }
+
+        private void findLines() {
+            String text = document.text();
+            if (lineStarts == null) lineStarts = new int[64];
+            lineCount = 0;
+            int start = 0;
+            for (;;) {
+                if (lineCount == lineStarts.length) {
+                    int[] grown = new int[lineStarts.length * 2];
+                    System.arraycopy(lineStarts, 0, grown, 0, lineCount);
+                    lineStarts = grown;
+                }
+                lineStarts[lineCount++] = start;
+                int newline = text.indexOf('\n', start);
+                if (newline < 0) break;
+                start = newline + 1;
+            }
+        }
+
+        // Positions count UTF-16 code units, as Java strings do, so a character is an index
+        int offset(Map<String, Object> position) {
+            int line = integer(position.get("line"));
+            int character = integer(position.get("character"));
+            int length = document.text().length();
+            if (line >= lineCount) return length;
+
+            int lineEnd = line + 1 < lineCount ? lineStarts[line + 1] - 1 : length;
+            return Math.min(lineStarts[line] + Math.max(character, 0), lineEnd);
+        }
+
+        Map<String, Object> position(int offset) {
+            int low = 0;
+            int high = lineCount - 1;
+            while (low < high) {
+                int middle = (low + high + 1) >>> 1;
+                if (lineStarts[middle] <= offset) {
+                    low = middle;
+                } else {
+                    high = middle - 1;
+                }
+            }
+            return Json.object("line", low, "character", offset - lineStarts[low]);
+        }
+
+        Map<String, Object> range(int start, int end) {
+            int length = document.text().length();
+            return Json.object("start", position(Math.min(start, length)), "end", position(Math.min(end, length)));
+        }
+    }
+
+    // A scope while looking for locals in tokens: function bodies don't see the scopes around them
+    private static final class Scope {
+        final List<String> names;
+        final boolean function;
+
+        Scope(List<String> names, boolean function) {
+            this.names = names;
+            this.function = function;
+        }
+    }
+
+    private final InputStream in;
+    private final OutputStream out;
+    private final Map<String, OpenFile> files = new HashMap<>();
+    private final List<String> natives = new ArrayList<>();
+    private boolean shutdown = false;
+
+    LanguageServer(InputStream in, OutputStream out) {
+        this.in = new BufferedInputStream(in);
+        this.out = out;
+        for (Symbol name : new Interpreter().globals.names()) {
+            natives.add(name.name);
+        }
+        natives.sort(null);
+    }
+
+    // Serves requests until the client exits, and returns the process exit code
+    int run() throws IOException {
+        for (;;) {
+            String message = read();
+            if (message == null) return 1;
+
+            Map<String, Object> request;
+            try {
+                request = asObject(Json.parse(message));
+            } catch (Json.ParseError | ClassCastException e) {
+                send(Json.object("jsonrpc", "2.0", "id", null,
+                    "error", Json.object("code", PARSE_ERROR, "message", e.getMessage())));
+                continue;
+            }
+
+            String method = (String)request.get("method");
+            if ("exit".equals(method)) return shutdown ? 0 : 1;
+            // requests have an id and expect a response, notifications don't
+            boolean isRequest = request.containsKey("id");
+            Object id = request.get("id");
+
+            try {
+                Object result = handle(method, asObject(request.get("params")), isRequest);
+                if (isRequest) send(Json.object("jsonrpc", "2.0", "id", id, "result", result));
+            } catch (ResponseError error) {
+                if (isRequest) respondWithError(id, error.code, error.getMessage());
+            } catch (RuntimeException error) {
+                if (isRequest) respondWithError(id, INTERNAL_ERROR, String.valueOf(error));
+            }
+        }
+    }
+
+    private Object handle(String method, Map<String, Object> params, boolean isRequest) throws IOException {
+        switch (method == null ? "" : method) {
+            case "initialize":
+                return Json.object(
+                    "capabilities", Json.object(
+                        // incremental changes, which the Document applies as edits
+                        "textDocumentSync", Json.object("openClose", true, "change", 2),
+                        "definitionProvider", true,
+                        "completionProvider", Json.object()),
+                    "serverInfo", Json.object("name", "utopiascript"));
+            case "shutdown":
+                shutdown = true;
+                return null;
+            case "textDocument/didOpen": {
+                Map<String, Object> document = asObject(params.get("textDocument"));
+                String uri = (String)document.get("uri");
+                OpenFile file = new OpenFile((String)document.get("text"), document.get("version"));
+                files.put(uri, file);
+                publishDiagnostics(uri, file);
+                return null;
+            }
+            case "textDocument/didChange": {
+                Map<String, Object> document = asObject(params.get("textDocument"));
+                String uri = (String)document.get("uri");
+                OpenFile file = file(uri);
+                for (Object change : (List<?>)params.get("contentChanges")) {
+                    applyChange(file, asObject(change));
+                }
+                file.version = document.get("version");
+                publishDiagnostics(uri, file);
+                return null;
+            }
+            case "textDocument/didClose": {
+                String uri = (String)asObject(params.get("textDocument")).get("uri");
+                files.remove(uri);
+                notify("textDocument/publishDiagnostics", Json.object("uri", uri, "diagnostics", new ArrayList<>()));
+                return null;
+            }
+            case "textDocument/definition": {
+                String uri = (String)asObject(params.get("textDocument")).get("uri");
+                OpenFile file = file(uri);
+                return definition(uri, file, file.offset(asObject(params.get("position"))));
+            }
+            case "textDocument/completion": {
+                OpenFile file = file((String)asObject(params.get("textDocument")).get("uri"));
+                return completion(file, file.offset(asObject(params.get("position"))));
+            }
+            default:
+                // notifications the server doesn't need, like initialized or $/cancelRequest
+                if (!isRequest) return null;
+                throw new ResponseError(METHOD_NOT_FOUND, "Unknown method '" + method + "'.");
+        }
+    }
+
+    private OpenFile file(String uri) {
+        OpenFile file = files.get(uri);
+        if (file == null) throw new ResponseError(INTERNAL_ERROR, "'" + uri + "' is not open.");
+        return file;
+    }
+
+    // A change with a range replaces that range, one without replaces the whole text
+    private static void applyChange(OpenFile file, Map<String, Object> change) {
+        String text = (String)change.get("text");
+        Map<String, Object> range = asObject(change.get("range"));
+        if (range == null) {
+            file.edit(0, file.document.text().length(), text);
+            return;
+        }
+
+        int start = file.offset(asObject(range.get("start")));
+        int end = Math.max(start, file.offset(asObject(range.get("end"))));
+        file.edit(start, end - start, text);
+    }
+
+    private void publishDiagnostics(String uri, OpenFile file) throws IOException {
+        List<Object> diagnostics = new ArrayList<>();
+        for (Document.Diagnostic diagnostic : file.document.diagnostics()) {
+            diagnostics.add(Json.object(
+                "range", file.range(diagnostic.offset, diagnostic.offset + diagnostic.length),
+                "severity", ERROR_SEVERITY,
+                "source", "utopiascript",
+                "message", diagnostic.message));
+        }
+        notify("textDocument/publishDiagnostics",
+            Json.object("uri", uri, "version", file.version, "diagnostics", diagnostics));
+    }
+
+    // A local resolves within its declaration. A global is taken to be defined by its last
+    // top-level definition before the use, or the first one after it if there is none before.
+    private static Object definition(String uri, OpenFile file, int offset) {
+        Document.Declaration declaration = file.document.declarationAt(offset);
+        if (declaration == null) return null;
+        Resolution resolution = file.resolution(declaration);
+        if (resolution == null) return null;
+        Resolution.Reference reference = resolution.at(offset - declaration.offsetShift);
+        if (reference == null) return null;
+
+        if (reference.definition != null) {
+            return location(uri, file, declaration.offset(reference.definition), reference.definition);
+        }
+
+        Symbol name = reference.name.symbol;
+        Document.Declaration found = null;
+        Token definition = null;
+        for (Document.Declaration candidate : file.document.declarations()) {
+            if (found != null && candidate.start > offset) break;
+            Resolution candidateResolution = file.resolution(candidate);
+            if (candidateResolution == null) continue;
+
+            for (List<Token> globals : List.of(candidateResolution.globalVariables, candidateResolution.globalFunctions)) {
+                for (Token global : globals) {
+                    if (global.symbol != name) continue;
+                    if (found == null || candidate.offset(global) <= offset) {
+                        found = candidate;
+                        definition = global;
+                    }
+                }
+            }
+        }
+
+        // natives have no definition in the source
+        if (found == null) return null;
+        return location(uri, file, found.offset(definition), definition);
+    }
+
+    private static Object location(String uri, OpenFile file, int offset, Token name) {
+        return Json.object("uri", uri, "range", file.range(offset, offset + name.lexeme.length()));
+    }
+
+    private Object completion(OpenFile file, int offset) {
+        Map<String, Object> items = new LinkedHashMap<>();
+        Document.Declaration current = file.document.declarationAt(offset);
+        if (current != null) {
+            for (String local : locals(file.document.text(), current.start, Math.max(offset, current.start))) {
+                addItem(items, local, VARIABLE_KIND);
+            }
+        }
+
+        for (Document.Declaration declaration : file.document.declarations()) {
+            Resolution resolution = file.resolution(declaration);
+            if (resolution == null) continue;
+            for (Token global : resolution.globalFunctions) addItem(items, global.lexeme, FUNCTION_KIND);
+            for (Token global : resolution.globalVariables) addItem(items, global.lexeme, VARIABLE_KIND);
+        }
+        for (String name : natives) addItem(items, name, FUNCTION_KIND);
+        for (String keyword : KEYWORDS) addItem(items, keyword, KEYWORD_KIND);
+
+        return new ArrayList<>(items.values());
+    }
+
+    private static void addItem(Map<String, Object> items, String label, int kind) {
+        if (!items.containsKey(label)) items.put(label, Json.object("label", label, "kind", kind));
+    }
+
+    // The names in scope at the end of a stretch of source, found from its tokens alone so that
+    // it works in code that doesn't parse yet, like the statement being typed
+    private static List<String> locals(String text, int from, int to) {
+        List<Token> tokens = new Scanner(text.substring(from, to), 0, 1, IGNORE_ERRORS).scanTokens();
+        List<Scope> scopes = new ArrayList<>();
+        scopes.add(new Scope(new ArrayList<>(), false));
+        // parameters and loop variables belong to the scope of the brace after them
+        List<String> pending = new ArrayList<>();
+        boolean pendingFunction = false;
+
+        for (int i = 0; i < tokens.size(); i++) {
+            Token token = tokens.get(i);
+            switch (token.type) {
+                case LEFT_BRACE:
+                    scopes.add(new Scope(new ArrayList<>(pending), pendingFunction));
+                    pending.clear();
+                    pendingFunction = false;
+                    break;
+                case RIGHT_BRACE:
+                    if (scopes.size() > 1) scopes.remove(scopes.size() - 1);
+                    break;
+                case SEMICOLON:
+                    pending.clear();
+                    pendingFunction = false;
+                    break;
+                case VAR:
+                    if (isIdentifier(tokens, i + 1)) scopes.get(scopes.size() - 1).names.add(tokens.get(i + 1).lexeme);
+                    break;
+                case FUNKCIO:
+                    if (!isIdentifier(tokens, i + 1)) break;
+                    scopes.get(scopes.size() - 1).names.add(tokens.get(i + 1).lexeme);
+                    pending.clear();
+                    pendingFunction = true;
+                    for (int j = i + 2; j < tokens.size() && tokens.get(j).type != RIGHT_PAREN; j++) {
+                        if (tokens.get(j).type == IDENTIFIER) pending.add(tokens.get(j).lexeme);
+                    }
+                    break;
+                case POR:
+                    if (isIdentifier(tokens, i + 2) && isIdentifier(tokens, i + 3) &&
+                            tokens.get(i + 3).lexeme.equals("en")) {
+                        pending.add(tokens.get(i + 2).lexeme);
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        // innermost first, out to the enclosing function, and then the top level
+        List<String> names = new ArrayList<>();
+        for (int i = scopes.size() - 1; i > 0; i--) {
+            names.addAll(scopes.get(i).names);
+            if (scopes.get(i).function) break;
+        }
+        names.addAll(pending);
+        names.addAll(scopes.get(0).names);
+        return names;
+    }
+
+    private static boolean isIdentifier(List<Token> tokens, int index) {
+        return index < tokens.size() && tokens.get(index).type == IDENTIFIER;
+    }
+
+    private void respondWithError(Object id, int code, String message) throws IOException {
+        send(Json.object("jsonrpc", "2.0", "id", id, "error", Json.object("code", code, "message", message)));
+    }
+
+    private void notify(String method, Object params) throws IOException {
+        send(Json.object("jsonrpc", "2.0", "method", method, "params", params));
+    }
+
+    // Messages are JSON with a Content-Length header, as in HTTP
+    private void send(Map<String, Object> message) throws IOException {
+        byte[] body = Json.write(message).getBytes(StandardCharsets.UTF_8);
+        out.write(("Content-Length: " + body.length + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+        out.write(body);
+        out.flush();
+    }
+
+    // Returns the next message, or null at the end of the input
+    private String read() throws IOException {
+        int length = -1;
+        for (;;) {
+            String header = readHeaderLine();
+            if (header == null) return null;
+            if (header.isEmpty()) break;
+
+            int colon = header.indexOf(':');
+            if (colon > 0 && header.substring(0, colon).trim().equalsIgnoreCase("Content-Length")) {
+                length = Integer.parseInt(header.substring(colon + 1).trim());
+            }
+        }
+        if (length < 0) throw new IOException("Message without a Content-Length header.");
+
+        byte[] body = new byte[length];
+        int read = 0;
+        while (read < length) {
+            int count = in.read(body, read, length - read);
+            if (count < 0) return null;
+            read += count;
+        }
+        return new String(body, StandardCharsets.UTF_8);
+    }
+
+    private String readHeaderLine() throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        for (;;) {
+            int c = in.read();
+            if (c < 0) return null;
+            if (c == '\n') break;
+            if (c != '\r') line.write(c);
+        }
+        return line.toString("US-ASCII");
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> asObject(Object value) {
+        return (Map<String, Object>)value;
+    }
+
+    private static int integer(Object value) {
+        return ((Number)value).intValue();
+    }
+}
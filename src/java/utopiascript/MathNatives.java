@@ -0,0 +1,85 @@
+package utopiascript;
+
+import java.lang.invoke.MethodType;
+import java.util.List;
+import java.util.SplittableRandom;
+
+// Library functions for arithmetic beyond the operators.
+// Most are intrinsics bound straight to java.lang.Math, so compiled numeric code calls Math.sqrt
+// itself and the other compilers link the method handle without boxing. These take integers as
+// doubles and give doubles. div and mod give integers for integers, so they take any values.
+// random and seed share a generator per set of globals, which is state, so they are effectful.
+class MathNatives {
+    private static final MethodType UNARY = MethodType.methodType(double.class, double.class);
+    private static final MethodType BINARY = MethodType.methodType(double.class, double.class, double.class);
+
+    private static final HostFunction[] FUNCTIONS = {
+        HostFunction.intrinsic("sqrt", Math.class, "sqrt", UNARY),
+        HostFunction.intrinsic("pow", Math.class, "pow", BINARY),
+        HostFunction.intrinsic("floor", Math.class, "floor", UNARY),
+        HostFunction.intrinsic("abs", Math.class, "abs", UNARY),
+        HostFunction.intrinsic("sin", Math.class, "sin", UNARY),
+        HostFunction.intrinsic("min", Math.class, "min", BINARY),
+        HostFunction.intrinsic("max", Math.class, "max", BINARY),
+        HostFunction.of("div", MathNatives.class, "div"),
+        HostFunction.of("mod", MathNatives.class, "mod"),
+    };
+
+    static void define(Environment globals) {
+        for (HostFunction function : FUNCTIONS) {
+            globals.define(function.name, function);
+        }
+
+        // a fresh interpreter starts from an unpredictable seed
+        SplittableRandom[] generator = { new SplittableRandom() };
+
+        // random() returns a number from 0 up to but not including 1
+        globals.define("random", new IoNatives.Effectful(0) {
+            @Override
+            public Object call(Interpreter interpreter, List<Object> arguments) {
+                return generator[0].nextDouble();
+            }
+        });
+
+        // seed(n) restarts random from n, so a run can be repeated
+        globals.define("seed", new IoNatives.Effectful(1) {
+            @Override
+            public Object call(Interpreter interpreter, List<Object> arguments) {
+                Object seed = arguments.get(0);
+                if (!Operators.isNumber(seed)) {
+                    throw new RuntimeError("Argument 1 of 'seed' must be a number.");
+                }
+                generator[0] = new SplittableRandom(seed instanceof Long ? (long)seed : (long)(double)seed);
+                return null;
+            }
+        });
+    }
+
+    // The quotient rounded down, so div(-7, 2) is -4
+    public static Object div(Object left, Object right) {
+        checkOperands("div", left, right);
+        if (left instanceof Long && right instanceof Long) {
+            // the least long over -1 is the one quotient that doesn't fit
+            if ((long)left == Long.MIN_VALUE && (long)right == -1L) return -(double)Long.MIN_VALUE;
+            return Math.floorDiv((long)left, (long)right);
+        }
+        return Math.floor(Operators.number(left) / Operators.number(right));
+    }
+
+    // The remainder of div, which takes the sign of the divisor
+    public static Object mod(Object left, Object right) {
+        checkOperands("mod", left, right);
+        if (left instanceof Long && right instanceof Long) return Math.floorMod((long)left, (long)right);
+
+        double divisor = Operators.number(right);
+        double remainder = Operators.number(left) % divisor;
+        if (remainder != 0.0 && (remainder < 0.0) != (divisor < 0.0)) remainder += divisor;
+        return remainder;
+    }
+
+    private static void checkOperands(String name, Object left, Object right) {
+        if (!Operators.isNumber(left)) throw new RuntimeError("Argument 1 of '" + name + "' must be a number.");
+        if (!Operators.isNumber(right)) throw new RuntimeError("Argument 2 of '" + name + "' must be a number.");
+        if (Operators.number(right) == 0.0) throw new RuntimeError("Cannot divide by zero.");
+    }
+}
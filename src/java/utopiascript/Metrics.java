@@ -0,0 +1,173 @@
+package utopiascript;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+// Counters for running the interpreter inside a service, enabled with -Dutopiascript.metrics=true.
+// They are exported as the MXBean utopiascript:type=Interpreter, and parsing, execution and
+// runtime errors are also emitted as JFR events. ENABLED is a constant, so when metrics are off
+// the JIT removes every 'if (Metrics.ENABLED)' block from the interpreter.
+class Metrics {
+    static final boolean ENABLED = Boolean.getBoolean("utopiascript.metrics");
+
+    private static final int BUCKETS = 40;
+
+    private static final LongAdder scriptsExecuted = new LongAdder();
+    private static final LongAdder parseNanos = new LongAdder();
+    private static final LongAdder executionNanos = new LongAdder();
+    private static final LongAdder calls = new LongAdder();
+    private static final LongAdder environments = new LongAdder();
+    private static final AtomicLong peakCallDepth = new AtomicLong();
+    private static final LongAdder[] parseHistogram = histogram();
+    private static final LongAdder[] executionHistogram = histogram();
+    private static final Map<String, LongAdder> runtimeErrors = new ConcurrentHashMap<>();
+
+    static {
+        if (ENABLED) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(
+                    new MXBean(), new ObjectName("utopiascript:type=Interpreter"));
+            } catch (JMException error) {
+                System.err.println("Could not register interpreter metrics: " + error.getMessage());
+            }
+        }
+    }
+
+    @Name("utopiascript.Parse")
+    @Label("Script Parse")
+    @Category("UtopiaScript")
+    static class ParseEvent extends Event {
+        @Label("Tokens")
+        int tokens;
+    }
+
+    @Name("utopiascript.Execution")
+    @Label("Script Execution")
+    @Category("UtopiaScript")
+    static class ExecutionEvent extends Event {
+        @Label("Statements")
+        int statements;
+    }
+
+    @Name("utopiascript.RuntimeError")
+    @Label("Script Runtime Error")
+    @Category("UtopiaScript")
+    static class RuntimeErrorEvent extends Event {
+        @Label("Kind")
+        String kind;
+
+        @Label("Message")
+        String message;
+
+        @Label("Line")
+        int line;
+    }
+
+    static void parsed(long nanos) {
+        parseNanos.add(nanos);
+        record(parseHistogram, nanos);
+    }
+
+    static void executed(long nanos) {
+        scriptsExecuted.increment();
+        executionNanos.add(nanos);
+        record(executionHistogram, nanos);
+    }
+
+    static void called(int depth) {
+        calls.increment();
+        if (depth > peakCallDepth.get()) {
+            peakCallDepth.accumulateAndGet(depth, Math::max);
+        }
+    }
+
+    static void environmentAllocated() {
+        environments.increment();
+    }
+
+    static void runtimeError(RuntimeError error) {
+        String kind = kind(error.getMessage());
+        runtimeErrors.computeIfAbsent(kind, key -> new LongAdder()).increment();
+
+        RuntimeErrorEvent event = new RuntimeErrorEvent();
+        if (event.shouldCommit()) {
+            event.kind = kind;
+            event.message = error.getMessage();
+            event.line = error.token == null ? 0 : error.token.line;
+            event.commit();
+        }
+    }
+
+    // Groups messages that only differ in the names and numbers they mention,
+    // so "Undefined variable 'x'" and "Undefined variable 'y'" count as one kind
+    private static String kind(String message) {
+        return message.replaceAll("'[^']*'", "'_'").replaceAll("[0-9]+", "N");
+    }
+
+    private static LongAdder[] histogram() {
+        LongAdder[] buckets = new LongAdder[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets[i] = new LongAdder();
+        }
+        return buckets;
+    }
+
+    private static void record(LongAdder[] histogram, long nanos) {
+        long micros = nanos / 1000;
+        int bucket = 64 - Long.numberOfLeadingZeros(micros);
+        histogram[Math.min(bucket, BUCKETS - 1)].increment();
+    }
+
+    private static long[] snapshot(LongAdder[] histogram) {
+        long[] counts = new long[histogram.length];
+        for (int i = 0; i < histogram.length; i++) {
+            counts[i] = histogram[i].sum();
+        }
+        return counts;
+    }
+
+    private static class MXBean implements InterpreterMetricsMXBean {
+        @Override
+        public long getScriptsExecuted() { return scriptsExecuted.sum(); }
+
+        @Override
+        public long getParseTimeNanos() { return parseNanos.sum(); }
+
+        @Override
+        public long[] getParseTimeHistogram() { return snapshot(parseHistogram); }
+
+        @Override
+        public long getExecutionTimeNanos() { return executionNanos.sum(); }
+
+        @Override
+        public long[] getExecutionTimeHistogram() { return snapshot(executionHistogram); }
+
+        @Override
+        public long getCalls() { return calls.sum(); }
+
+        @Override
+        public long getEnvironmentAllocations() { return environments.sum(); }
+
+        @Override
+        public long getPeakCallDepth() { return peakCallDepth.get(); }
+
+        @Override
+        public Map<String, Long> getRuntimeErrors() {
+            Map<String, Long> counts = new TreeMap<>();
+            runtimeErrors.forEach((kind, count) -> counts.put(kind, count.sum()));
+            return counts;
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package utopiascript;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// The modules an engine has imported, by their real path.
+// A module runs once, the first time it is imported, in an interpreter with globals of its own.
+// The globals it defines are its exports, which every import defines in the importing scope.
+// Like any function, a module's functions look names up in the globals of whoever calls them,
+// so they find the module's other definitions there because those are imported with them.
+// With a cache directory, parsed modules are also kept on disk by the hash of their source,
+// so a module that hasn't changed isn't scanned and parsed again by later runs.
+class Modules {
+    private final Map<Path, Map<Symbol, Object>> loaded = new HashMap<>();
+    // modules that are running their top level, to catch modules importing each other
+    private final Set<Path> loading = new HashSet<>();
+    // parsed modules by the hash of their source, shared with other Modules, or null
+    private final Map<String, List<Stmt>> parsed;
+    // where parsed modules are kept, or null
+    Path cacheDirectory = null;
+
+    Modules() {
+        this(null);
+    }
+
+    // Modules that share parses, which scripts run side by side can, where they can't share
+    // the modules themselves, since each script has to see every module it imports run
+    Modules(Map<String, List<Stmt>> parsed) {
+        this.parsed = parsed;
+    }
+
+    // Returns the exports of the module an import names, loading it if it isn't yet
+    synchronized Map<Symbol, Object> load(Interpreter importer, Stmt.Import stmt) {
+        String name = (String)stmt.path.literal;
+        Path file;
+        try {
+            file = importer.directory.resolve(name).toRealPath();
+        } catch (IOException | InvalidPathException e) {
+            throw new RuntimeError(stmt.keyword, "Can't find module '" + name + "'.");
+        }
+
+        Map<Symbol, Object> exports = loaded.get(file);
+        if (exports != null) return exports;
+        if (!loading.add(file)) {
+            throw new RuntimeError(stmt.keyword, "Module '" + name + "' imports itself.");
+        }
+
+        try {
+            List<Stmt> statements = parse(stmt, name, file);
+            Interpreter module = importer.module(file.getParent());
+            Map<Symbol, Object> natives = new HashMap<>();
+            for (Symbol global : module.globals.names()) {
+                natives.put(global, module.globals.value(global));
+            }
+
+            try {
+                module.execute(statements);
+            } catch (RuntimeError error) {
+                String where = error.token == null ? "" : " at line " + error.token.line;
+                throw new RuntimeError(stmt.keyword,
+                    "Module '" + name + "' failed" + where + ": " + error.getMessage());
+            }
+
+            exports = new HashMap<>();
+            for (Symbol global : module.globals.names()) {
+                Object value = module.globals.value(global);
+                if (!natives.containsKey(global) || natives.get(global) != value) exports.put(global, value);
+            }
+            loaded.put(file, exports);
+            return exports;
+        } finally {
+            loading.remove(file);
+        }
+    }
+
+    private List<Stmt> parse(Stmt.Import stmt, String name, Path file) {
+        byte[] source;
+        try {
+            source = Files.readAllBytes(file);
+        } catch (IOException e) {
+            throw new RuntimeError(stmt.keyword, "Can't read module '" + name + "'.");
+        }
+
+        String hash = parsed == null && cacheDirectory == null ? null : hash(source);
+        List<Stmt> statements = parsed == null ? null : parsed.get(hash);
+        if (statements != null) return statements;
+
+        Path cached = cacheDirectory == null ? null : cacheDirectory.resolve(hash + ".ast");
+        if (cached != null && Files.isRegularFile(cached)) {
+            try {
+                statements = AstCodec.decode(Files.readAllBytes(cached));
+                if (parsed != null) parsed.put(hash, statements);
+                return statements;
+            } catch (IOException e) {
+                // unreadable or from another version, so parse it again and overwrite it
+            }
+        }
+
+        Document document = new Document(new String(source, StandardCharsets.UTF_8));
+        List<Document.Diagnostic> diagnostics = document.diagnostics();
+        if (!diagnostics.isEmpty()) {
+            StringBuilder message = new StringBuilder("Module '" + name + "' has errors:");
+            for (Document.Diagnostic diagnostic : diagnostics) {
+                message.append("\n").append(diagnostic);
+            }
+            throw new RuntimeError(stmt.keyword, message.toString());
+        }
+
+        statements = document.statements();
+        if (cached != null) store(cached, AstCodec.encode(statements));
+        if (parsed != null) parsed.put(hash, statements);
+        return statements;
+    }
+
+    // Writes a cache file whole or not at all, since other runs may be reading it
+    private static void store(Path cached, byte[] bytes) {
+        try {
+            Files.createDirectories(cached.getParent());
+            Path temporary = Files.createTempFile(cached.getParent(), "module", ".tmp");
+            Files.write(temporary, bytes);
+            Files.move(temporary, cached, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            // the cache only saves time, so a failure to write it isn't an error
+        }
+    }
+
+    static String hash(byte[] source) {
+        try {
+            StringBuilder hex = new StringBuilder();
+            for (byte b : MessageDigest.getInstance("SHA-256").digest(source)) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            // every Java platform has SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+}
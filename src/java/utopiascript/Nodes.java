@@ -0,0 +1,465 @@
+package utopiascript;
+
+import java.lang.invoke.MethodHandle;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+// The semantics of each node type, called from the methods tool/GenerateAst puts in Expr and Stmt,
+// which run code with --nodes. They behave exactly like the Interpreter's visitor, which stays the
+// default and is what profiled runs use.
+// Types that list specialized forms get an evaluateLong, evaluateDouble or evaluateBoolean here as
+// well, which pass numbers and conditions between nodes without boxing them. A form whose value
+// turns out to be of another type throws UnexpectedResult with it, and the caller carries on with
+// the general operation, as does an integer operation that overflows, with the double result.
+// A binary node first takes its operands as integers; once it has seen a double it takes doubles,
+// and once it has seen anything else it is marked generic and stops trying.
+final class Nodes {
+    private Nodes() {
+    }
+
+    // Thrown by a specialized form with a value that isn't of its type, which has been
+    // evaluated already and mustn't be evaluated again
+    static final class UnexpectedResult extends RuntimeException {
+        final Object value;
+
+        UnexpectedResult(Object value) {
+            super(null, null, false, false);
+            this.value = value;
+        }
+    }
+
+    // The default forms
+
+    static long expectLong(Object value) {
+        if (value instanceof Long) return (long)value;
+        throw new UnexpectedResult(value);
+    }
+
+    static double expectDouble(Object value) {
+        if (value instanceof Double) return (double)value;
+        throw new UnexpectedResult(value);
+    }
+
+    static boolean expectBoolean(Object value) {
+        return Interpreter.isTruthy(value);
+    }
+
+    // Expressions
+
+    static Object evaluate(Expr.Assign expr, Frame frame) {
+        Object value = expr.value.evaluate(frame);
+        frame.environment.assign(expr, value);
+        return value;
+    }
+
+    static Object evaluate(Expr.Binary expr, Frame frame) {
+        switch (expr.operator.type) {
+            case PLUS:
+            case MINUS:
+            case STAR:
+            case SLASH:
+                if (expr.generic) return general(expr, frame);
+                try {
+                    if (expr.doubles || expr.operator.type == TokenType.SLASH) return evaluateDouble(expr, frame);
+                    return evaluateLong(expr, frame);
+                } catch (UnexpectedResult result) {
+                    return result.value;
+                }
+            default:
+                return evaluateBoolean(expr, frame);
+        }
+    }
+
+    // An operand of the wrong type moves a node taking integers on to doubles if it is a double,
+    // and makes it generic otherwise
+    private static void unexpected(Expr.Binary expr, Object value) {
+        if (value instanceof Double && !expr.doubles) {
+            expr.doubles = true;
+        } else {
+            expr.generic = true;
+        }
+    }
+
+    // The right operand is evaluated first, as in the visitor. Integers add, subtract and
+    // multiply to integers, or to a double when they overflow.
+    static long evaluateLong(Expr.Binary expr, Frame frame) {
+        TokenType type = expr.operator.type;
+        boolean exact = type == TokenType.PLUS || type == TokenType.MINUS || type == TokenType.STAR;
+        if (expr.generic || expr.doubles || !exact) return expectLong(evaluate(expr, frame));
+
+        long right;
+        try {
+            right = expr.right.evaluateLong(frame);
+        } catch (UnexpectedResult result) {
+            unexpected(expr, result.value);
+            return expectLong(Operators.binary(expr.operator, expr.left.evaluate(frame), result.value));
+        }
+
+        long left;
+        try {
+            left = expr.left.evaluateLong(frame);
+        } catch (UnexpectedResult result) {
+            unexpected(expr, result.value);
+            return expectLong(Operators.binary(expr.operator, result.value, right));
+        }
+
+        try {
+            switch (type) {
+                case PLUS: return Math.addExact(left, right);
+                case MINUS: return Math.subtractExact(left, right);
+                default: return Math.multiplyExact(left, right);
+            }
+        } catch (ArithmeticException overflow) {
+            throw new UnexpectedResult(Operators.binary(expr.operator, left, right));
+        }
+    }
+
+    // A division always gives a double, even of integers
+    static double evaluateDouble(Expr.Binary expr, Frame frame) {
+        TokenType type = expr.operator.type;
+        boolean arithmetic = type == TokenType.PLUS || type == TokenType.MINUS ||
+            type == TokenType.STAR || type == TokenType.SLASH;
+        if (expr.generic || !arithmetic) return expectDouble(evaluate(expr, frame));
+        if (!expr.doubles) {
+            if (type != TokenType.SLASH) return expectDouble(evaluate(expr, frame));
+
+            long right;
+            try {
+                right = expr.right.evaluateLong(frame);
+            } catch (UnexpectedResult result) {
+                unexpected(expr, result.value);
+                return expectDouble(Operators.binary(expr.operator, expr.left.evaluate(frame), result.value));
+            }
+
+            long left;
+            try {
+                left = expr.left.evaluateLong(frame);
+            } catch (UnexpectedResult result) {
+                unexpected(expr, result.value);
+                return expectDouble(Operators.binary(expr.operator, result.value, right));
+            }
+            return Operators.divide(expr.operator, left, right);
+        }
+
+        double right;
+        try {
+            right = expr.right.evaluateDouble(frame);
+        } catch (UnexpectedResult result) {
+            expr.generic = true;
+            return expectDouble(Operators.binary(expr.operator, expr.left.evaluate(frame), result.value));
+        }
+
+        double left;
+        try {
+            left = expr.left.evaluateDouble(frame);
+        } catch (UnexpectedResult result) {
+            expr.generic = true;
+            return expectDouble(Operators.binary(expr.operator, result.value, right));
+        }
+
+        switch (type) {
+            case PLUS: return left + right;
+            case MINUS: return left - right;
+            case STAR: return left * right;
+            default: return Operators.divide(expr.operator, left, right);
+        }
+    }
+
+    static boolean evaluateBoolean(Expr.Binary expr, Frame frame) {
+        switch (expr.operator.type) {
+            case EQUAL_EQUAL:
+            case BANG_EQUAL: {
+                Object right = expr.right.evaluate(frame);
+                Object left = expr.left.evaluate(frame);
+                return Operators.isEqual(left, right) == (expr.operator.type == TokenType.EQUAL_EQUAL);
+            }
+            case GREATER:
+            case GREATER_EQUAL:
+            case LESS:
+            case LESS_EQUAL:
+                break;
+            default:
+                return expectBoolean(evaluate(expr, frame));
+        }
+
+        // comparisons only take numbers, so the general operation either returns a boolean or fails
+        if (expr.generic) return (boolean)general(expr, frame);
+        if (!expr.doubles) return compareLongs(expr, frame);
+
+        double right;
+        try {
+            right = expr.right.evaluateDouble(frame);
+        } catch (UnexpectedResult result) {
+            expr.generic = true;
+            return (boolean)Operators.binary(expr.operator, expr.left.evaluate(frame), result.value);
+        }
+
+        double left;
+        try {
+            left = expr.left.evaluateDouble(frame);
+        } catch (UnexpectedResult result) {
+            expr.generic = true;
+            return (boolean)Operators.binary(expr.operator, result.value, right);
+        }
+
+        switch (expr.operator.type) {
+            case GREATER: return left > right;
+            case GREATER_EQUAL: return left >= right;
+            case LESS: return left < right;
+            default: return left <= right;
+        }
+    }
+
+    private static boolean compareLongs(Expr.Binary expr, Frame frame) {
+        long right;
+        try {
+            right = expr.right.evaluateLong(frame);
+        } catch (UnexpectedResult result) {
+            unexpected(expr, result.value);
+            return (boolean)Operators.binary(expr.operator, expr.left.evaluate(frame), result.value);
+        }
+
+        long left;
+        try {
+            left = expr.left.evaluateLong(frame);
+        } catch (UnexpectedResult result) {
+            unexpected(expr, result.value);
+            return (boolean)Operators.binary(expr.operator, result.value, right);
+        }
+
+        switch (expr.operator.type) {
+            case GREATER: return left > right;
+            case GREATER_EQUAL: return left >= right;
+            case LESS: return left < right;
+            default: return left <= right;
+        }
+    }
+
+    private static Object general(Expr.Binary expr, Frame frame) {
+        Object right = expr.right.evaluate(frame);
+        Object left = expr.left.evaluate(frame);
+        return Operators.binary(expr.operator, left, right);
+    }
+
+    static Object evaluate(Expr.Grouping expr, Frame frame) {
+        return expr.expression.evaluate(frame);
+    }
+
+    static long evaluateLong(Expr.Grouping expr, Frame frame) {
+        return expr.expression.evaluateLong(frame);
+    }
+
+    static double evaluateDouble(Expr.Grouping expr, Frame frame) {
+        return expr.expression.evaluateDouble(frame);
+    }
+
+    static boolean evaluateBoolean(Expr.Grouping expr, Frame frame) {
+        return expr.expression.evaluateBoolean(frame);
+    }
+
+    static Object evaluate(Expr.Literal expr, Frame frame) {
+        return expr.value;
+    }
+
+    static long evaluateLong(Expr.Literal expr, Frame frame) {
+        return expectLong(expr.value);
+    }
+
+    static double evaluateDouble(Expr.Literal expr, Frame frame) {
+        return expectDouble(expr.value);
+    }
+
+    static boolean evaluateBoolean(Expr.Literal expr, Frame frame) {
+        return Interpreter.isTruthy(expr.value);
+    }
+
+    // "au" gives true rather than its left operand, and "kaj" its left operand when that is false
+    static Object evaluate(Expr.Logical expr, Frame frame) {
+        Object left = expr.left.evaluate(frame);
+        if (expr.operator.type == TokenType.AU) {
+            if (Interpreter.isTruthy(left)) return true;
+        } else {
+            if (!Interpreter.isTruthy(left)) return left;
+        }
+        return expr.right.evaluate(frame);
+    }
+
+    static boolean evaluateBoolean(Expr.Logical expr, Frame frame) {
+        if (expr.operator.type == TokenType.AU) {
+            return expr.left.evaluateBoolean(frame) || expr.right.evaluateBoolean(frame);
+        }
+        return expr.left.evaluateBoolean(frame) && expr.right.evaluateBoolean(frame);
+    }
+
+    static Object evaluate(Expr.Unary expr, Frame frame) {
+        if (expr.operator.type == TokenType.BANG) return !expr.right.evaluateBoolean(frame);
+        Object right = expr.right.evaluate(frame);
+        if (right instanceof Double) return -(double)right;
+        return Operators.negate(expr.operator, right);
+    }
+
+    static long evaluateLong(Expr.Unary expr, Frame frame) {
+        if (expr.operator.type == TokenType.BANG) throw new UnexpectedResult(!expr.right.evaluateBoolean(frame));
+        long right;
+        try {
+            right = expr.right.evaluateLong(frame);
+        } catch (UnexpectedResult result) {
+            // negation only takes numbers, so this negates a double or reports the error
+            return expectLong(Operators.negate(expr.operator, result.value));
+        }
+        // the one integer whose negation overflows
+        if (right == Long.MIN_VALUE) throw new UnexpectedResult(-(double)right);
+        return -right;
+    }
+
+    static double evaluateDouble(Expr.Unary expr, Frame frame) {
+        if (expr.operator.type == TokenType.BANG) throw new UnexpectedResult(!expr.right.evaluateBoolean(frame));
+        try {
+            return -expr.right.evaluateDouble(frame);
+        } catch (UnexpectedResult result) {
+            // negation only takes numbers, so this negates an integer or reports the error
+            return expectDouble(Operators.negate(expr.operator, result.value));
+        }
+    }
+
+    static boolean evaluateBoolean(Expr.Unary expr, Frame frame) {
+        if (expr.operator.type == TokenType.BANG) return !expr.right.evaluateBoolean(frame);
+        // a negation is a number, which is always true
+        evaluate(expr, frame);
+        return true;
+    }
+
+    static Object evaluate(Expr.Variable expr, Frame frame) {
+        Object value = frame.environment.get(expr);
+        if (value == null) {
+            throw new RuntimeError(expr.name, "Cannot access a variable that has not been initialized or assigned to");
+        }
+        return value;
+    }
+
+    static Object evaluate(Expr.Call expr, Frame frame) {
+        Object callee = expr.callee.evaluate(frame);
+        return call(expr, frame, callee, new ArrayList<>(expr.arguments.size()));
+    }
+
+    // A call to a numeric host function of up to two parameters passes the arguments to its
+    // handle unboxed. Any other call, or an argument that isn't a number, takes the general path.
+    static double evaluateDouble(Expr.Call expr, Frame frame) {
+        Object callee = expr.callee.evaluate(frame);
+        int count = expr.arguments.size();
+        if (!(callee instanceof HostFunction) || count > 2 ||
+                ((HostFunction)callee).arity() != count || !((HostFunction)callee).numeric()) {
+            return expectDouble(call(expr, frame, callee, new ArrayList<>(count)));
+        }
+
+        double first = 0.0;
+        double second = 0.0;
+        int evaluated = 0;
+        try {
+            if (count > 0) {
+                first = expr.arguments.get(0).evaluateDouble(frame);
+                evaluated++;
+            }
+            if (count > 1) second = expr.arguments.get(1).evaluateDouble(frame);
+        } catch (UnexpectedResult result) {
+            List<Object> arguments = new ArrayList<>(count);
+            if (evaluated > 0) arguments.add(first);
+            arguments.add(result.value);
+            return expectDouble(call(expr, frame, callee, arguments));
+        }
+
+        MethodHandle handle = ((HostFunction)callee).handle;
+        try {
+            switch (count) {
+                case 0: return (double)handle.invokeExact();
+                case 1: return (double)handle.invokeExact(first);
+                default: return (double)handle.invokeExact(first, second);
+            }
+        } catch (RuntimeError error) {
+            // errors raised by natives carry no token, so report them at the call site
+            if (error.token == null) throw new RuntimeError(expr.paren, error.getMessage());
+            throw error;
+        } catch (RuntimeException | Error error) {
+            throw error;
+        } catch (Throwable error) {
+            throw new IllegalStateException(error);
+        }
+    }
+
+    // Evaluates the arguments after those already in the list, and makes the call
+    private static Object call(Expr.Call expr, Frame frame, Object callee, List<Object> arguments) {
+        for (int i = arguments.size(); i < expr.arguments.size(); i++) {
+            arguments.add(expr.arguments.get(i).evaluate(frame));
+        }
+        return Operators.call(frame.interpreter, expr.paren, callee, arguments);
+    }
+
+    // Statements, which return Frame.NORMAL or the value of a return statement
+
+    static Object execute(List<Stmt> statements, Frame frame) {
+        for (Stmt statement : statements) {
+            Object result = statement.execute(frame);
+            if (result != Frame.NORMAL) return result;
+        }
+        return Frame.NORMAL;
+    }
+
+    static Object execute(Stmt.Expression stmt, Frame frame) {
+        stmt.expression.evaluate(frame);
+        return Frame.NORMAL;
+    }
+
+    static Object execute(Stmt.Print stmt, Frame frame) {
+        frame.interpreter.out.println(Interpreter.stringify(stmt.expression.evaluate(frame)));
+        return Frame.NORMAL;
+    }
+
+    static Object execute(Stmt.Var stmt, Frame frame) {
+        Object value = stmt.initializer == null ? null : stmt.initializer.evaluate(frame);
+        frame.environment.define(stmt.name.symbol, value);
+        return Frame.NORMAL;
+    }
+
+    static Object execute(Stmt.Block stmt, Frame frame) {
+        Environment previous = frame.environment;
+        Environment.Pool scopes = frame.interpreter.scopes;
+        frame.environment = scopes.acquire(previous);
+        try {
+            return execute(stmt.statements, frame);
+        } finally {
+            scopes.release(frame.environment);
+            frame.environment = previous;
+        }
+    }
+
+    static Object execute(Stmt.If stmt, Frame frame) {
+        if (stmt.condition.evaluateBoolean(frame)) return stmt.thenBranch.execute(frame);
+        if (stmt.elseBranch != null) return stmt.elseBranch.execute(frame);
+        return Frame.NORMAL;
+    }
+
+    static Object execute(Stmt.While stmt, Frame frame) {
+        while (stmt.condition.evaluateBoolean(frame)) {
+            Object result = stmt.body.execute(frame);
+            if (result != Frame.NORMAL) return result;
+        }
+        return Frame.NORMAL;
+    }
+
+    static Object execute(Stmt.Function stmt, Frame frame) {
+        frame.environment.define(stmt.name.symbol, new UtopiaScriptFunction(stmt));
+        return Frame.NORMAL;
+    }
+
+    static Object execute(Stmt.Return stmt, Frame frame) {
+        return stmt.value == null ? null : stmt.value.evaluate(frame);
+    }
+
+    static Object execute(Stmt.Import stmt, Frame frame) {
+        for (Map.Entry<Symbol, Object> export : frame.interpreter.modules.load(frame.interpreter, stmt).entrySet()) {
+            frame.environment.define(export.getKey(), export.getValue());
+        }
+        return Frame.NORMAL;
+    }
+}
@@ -0,0 +1,558 @@
+package utopiascript;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static utopiascript.BytecodeWriter.*;
+
+// Translates a function into a class whose static 'run' method does the same work on primitive
+// longs and doubles, for calls with arguments of the types the function was first called with.
+// Integers stay longs and a Math.addExact that overflows bails out, so the tree-walker carries on
+// in doubles. A local keeps the type it starts with, and the result of every return has to have
+// the same type, since the interpreter would give different values otherwise.
+// Only numeric code is supported: parameters and locals holding numbers or booleans,
+// arithmetic, comparisons, if, dum, blocks, returning a number, calls to the function itself and
+// calls to numeric host functions bound to globals when it is compiled.
+// Anything else makes the whole function uncompilable, and it stays in the tree-walker.
+class NumericCompiler implements Expr.Visitor<String>, Stmt.Visitor<Void> {
+    // the JVM types values are kept in
+    private static final String NUMBER = "D";
+    private static final String INTEGER = "J";
+    private static final String BOOLEAN = "I";
+
+    private static final String COMPILED = "utopiascript/Jit$Compiled";
+    private static final String DEOPTIMIZE = "utopiascript/Jit$Deoptimize";
+    private static final String BOOTSTRAPS = "utopiascript/Bootstraps";
+
+    // The class file, the types of the parameters, and the host functions it calls by the globals
+    // they were bound to, whose handles Jit passes as class data in the same order
+    static final class Output {
+        final byte[] bytes;
+        final String parameters;
+        final Map<Symbol, HostFunction> hosts;
+
+        Output(byte[] bytes, String parameters, Map<Symbol, HostFunction> hosts) {
+            this.bytes = bytes;
+            this.parameters = parameters;
+            this.hosts = hosts;
+        }
+    }
+
+    // Thrown when the function uses something the compiler doesn't handle
+    private static class Unsupported extends RuntimeException {
+        Unsupported() {
+            super(null, null, false, false);
+        }
+    }
+
+    // Thrown when a return has a number of the other type than the one the result was given
+    private static final class OtherResult extends Unsupported {
+    }
+
+    private static class Local {
+        final String type;
+        final int slot;
+
+        Local(String type, int slot) {
+            this.type = type;
+            this.slot = slot;
+        }
+    }
+
+    private final Stmt.Function function;
+    private final GlobalEnvironment globals;
+    private final Map<Symbol, HostFunction> hosts = new LinkedHashMap<>();
+    private final BytecodeWriter writer;
+    private final String parameters;
+    private final String result;
+    private final String runDescriptor;
+    private BytecodeWriter.Code code;
+    private final List<Map<Symbol, Local>> scopes = new ArrayList<>();
+
+    private NumericCompiler(Stmt.Function function, GlobalEnvironment globals, String parameters, String result) {
+        this.function = function;
+        this.globals = globals;
+        this.parameters = parameters;
+        this.result = result;
+        this.writer = new BytecodeWriter("utopiascript/Compiled_" + function.name.lexeme,
+            "java/lang/Object", COMPILED);
+        this.runDescriptor = "(" + parameters + ")" + result;
+    }
+
+    // Returns the class file for arguments of these types, or null if the function can't be compiled
+    static Output compile(Stmt.Function function, GlobalEnvironment globals, List<Object> arguments) {
+        StringBuilder parameters = new StringBuilder();
+        for (Object argument : arguments) {
+            if (argument instanceof Long) {
+                parameters.append(INTEGER);
+            } else if (argument instanceof Double) {
+                parameters.append(NUMBER);
+            } else {
+                return null;
+            }
+        }
+
+        // the type of the result shows up at the returns, so an integer is tried first
+        try {
+            try {
+                return compile(function, globals, parameters.toString(), INTEGER);
+            } catch (OtherResult result) {
+                return compile(function, globals, parameters.toString(), NUMBER);
+            }
+        } catch (Unsupported | BytecodeWriter.TooLarge error) {
+            return null;
+        }
+    }
+
+    private static Output compile(Stmt.Function function, GlobalEnvironment globals, String parameters, String result) {
+        NumericCompiler compiler = new NumericCompiler(function, globals, parameters, result);
+        return new Output(compiler.compile(), parameters, compiler.hosts);
+    }
+
+    private byte[] compile() {
+        BytecodeWriter.Code constructor = writer.method(ACC_PUBLIC, "<init>", "()V");
+        constructor.load("L" + writer.name() + ";", 0);
+        constructor.invokespecial("java/lang/Object", "<init>", "()V");
+        constructor.op(RETURN, 0, null);
+
+        // invoke unboxes the arguments, which Jit has checked are of the parameters' types
+        BytecodeWriter.Code invoke = writer.method(ACC_PUBLIC, "invoke",
+            "(Lutopiascript/Interpreter;Ljava/util/List;)Ljava/lang/Object;");
+        for (int i = 0; i < function.params.size(); i++) {
+            invoke.load("Ljava/util/List;", 2);
+            invoke.iconst(i);
+            invoke.invokeinterface("java/util/List", "get", "(I)Ljava/lang/Object;");
+            String box = box(parameters.substring(i, i + 1));
+            invoke.checkcast(box);
+            invoke.invokevirtual(box, parameters.charAt(i) == 'J' ? "longValue" : "doubleValue",
+                "()" + parameters.charAt(i));
+        }
+        invoke.invokestatic(writer.name(), "run", runDescriptor);
+        invoke.invokestatic(box(result), "valueOf", "(" + result + ")L" + box(result) + ";");
+        invoke.op(ARETURN, 1, null);
+
+        code = writer.method(ACC_PUBLIC | ACC_STATIC, "run", runDescriptor);
+        beginScope();
+        for (int i = 0; i < function.params.size(); i++) {
+            // parameters were given the first slots when the method was created, two for each
+            scopes.get(0).put(function.params.get(i).symbol, new Local(parameters.substring(i, i + 1), 2 * i));
+        }
+        for (Stmt statement : function.body) {
+            compile(statement);
+        }
+        // the interpreter returns nenio from here, which compiled code can't
+        if (code.reachable()) deoptimize();
+
+        return writer.toByteArray();
+    }
+
+    private void compile(Stmt stmt) {
+        stmt.accept(this);
+    }
+
+    // Emits code leaving the value on the stack, and returns its type
+    private String compile(Expr expr) {
+        return expr.accept(this);
+    }
+
+    private void compile(Expr expr, String type) {
+        if (!compile(expr).equals(type)) throw new Unsupported();
+    }
+
+    private static String box(String type) {
+        return type.equals(INTEGER) ? "java/lang/Long" : "java/lang/Double";
+    }
+
+    // Checks a type is a number, since booleans aren't operands to arithmetic
+    private static String number(String type) {
+        if (type.equals(BOOLEAN)) throw new Unsupported();
+        return type;
+    }
+
+    // Emits the right operand after a left one of the given type, leaving both as longs if they
+    // both are and as doubles otherwise, or always as doubles if asked to. Returns the type.
+    private String operands(String left, Expr right, boolean doubles) {
+        number(left);
+        String type = number(compile(right));
+        if (left.equals(INTEGER) && type.equals(INTEGER) && !doubles) return INTEGER;
+
+        if (type.equals(INTEGER)) code.op(L2D, 1, NUMBER);
+        if (left.equals(INTEGER)) {
+            // the left operand is under the right one, which is set aside while it is converted
+            int slot = code.declare(NUMBER);
+            code.store(NUMBER, slot);
+            code.op(L2D, 1, NUMBER);
+            code.load(NUMBER, slot);
+        }
+        return NUMBER;
+    }
+
+    private void deoptimize() {
+        code.getstatic(DEOPTIMIZE, "INSTANCE", "L" + DEOPTIMIZE + ";");
+        code.op(ATHROW, 1, null);
+    }
+
+    private void beginScope() {
+        scopes.add(new HashMap<>());
+    }
+
+    private void endScope() {
+        scopes.remove(scopes.size() - 1);
+    }
+
+    private Local resolve(Token name) {
+        for (int i = scopes.size() - 1; i >= 0; i--) {
+            Local local = scopes.get(i).get(name.symbol);
+            if (local != null) return local;
+        }
+        // globals could change under the compiled code
+        throw new Unsupported();
+    }
+
+    // Emits a jump to target taken when the condition's truthiness equals 'when'.
+    // Conditions are compiled to jumps directly rather than to a boolean on the stack.
+    private void branch(Expr condition, boolean when, BytecodeWriter.Label target) {
+        if (condition instanceof Expr.Grouping) {
+            branch(((Expr.Grouping)condition).expression, when, target);
+            return;
+        }
+
+        if (condition instanceof Expr.Literal && ((Expr.Literal)condition).value instanceof Boolean) {
+            if ((boolean)((Expr.Literal)condition).value == when) code.jump(GOTO, target);
+            return;
+        }
+
+        if (condition instanceof Expr.Unary && ((Expr.Unary)condition).operator.type == TokenType.BANG) {
+            branch(((Expr.Unary)condition).right, !when, target);
+            return;
+        }
+
+        if (condition instanceof Expr.Logical) {
+            Expr.Logical logical = (Expr.Logical)condition;
+            // kaj jumps on false as soon as either side is false, au on true as soon as either is true
+            boolean shortCircuit = logical.operator.type == TokenType.AU;
+            if (when == shortCircuit) {
+                branch(logical.left, when, target);
+                branch(logical.right, when, target);
+            } else {
+                BytecodeWriter.Label skip = code.label();
+                branch(logical.left, shortCircuit, skip);
+                branch(logical.right, when, target);
+                code.place(skip);
+            }
+            return;
+        }
+
+        if (condition instanceof Expr.Binary && compare((Expr.Binary)condition, when, target)) return;
+
+        compile(condition, BOOLEAN);
+        code.jump(when ? IFNE : IFEQ, target);
+    }
+
+    // Emits a comparison as a jump, returning false if the expression isn't one.
+    // NaN compares false, like it does in the interpreter, by choosing dcmpg or dcmpl.
+    private boolean compare(Expr.Binary expr, boolean when, BytecodeWriter.Label target) {
+        switch (expr.operator.type) {
+            case LESS:
+                compareNumbers(expr, DCMPG);
+                code.jump(when ? IFLT : IFGE, target);
+                return true;
+            case LESS_EQUAL:
+                compareNumbers(expr, DCMPG);
+                code.jump(when ? IFLE : IFGT, target);
+                return true;
+            case GREATER:
+                compareNumbers(expr, DCMPL);
+                code.jump(when ? IFGT : IFLE, target);
+                return true;
+            case GREATER_EQUAL:
+                compareNumbers(expr, DCMPL);
+                code.jump(when ? IFGE : IFLT, target);
+                return true;
+            case EQUAL_EQUAL:
+            case BANG_EQUAL: {
+                boolean equal = (expr.operator.type == TokenType.EQUAL_EQUAL) == when;
+                String type = compile(expr.left);
+                if (type.equals(BOOLEAN)) {
+                    compile(expr.right, BOOLEAN);
+                    code.jump(equal ? IF_ICMPEQ : IF_ICMPNE, target);
+                    return true;
+                }
+
+                String right = number(compile(expr.right));
+                if (number(type).equals(INTEGER) && right.equals(INTEGER)) {
+                    code.op(LCMP, 2, BOOLEAN);
+                    code.jump(equal ? IFEQ : IFNE, target);
+                } else if (type.equals(right)) {
+                    // Double.equals treats NaN as equal to itself and 0.0 as different from -0.0
+                    code.invokestatic("java/lang/Double", "compare", "(DD)I");
+                    code.jump(equal ? IFEQ : IFNE, target);
+                } else {
+                    // an integer equals a double of exactly its value
+                    code.invokestatic("utopiascript/Operators", "isEqual",
+                        type.equals(INTEGER) ? "(JD)Z" : "(DJ)Z");
+                    code.jump(equal ? IFNE : IFEQ, target);
+                }
+                return true;
+            }
+            default:
+                return false;
+        }
+    }
+
+    private void compareNumbers(Expr.Binary expr, int opcode) {
+        String left = number(compile(expr.left));
+        String right = number(compile(expr.right));
+        if (left.equals(right)) {
+            code.op(left.equals(INTEGER) ? LCMP : opcode, 2, BOOLEAN);
+            return;
+        }
+
+        // an integer and a double are compared exactly, since converting the integer could round it
+        code.iconst(opcode == DCMPG ? 1 : -1);
+        code.invokestatic("utopiascript/Operators", "compare", left.equals(INTEGER) ? "(JDI)I" : "(DJI)I");
+    }
+
+    // Leaves 1 or 0 on the stack for a condition
+    private String materialize(Expr condition) {
+        BytecodeWriter.Label isFalse = code.label();
+        BytecodeWriter.Label end = code.label();
+        branch(condition, false, isFalse);
+        code.iconst(1);
+        code.jump(GOTO, end);
+        code.place(isFalse);
+        code.iconst(0);
+        code.place(end);
+        return BOOLEAN;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        compile(stmt.expression);
+        code.pop();
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+        throw new Unsupported();
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+        // a variable without a value holds nenio
+        if (stmt.initializer == null) throw new Unsupported();
+
+        String type = compile(stmt.initializer);
+        int slot = code.declare(type);
+        code.store(type, slot);
+        scopes.get(scopes.size() - 1).put(stmt.name.symbol, new Local(type, slot));
+        return null;
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        int scope = code.scope();
+        beginScope();
+        for (Stmt statement : stmt.statements) {
+            compile(statement);
+        }
+        endScope();
+        code.endScope(scope);
+        return null;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        BytecodeWriter.Label elseBranch = code.label();
+        branch(stmt.condition, false, elseBranch);
+        compile(stmt.thenBranch);
+
+        if (stmt.elseBranch == null) {
+            code.place(elseBranch);
+            return null;
+        }
+
+        BytecodeWriter.Label end = code.label();
+        code.jump(GOTO, end);
+        code.place(elseBranch);
+        compile(stmt.elseBranch);
+        code.place(end);
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        BytecodeWriter.Label start = code.label();
+        BytecodeWriter.Label end = code.label();
+        code.place(start);
+        branch(stmt.condition, false, end);
+        compile(stmt.body);
+        code.jump(GOTO, start);
+        code.place(end);
+        return null;
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+        throw new Unsupported();
+    }
+
+    @Override
+    public Void visitImportStmt(Stmt.Import stmt) {
+        throw new Unsupported();
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+        if (stmt.value == null) throw new Unsupported();
+
+        String type = number(compile(stmt.value));
+        if (!type.equals(result)) throw new OtherResult();
+        code.op(result.equals(INTEGER) ? LRETURN : DRETURN, 1, null);
+        return null;
+    }
+
+    @Override
+    public String visitAssignExpr(Expr.Assign expr) {
+        Local local = resolve(expr.name);
+        compile(expr.value, local.type);
+        code.dup();
+        code.store(local.type, local.slot);
+        return local.type;
+    }
+
+    @Override
+    public String visitBinaryExpr(Expr.Binary expr) {
+        int opcode;
+        String exact;
+        switch (expr.operator.type) {
+            case PLUS: opcode = DADD; exact = "addExact"; break;
+            case MINUS: opcode = DSUB; exact = "subtractExact"; break;
+            case STAR: opcode = DMUL; exact = "multiplyExact"; break;
+            case SLASH: opcode = DDIV; exact = null; break;
+            default: return materialize(expr);
+        }
+
+        // division always gives a double
+        if (operands(compile(expr.left), expr.right, exact == null).equals(INTEGER)) {
+            // an overflow throws ArithmeticException, which bails out
+            code.invokestatic("java/lang/Math", exact, "(JJ)J");
+            return INTEGER;
+        }
+        if (opcode == DDIV) {
+            // the interpreter reports division by zero as an error
+            BytecodeWriter.Label nonZero = code.label();
+            code.dup();
+            code.dconst(0.0);
+            code.op(DCMPL, 2, BOOLEAN);
+            code.jump(IFNE, nonZero);
+            deoptimize();
+            code.place(nonZero);
+        }
+        code.op(opcode, 2, NUMBER);
+        return NUMBER;
+    }
+
+    @Override
+    public String visitGroupingExpr(Expr.Grouping expr) {
+        return compile(expr.expression);
+    }
+
+    @Override
+    public String visitLiteralExpr(Expr.Literal expr) {
+        if (expr.value instanceof Double) {
+            code.dconst((double)expr.value);
+            return NUMBER;
+        }
+        if (expr.value instanceof Long) {
+            code.lconst((long)expr.value);
+            return INTEGER;
+        }
+        if (expr.value instanceof Boolean) {
+            code.iconst((boolean)expr.value ? 1 : 0);
+            return BOOLEAN;
+        }
+        throw new Unsupported();
+    }
+
+    // kaj and au return one of their operands, which for booleans is the logical result
+    @Override
+    public String visitLogicalExpr(Expr.Logical expr) {
+        return materialize(expr);
+    }
+
+    @Override
+    public String visitUnaryExpr(Expr.Unary expr) {
+        if (expr.operator.type == TokenType.BANG) return materialize(expr);
+
+        if (number(compile(expr.right)).equals(INTEGER)) {
+            // negating the least long overflows, which bails out
+            code.invokestatic("java/lang/Math", "negateExact", "(J)J");
+            return INTEGER;
+        }
+        code.op(DNEG, 1, NUMBER);
+        return NUMBER;
+    }
+
+    @Override
+    public String visitVariableExpr(Expr.Variable expr) {
+        Local local = resolve(expr.name);
+        code.load(local.type, local.slot);
+        return local.type;
+    }
+
+    // Calls to the function itself are compiled straight to its run method, calls to an intrinsic
+    // straight to its static method, and calls to another numeric host function to an
+    // invokedynamic linked to its handle, all taking and returning doubles.
+    // Jit checks the names are still bound to the same functions before entering compiled code.
+    @Override
+    public String visitCallExpr(Expr.Call expr) {
+        if (!(expr.callee instanceof Expr.Variable)) throw new Unsupported();
+        Symbol name = ((Expr.Variable)expr.callee).name.symbol;
+        if (isLocal(name)) throw new Unsupported();
+
+        if (name == function.name.symbol) {
+            if (expr.arguments.size() != function.params.size()) throw new Unsupported();
+            for (int i = 0; i < expr.arguments.size(); i++) {
+                compile(expr.arguments.get(i), parameters.substring(i, i + 1));
+            }
+            code.invokestatic(writer.name(), "run", runDescriptor);
+            return result;
+        }
+
+        Object callee = globals.value(name);
+        if (!(callee instanceof HostFunction)) throw new Unsupported();
+        HostFunction host = (HostFunction)callee;
+        if (!host.numeric() || host.arity() != expr.arguments.size()) throw new Unsupported();
+
+        hosts.putIfAbsent(name, host);
+        for (Expr argument : expr.arguments) {
+            // host functions take integers as doubles, as they do from the interpreter
+            if (number(compile(argument)).equals(INTEGER)) code.op(L2D, 1, NUMBER);
+        }
+        String descriptor = "(" + NUMBER.repeat(host.arity()) + ")" + NUMBER;
+        if (host.owner != null) {
+            code.invokestatic(host.owner, host.method, descriptor);
+            return NUMBER;
+        }
+
+        int index = new ArrayList<>(hosts.keySet()).indexOf(name);
+        int handle = writer.staticMethodHandle(BOOTSTRAPS, "host",
+            "(Ljava/lang/invoke/MethodHandles$Lookup;Ljava/lang/String;Ljava/lang/invoke/MethodType;I)" +
+            "Ljava/lang/invoke/CallSite;");
+        int bootstrap = writer.bootstrapMethod(handle, writer.integer(index));
+        code.invokedynamic(bootstrap, host.name, descriptor);
+        return NUMBER;
+    }
+
+    private boolean isLocal(Symbol name) {
+        for (Map<Symbol, Local> scope : scopes) {
+            if (scope.containsKey(name)) return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,349 @@
+package utopiascript;
+
+import java.util.List;
+
+// The semantics of operators, shared by the interpreter and compiled code.
+// The specialized forms assume their operands have been checked already; Bootstraps links them
+// behind type guards, and everything else goes through the general form, which checks types
+// and reports errors at the operator.
+class Operators {
+    static Object binary(Token operator, Object left, Object right) {
+        if (left instanceof Long && right instanceof Long) {
+            long a = (long)left;
+            long b = (long)right;
+            switch (operator.type) {
+                case PLUS: return add(a, b);
+                case MINUS: return subtract(a, b);
+                case STAR: return multiply(a, b);
+                case GREATER: return a > b;
+                case GREATER_EQUAL: return a >= b;
+                case LESS: return a < b;
+                case LESS_EQUAL: return a <= b;
+                default: break;
+            }
+        } else if (left instanceof Long && right instanceof Double) {
+            Boolean result = compare(operator, compare((long)left, (double)right, unordered(operator)));
+            if (result != null) return result;
+        } else if (left instanceof Double && right instanceof Long) {
+            Boolean result = compare(operator, compare((double)left, (long)right, unordered(operator)));
+            if (result != null) return result;
+        }
+
+        switch (operator.type) {
+            case GREATER:
+                checkNumberOperands(operator, left, right);
+                return number(left) > number(right);
+
+            case GREATER_EQUAL:
+                checkNumberOperands(operator, left, right);
+                return number(left) >= number(right);
+
+            case LESS:
+                checkNumberOperands(operator, left, right);
+                return number(left) < number(right);
+
+            case LESS_EQUAL:
+                checkNumberOperands(operator, left, right);
+                return number(left) <= number(right);
+
+            case MINUS:
+                checkNumberOperands(operator, left, right);
+                return number(left) - number(right);
+
+            case PLUS:
+                if (isNumber(left) && isNumber(right)){
+                    return number(left) + number(right);
+                }
+                if (left instanceof String && right instanceof String){
+                    return (String)left + (String)right;
+                }
+                if (left instanceof String) {
+                    return (String)left + Interpreter.stringify(right);
+                }
+                if (right instanceof String){
+                    return Interpreter.stringify(left) + (String)right;
+                }
+
+                throw new RuntimeError(operator, "Operands must be two numbers or two strings.");
+
+            case SLASH:
+                checkNumberOperands(operator, left, right);
+                return divide(operator, number(left), number(right));
+
+            case STAR:
+                checkNumberOperands(operator, left, right);
+                return number(left) * number(right);
+
+            case BANG_EQUAL: return !isEqual(left, right);
+
+            case EQUAL_EQUAL: return isEqual(left, right);
+
+            default:
+                break;
+        }
+
+        return null;
+    }
+
+    static Object negate(Token operator, Object operand) {
+        if (operand instanceof Long) {
+            long value = (long)operand;
+            return value == Long.MIN_VALUE ? -(double)value : (Object)(-value);
+        }
+        if (!(operand instanceof Double)) {
+            throw new RuntimeError(operator, "Operand must be a number.");
+        }
+        return -(double)operand;
+    }
+
+    private static void checkNumberOperands(Token operator, Object left, Object right){
+        if (isNumber(left) && isNumber(right)) return;
+        throw new RuntimeError(operator, "Operands must be numbers.");
+    }
+
+    // Numbers are Longs when they are integers and Doubles otherwise. Arithmetic on two integers
+    // stays in longs until it overflows, when it carries on in doubles, while division and any
+    // operation with a Double give a Double.
+    static boolean isNumber(Object value) {
+        return value instanceof Double || value instanceof Long;
+    }
+
+    // The value of a number as a double
+    static double number(Object value) {
+        return value instanceof Long ? (double)(long)value : (double)value;
+    }
+
+    static Object add(long left, long right) {
+        try {
+            return Math.addExact(left, right);
+        } catch (ArithmeticException overflow) {
+            return (double)left + (double)right;
+        }
+    }
+
+    static Object subtract(long left, long right) {
+        try {
+            return Math.subtractExact(left, right);
+        } catch (ArithmeticException overflow) {
+            return (double)left - (double)right;
+        }
+    }
+
+    static Object multiply(long left, long right) {
+        try {
+            return Math.multiplyExact(left, right);
+        } catch (ArithmeticException overflow) {
+            return (double)left * (double)right;
+        }
+    }
+
+    // Helper to check if two objects should be considered equal or not
+    // An integer equals the Double of the same value, so 4 / 2 == 2
+    static boolean isEqual(Object a, Object b) {
+        if (a == null && b == null) return true;
+        if (a == null) return false;
+        if (a instanceof Long && b instanceof Double) return isEqual((long)a, (double)b);
+        if (a instanceof Double && b instanceof Long) return isEqual((long)b, (double)a);
+        return a.equals(b);
+    }
+
+    // Compares exactly, where converting the integer would round 2^53 + 1 to the double 2^53.
+    // The double has to be integral and in range, and like Double.equals, -0.0 is not 0.
+    static boolean isEqual(long a, double b) {
+        return Double.compare(a, b) == 0 && b < 0x1p63 && (long)b == a;
+    }
+
+    static boolean isEqual(double a, long b) {
+        return isEqual(b, a);
+    }
+
+    // Orders a long and a double exactly as -1, 0 or 1, where converting the long to a double
+    // could round it to the double. Zero and negative zero are the same, as they are to <, and
+    // like the dcmpl and dcmpg instructions it returns unordered when b is NaN: -1 for > and >=,
+    // 1 for < and <=, so that the comparison fails.
+    static int compare(long a, double b, int unordered) {
+        if (Double.isNaN(b)) return unordered;
+        if (b >= 0x1p63) return -1;
+        if (b < -0x1p63) return 1;
+        // the whole part of b fits in a long, and b minus it is exact
+        long whole = (long)b;
+        if (a != whole) return a < whole ? -1 : 1;
+        double fraction = b - whole;
+        return fraction > 0 ? -1 : fraction < 0 ? 1 : 0;
+    }
+
+    static int compare(double a, long b, int unordered) {
+        return -compare(b, a, -unordered);
+    }
+
+    // what compare returns for NaN under a relational operator
+    private static int unordered(Token operator) {
+        return operator.type == TokenType.GREATER || operator.type == TokenType.GREATER_EQUAL ? -1 : 1;
+    }
+
+    // The result of a relational operator given the order of its operands, or null for other operators
+    private static Boolean compare(Token operator, int order) {
+        switch (operator.type) {
+            case GREATER: return order > 0;
+            case GREATER_EQUAL: return order >= 0;
+            case LESS: return order < 0;
+            case LESS_EQUAL: return order <= 0;
+            default: return null;
+        }
+    }
+
+    static double divide(Token operator, double left, double right) {
+        if (right == 0.0){
+            throw new RuntimeError(operator, "Cannot divide by zero.");
+        }
+        return left / right;
+    }
+
+    // Specialized forms
+
+    static boolean numbers(Object left, Object right) {
+        return left instanceof Double && right instanceof Double;
+    }
+
+    static boolean strings(Object left, Object right) {
+        return left instanceof String && right instanceof String;
+    }
+
+    static boolean leftString(Object left, Object right) {
+        return left instanceof String;
+    }
+
+    static boolean rightString(Object left, Object right) {
+        return right instanceof String;
+    }
+
+    static Object add(Object left, Object right) {
+        return (double)left + (double)right;
+    }
+
+    static Object subtract(Object left, Object right) {
+        return (double)left - (double)right;
+    }
+
+    static Object multiply(Object left, Object right) {
+        return (double)left * (double)right;
+    }
+
+    static Object divide(Token operator, Object left, Object right) {
+        return divide(operator, (double)left, (double)right);
+    }
+
+    static boolean integers(Object left, Object right) {
+        return left instanceof Long && right instanceof Long;
+    }
+
+    static Object addIntegers(Object left, Object right) {
+        return add((long)left, (long)right);
+    }
+
+    static Object subtractIntegers(Object left, Object right) {
+        return subtract((long)left, (long)right);
+    }
+
+    static Object multiplyIntegers(Object left, Object right) {
+        return multiply((long)left, (long)right);
+    }
+
+    static Object greaterIntegers(Object left, Object right) {
+        return (long)left > (long)right;
+    }
+
+    static Object greaterEqualIntegers(Object left, Object right) {
+        return (long)left >= (long)right;
+    }
+
+    static Object lessIntegers(Object left, Object right) {
+        return (long)left < (long)right;
+    }
+
+    static Object lessEqualIntegers(Object left, Object right) {
+        return (long)left <= (long)right;
+    }
+
+    static Object greater(Object left, Object right) {
+        return (double)left > (double)right;
+    }
+
+    static Object greaterEqual(Object left, Object right) {
+        return (double)left >= (double)right;
+    }
+
+    static Object less(Object left, Object right) {
+        return (double)left < (double)right;
+    }
+
+    static Object lessEqual(Object left, Object right) {
+        return (double)left <= (double)right;
+    }
+
+    static Object concatenate(Object left, Object right) {
+        return (String)left + (String)right;
+    }
+
+    static Object concatenateLeft(Object left, Object right) {
+        return (String)left + Interpreter.stringify(right);
+    }
+
+    static Object concatenateRight(Object left, Object right) {
+        return Interpreter.stringify(left) + (String)right;
+    }
+
+    static Object equal(Object left, Object right) {
+        return isEqual(left, right);
+    }
+
+    static Object notEqual(Object left, Object right) {
+        return !isEqual(left, right);
+    }
+
+    // Calls
+
+    // Makes a call from compiled code with the same checks as Interpreter.visitCallExpr,
+    // reporting errors at the call's closing parenthesis
+    // Calls a host function with its arguments in an array, as callers that check for one do
+    static Object call(Token paren, HostFunction host, Object[] arguments) {
+        if (arguments.length != host.arity()) {
+            throw new RuntimeError(paren, "Expected " + host.arity() + " arguments but got " +
+                arguments.length + ".");
+        }
+
+        try {
+            return host.call(arguments);
+        } catch (RuntimeError error) {
+            // errors raised by natives carry no token, so report them at the call site
+            if (error.token == null) throw new RuntimeError(paren, error.getMessage());
+            throw error;
+        }
+    }
+
+    static Object call(Interpreter interpreter, Token paren, Object callee, List<Object> arguments) {
+        // check if the object is even callable
+        if (!(callee instanceof UtopiaScriptCallable)) {
+            throw new RuntimeError(paren,
+                "Can only call functions and classes");
+        }
+
+        UtopiaScriptCallable function = (UtopiaScriptCallable)callee;
+
+        // check that the number of parameters is equal to the number of arguments
+        if (arguments.size() != function.arity()) {
+            throw new RuntimeError(paren, "Expected " +
+            function.arity() + " arguments but got " +
+            arguments.size() + ".");
+        }
+
+        interpreter.calls.site = paren.line;
+        try {
+            return function.call(interpreter, arguments);
+        } catch (RuntimeError error) {
+            // errors raised by natives carry no token, so report them at the call site
+            if (error.token == null) throw new RuntimeError(paren, error.getMessage());
+            throw error;
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package utopiascript;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+
+// Library functions that split work on a sequence across a fork/join pool.
+// The function being applied runs on worker threads, each with its own interpreter sharing the
+// caller's globals, so it has to pass the PurityChecker: it may read globals holding plain
+// values, but not write them.
+class ParallelNatives {
+    // the calling thread blocks while the pool works, so every core gets a worker
+    private static final ForkJoinPool pool =
+        new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+
+    // aim for a few chunks per worker so uneven elements still balance out
+    private static final int CHUNKS_PER_WORKER = 4;
+
+    static void define(Environment globals) {
+        // paralele_mapi(listo, funkcio) applies funkcio to every element in parallel
+        // and returns an iterator over the results in the original order
+        globals.define("paralele_mapi", new IterationNatives.HigherOrder(2, 1) {
+            @Override
+            public Object call(Interpreter interpreter, List<Object> arguments) {
+                Object[] elements = elements(arguments.get(0));
+                UtopiaScriptCallable function = pureCallable(interpreter, arguments.get(1), 1);
+
+                Object[] results = new Object[elements.length];
+                pool.invoke(new MapTask(interpreter, function, elements, results,
+                    0, elements.length, threshold(elements.length)));
+
+                return iterate(results);
+            }
+        });
+
+        // paralele_redukti(listo, funkcio, komenco) folds the elements in parallel.
+        // funkcio must be associative and komenco its identity, since every chunk
+        // starts from komenco and the partial results are combined with funkcio.
+        globals.define("paralele_redukti", new IterationNatives.HigherOrder(3, 1) {
+            @Override
+            public Object call(Interpreter interpreter, List<Object> arguments) {
+                Object[] elements = elements(arguments.get(0));
+                UtopiaScriptCallable function = pureCallable(interpreter, arguments.get(1), 2);
+
+                return pool.invoke(new ReduceTask(interpreter, function, elements, arguments.get(2),
+                    0, elements.length, threshold(elements.length)));
+            }
+        });
+    }
+
+    private static int threshold(int size) {
+        int chunks = pool.getParallelism() * CHUNKS_PER_WORKER;
+        return Math.max(1, (size + chunks - 1) / chunks);
+    }
+
+    // work is split by index, so the sequence has to be materialized first
+    private static Object[] elements(Object value) {
+        UtopiaScriptIterator iterator = UtopiaScriptIterator.from(value);
+        List<Object> elements = new ArrayList<>();
+        while (iterator.hasNext()) {
+            elements.add(iterator.next());
+        }
+        return elements.toArray();
+    }
+
+    private static UtopiaScriptCallable pureCallable(Interpreter interpreter, Object value, int arity) {
+        UtopiaScriptCallable function = IterationNatives.callable(value, arity);
+
+        if (!new PurityChecker(interpreter.globals).isPure(function)) {
+            throw new RuntimeError("Can only run pure functions in parallel, but " + function +
+                " prints, assigns to a global or calls or passes on a function that does.");
+        }
+        return function;
+    }
+
+    private static UtopiaScriptIterator iterate(Object[] values) {
+        return new UtopiaScriptIterator() {
+            private int index = 0;
+
+            @Override
+            public boolean hasNext() { return index < values.length; }
+
+            @Override
+            public Object next() {
+                if (!hasNext()) throw new NoSuchElementException();
+                return values[index++];
+            }
+        };
+    }
+
+    private static class MapTask extends RecursiveAction {
+        private final Interpreter interpreter;
+        private final UtopiaScriptCallable function;
+        private final Object[] elements;
+        private final Object[] results;
+        private final int from;
+        private final int to;
+        private final int threshold;
+
+        MapTask(Interpreter interpreter, UtopiaScriptCallable function,
+                Object[] elements, Object[] results, int from, int to, int threshold) {
+            this.interpreter = interpreter;
+            this.function = function;
+            this.elements = elements;
+            this.results = results;
+            this.from = from;
+            this.to = to;
+            this.threshold = threshold;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= threshold) {
+                Interpreter worker = interpreter.worker();
+                for (int i = from; i < to; i++) {
+                    results[i] = function.call(worker, Collections.singletonList(elements[i]));
+                }
+                return;
+            }
+
+            int middle = (from + to) >>> 1;
+            invokeAll(
+                new MapTask(interpreter, function, elements, results, from, middle, threshold),
+                new MapTask(interpreter, function, elements, results, middle, to, threshold));
+        }
+    }
+
+    private static class ReduceTask extends RecursiveTask<Object> {
+        private final Interpreter interpreter;
+        private final UtopiaScriptCallable function;
+        private final Object[] elements;
+        private final Object identity;
+        private final int from;
+        private final int to;
+        private final int threshold;
+
+        ReduceTask(Interpreter interpreter, UtopiaScriptCallable function,
+                Object[] elements, Object identity, int from, int to, int threshold) {
+            this.interpreter = interpreter;
+            this.function = function;
+            this.elements = elements;
+            this.identity = identity;
+            this.from = from;
+            this.to = to;
+            this.threshold = threshold;
+        }
+
+        @Override
+        protected Object compute() {
+            if (to - from <= threshold) {
+                Interpreter worker = interpreter.worker();
+                Object accumulator = identity;
+                for (int i = from; i < to; i++) {
+                    accumulator = function.call(worker, Arrays.asList(accumulator, elements[i]));
+                }
+                return accumulator;
+            }
+
+            int middle = (from + to) >>> 1;
+            ReduceTask left = new ReduceTask(interpreter, function, elements, identity, from, middle, threshold);
+            ReduceTask right = new ReduceTask(interpreter, function, elements, identity, middle, to, threshold);
+            right.fork();
+            Object leftResult = left.compute();
+            Object rightResult = right.join();
+
+            return function.call(interpreter.worker(), Arrays.asList(leftResult, rightResult));
+        }
+    }
+}
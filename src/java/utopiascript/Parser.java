@@ -9,10 +9,20 @@ import java.util.List;
 public class Parser {
     private static class ParseError extends RuntimeException {}
     private final List<Token> tokens;
+    private final ErrorReporter reporter;
     private int current = 0;
+    // how many blocks the parser is inside
+    private int blockDepth = 0;
+    // how many function bodies the parser is inside
+    private int functionDepth = 0;
 
     Parser(List<Token> tokens){
+        this(tokens, UtopiaScript.reporter);
+    }
+
+    Parser(List<Token> tokens, ErrorReporter reporter){
         this.tokens = tokens;
+        this.reporter = reporter;
     }
 
     List<Stmt> parse() {
@@ -24,6 +34,12 @@ public class Parser {
         return statements;
     }
 
+    // Parses one top-level declaration, for callers that parse a source a declaration at a time.
+    // Returns null if the declaration had an error.
+    Stmt nextDeclaration() {
+        return declaration();
+    }
+
     private Expr expression(){
         return assignment();
     }
@@ -74,8 +90,14 @@ public class Parser {
 
     private Stmt declaration() {
         try {
-            if (match(VAR)) return varDeclaration();
-            if (match(FUNKCIO)) return function("function");
+            int line = peek().line;
+            if (match(VAR)) return at(line, varDeclaration());
+            if (match(FUNKCIO)) return at(line, function("function"));
+            if (match(IMPORTI)) {
+                // a module's functions see the globals, so its definitions have to be globals too
+                if (blockDepth > 0) error(previous(), "Can only import at the top level of a file.");
+                return at(line, importDeclaration());
+            }
             return statement();
         } catch (ParseError error) {
             synchronize();
@@ -84,14 +106,21 @@ public class Parser {
     }
 
     private Stmt statement() {
-        if (match(PRESI)) return printStatement();
-        if (match(LEFT_BRACE)) return new Stmt.Block(block());
-        if (match(SE)) return ifStatement();
-        if (match(DUM)) return whileStatement();
-        if (match(POR)) return forStatement();
-        if (match(REVENIGI)) return returnStatement();
+        int line = peek().line;
+        if (match(PRESI)) return at(line, printStatement());
+        if (match(LEFT_BRACE)) return at(line, new Stmt.Block(block()));
+        if (match(SE)) return at(line, ifStatement());
+        if (match(DUM)) return at(line, whileStatement());
+        if (match(POR)) return at(line, forStatement());
+        if (match(REVENIGI)) return at(line, returnStatement());
+
+        return at(line, expressionStatement());
+    }
 
-        return expressionStatement();
+    // Records the line a statement starts on
+    private <T extends Stmt> T at(int line, T stmt) {
+        stmt.line = line;
+        return stmt;
     }
     
     // Parses a print statement
@@ -104,8 +133,13 @@ public class Parser {
     private List<Stmt> block() {
         List<Stmt> statements = new ArrayList<Stmt>();
 
-        while (!check(RIGHT_BRACE) && !isAtEnd()) {
-            statements.add(declaration());
+        blockDepth++;
+        try {
+            while (!check(RIGHT_BRACE) && !isAtEnd()) {
+                statements.add(declaration());
+            }
+        } finally {
+            blockDepth--;
         }
 
         consume(RIGHT_BRACE, "Expect '}' after block.");
@@ -146,16 +180,22 @@ public class Parser {
     // The initializer, condition, and increment are optional.
     // The for loop is syntatic sugar that is desugarized to rely on the while loop.
     private Stmt forStatement() {
+        int line = previous().line;
         consume(LEFT_PAREN, "Expect '(' after 'for'.");
 
+        // 'en' is only a keyword here, so scripts can still name variables en
+        if (check(IDENTIFIER) && checkNextWord("en")) {
+            return forEachStatement();
+        }
+
         // check for initializer
         Stmt initializer;
         if (match(SEMICOLON)) {
             initializer = null;
         } else if (match(VAR)) {
-            initializer = varDeclaration();
+            initializer = at(line, varDeclaration());
         } else {
-            initializer = expressionStatement();
+            initializer = at(line, expressionStatement());
         }
 
         // check for condition
@@ -176,24 +216,58 @@ public class Parser {
         Stmt body = statement();
 
         if (increment != null) {
-            body = new Stmt.Block(
+            body = at(line, new Stmt.Block(
                 Arrays.asList(
                     body,
-                    new Stmt.Expression(increment)
+                    at(line, new Stmt.Expression(increment))
                 )
-            );
+            ));
         }
 
         if (condition == null) condition = new Expr.Literal(true);
-        body = new Stmt.While(condition, body);
+        body = at(line, new Stmt.While(condition, body));
 
         if (initializer != null) {
-            body = new Stmt.Block(Arrays.asList(initializer, body));
+            body = at(line, new Stmt.Block(Arrays.asList(initializer, body)));
         }
 
         return body;
     }
 
+    // Parses a for-each statement
+    // por (name en iterable) body
+    // The iterable is consumed lazily, one element per loop iteration. Like the for loop
+    // this is desugared into a while loop:
+    // { var <iterator> = iterate(iterable); dum (hasNext(<iterator>)) { var name = next(<iterator>); body } }
+    private Stmt forEachStatement() {
+        Token name = consume(IDENTIFIER, "Expect loop variable name.");
+        Token in = advance();
+        Expr iterable = expression();
+        consume(RIGHT_PAREN, "Expect ')' after for clauses.");
+
+        Stmt body = statement();
+
+        // the lexeme contains a space, so it can never clash with a script identifier
+        Token iterator = new Token(IDENTIFIER, "por iterator", null, in.line);
+        Expr iteratorValue = new Expr.Variable(iterator);
+
+        body = at(in.line, new Stmt.Block(
+            Arrays.asList(
+                at(in.line, new Stmt.Var(name, new Expr.Call(
+                    new Expr.Literal(UtopiaScriptIterator.NEXT), in, Arrays.asList(iteratorValue)))),
+                body
+            )
+        ));
+
+        Expr condition = new Expr.Call(
+            new Expr.Literal(UtopiaScriptIterator.HAS_NEXT), in, Arrays.asList(iteratorValue));
+
+        Stmt initializer = at(in.line, new Stmt.Var(iterator, new Expr.Call(
+            new Expr.Literal(UtopiaScriptIterator.ITERATE), in, Arrays.asList(iterable))));
+
+        return new Stmt.Block(Arrays.asList(initializer, at(in.line, new Stmt.While(condition, body))));
+    }
+
     // Parses a variable declaration
     private Stmt varDeclaration() {
         Token name = consume(IDENTIFIER, "Expect variable name");
@@ -208,6 +282,14 @@ public class Parser {
         return new Stmt.Var(name, initializer);
     }
     
+    // Parses an import: importi "path";
+    private Stmt importDeclaration() {
+        Token keyword = previous();
+        Token path = consume(STRING, "Expect module path after 'importi'.");
+        consume(SEMICOLON, "Expect ; after module path.");
+        return new Stmt.Import(keyword, path);
+    }
+
     private Stmt expressionStatement() {
         Expr expr = expression();
         consume(SEMICOLON, "Expect ; after expression.");
@@ -236,7 +318,13 @@ public class Parser {
         consume(LEFT_BRACE, "Expect '{' before " + kind + " body");
         
         // grab the body
-        List<Stmt> body = block();
+        functionDepth++;
+        List<Stmt> body;
+        try {
+            body = block();
+        } finally {
+            functionDepth--;
+        }
 
         return new Stmt.Function(name, parameters, body);
     }
@@ -245,6 +333,7 @@ public class Parser {
     // value is optional, default is null
     private Stmt returnStatement() {
         Token keyword = previous();
+        if (functionDepth == 0) error(keyword, "Can't return from top-level code.");
 
         Expr value = null;
         if (!check(SEMICOLON)) {
@@ -387,13 +476,16 @@ public class Parser {
 
     // handles parse errors
     private ParseError error(Token token, String message) {
-        UtopiaScript.error(token, message);
+        reporter.error(token, message);
         return new ParseError();
     }
 
     // Synchronizes token stream by discarding tokens until it reaches a point that can start a rule
-    // Used when there is a parsing error
+    // Used when there is a parsing error. Stops before a closing brace, so an error inside a block
+    // doesn't swallow the end of the block along with the declarations after it.
     private void synchronize() {
+        // a brace that ends the enclosing block is left for the block
+        if (check(RIGHT_BRACE) && blockDepth > 0) return;
         advance();
 
         while (!isAtEnd()){
@@ -410,6 +502,8 @@ public class Parser {
                 case DUM:
                 case PRESI:
                 case REVENIGI:
+                case IMPORTI:
+                case RIGHT_BRACE:
                     return;
                 default:
                     break;
@@ -437,13 +531,21 @@ public class Parser {
         return peek().type == type;
     }
 
+    // Checks the type of the token after the current one
+    // Checks whether the next token after the current one is an identifier spelled word
+    private boolean checkNextWord(String word){
+        if (isAtEnd()) return false;
+        Token next = tokens.get(current + 1);
+        return next.type == IDENTIFIER && next.lexeme.equals(word);
+    }
+
     // Advances the token stream
     private Token advance(){
         if (!isAtEnd()) current++;
         return previous();
     }
 
-    private boolean isAtEnd(){
+    boolean isAtEnd(){
         return peek().type == EOF;
     }
 
@@ -451,7 +553,7 @@ public class Parser {
         return tokens.get(current);
     }
 
-    private Token previous(){
+    Token previous(){
         return tokens.get(current-1);
     }
 }
@@ -0,0 +1,202 @@
+package utopiascript;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+// An instrumenting profiler for script code, enabled with --profile.
+// The interpreter reports every statement it executes and every call it makes. The profiler
+// keeps per-function call counts and times, per-line execution counts, and a call tree that
+// is written out in the collapsed-stack format understood by flamegraph tools.
+class Profiler {
+    private static final int REPORTED_LINES = 20;
+
+    private static final class FunctionStats {
+        final String name;
+        long calls;
+        long totalNanos;
+        long selfNanos;
+        // activations currently on the stack, so recursion doesn't count total time twice
+        int active;
+
+        FunctionStats(String name) {
+            this.name = name;
+        }
+    }
+
+    // A node in the call tree. Its path from the root is one collapsed stack.
+    private static final class CallNode {
+        final CallNode parent;
+        final FunctionStats function;
+        final Map<FunctionStats, CallNode> children = new HashMap<>();
+        long selfNanos;
+
+        CallNode(CallNode parent, FunctionStats function) {
+            this.parent = parent;
+            this.function = function;
+        }
+
+        CallNode child(FunctionStats function) {
+            CallNode child = children.get(function);
+            if (child == null) {
+                child = new CallNode(this, function);
+                children.put(function, child);
+            }
+            return child;
+        }
+    }
+
+    private final Map<Object, FunctionStats> functions = new IdentityHashMap<>();
+    private final CallNode root = new CallNode(null, new FunctionStats("<script>"));
+    private CallNode current = root;
+    private long[] lineCounts = new long[64];
+
+    // per-frame start time and time spent in callees; frame 0 is the script itself
+    private long[] starts = new long[64];
+    private long[] childNanos = new long[64];
+    private int depth = 0;
+
+    Profiler() {
+        starts[0] = System.nanoTime();
+    }
+
+    void line(int line) {
+        if (line <= 0) return;
+        if (line >= lineCounts.length) {
+            lineCounts = Arrays.copyOf(lineCounts, Math.max(line + 1, lineCounts.length * 2));
+        }
+        lineCounts[line]++;
+    }
+
+    // Makes a call to a native on behalf of the interpreter, timing it as a frame of its own.
+    // Script functions time themselves in UtopiaScriptFunction.call, so that calls made by
+    // natives like mapi are profiled too. Unnamed natives, like those a for-each loop
+    // desugars into, are counted as part of the caller.
+    Object call(Interpreter interpreter, Expr.Call expr,
+                UtopiaScriptCallable function, List<Object> arguments) {
+        if (function instanceof UtopiaScriptFunction || !(expr.callee instanceof Expr.Variable)) {
+            return function.call(interpreter, arguments);
+        }
+
+        enter(function, ((Expr.Variable)expr.callee).name);
+        try {
+            return function.call(interpreter, arguments);
+        } finally {
+            exit();
+        }
+    }
+
+    // Starts a frame for a function, named by the token that names it
+    void enter(UtopiaScriptCallable function, Token name) {
+        // a funkcio statement makes a new function each time it runs, so script functions
+        // are counted by their declaration
+        boolean script = function instanceof UtopiaScriptFunction;
+        Object key = script ? ((UtopiaScriptFunction)function).declaration : function;
+        FunctionStats stats = functions.get(key);
+        if (stats == null) {
+            // script functions are told apart by the line they are declared on
+            stats = new FunctionStats(script ? name.lexeme + ":" + name.line : name.lexeme);
+            functions.put(key, stats);
+        }
+        stats.calls++;
+        stats.active++;
+        current = current.child(stats);
+
+        depth++;
+        if (depth == starts.length) {
+            starts = Arrays.copyOf(starts, depth * 2);
+            childNanos = Arrays.copyOf(childNanos, depth * 2);
+        }
+        starts[depth] = System.nanoTime();
+        childNanos[depth] = 0;
+    }
+
+    void exit() {
+        long elapsed = System.nanoTime() - starts[depth];
+        long self = elapsed - childNanos[depth];
+        depth--;
+        childNanos[depth] += elapsed;
+
+        FunctionStats stats = current.function;
+        stats.selfNanos += self;
+        stats.active--;
+        if (stats.active == 0) stats.totalNanos += elapsed;
+
+        current.selfNanos += self;
+        current = current.parent;
+    }
+
+    // Prints functions by self time, followed by the most executed lines
+    void report(PrintStream out) {
+        finishScript();
+
+        List<FunctionStats> byTime = new ArrayList<>(functions.values());
+        byTime.add(root.function);
+        byTime.sort((a, b) -> Long.compare(b.selfNanos, a.selfNanos));
+
+        out.println("Functions by self time:");
+        out.printf("%12s %12s %12s  %s%n", "calls", "total ms", "self ms", "function");
+        for (FunctionStats stats : byTime) {
+            out.printf("%12d %12.3f %12.3f  %s%n", stats.calls,
+                stats.totalNanos / 1e6, stats.selfNanos / 1e6, stats.name);
+        }
+
+        List<Integer> lines = new ArrayList<>();
+        for (int line = 1; line < lineCounts.length; line++) {
+            if (lineCounts[line] > 0) lines.add(line);
+        }
+        lines.sort((a, b) -> Long.compare(lineCounts[b], lineCounts[a]));
+
+        out.println();
+        out.println("Lines by execution count:");
+        out.printf("%12s  %s%n", "count", "line");
+        for (int line : lines.subList(0, Math.min(REPORTED_LINES, lines.size()))) {
+            out.printf("%12d  %d%n", lineCounts[line], line);
+        }
+    }
+
+    // Writes one "frame;frame;frame microseconds" line per call path, using self time
+    void writeCollapsedStacks(String path) throws IOException {
+        finishScript();
+
+        try (PrintWriter writer = new PrintWriter(
+                Files.newBufferedWriter(Paths.get(path), Charset.defaultCharset()))) {
+            writeCollapsed(writer, root, root.function.name);
+        }
+    }
+
+    private void writeCollapsed(PrintWriter writer, CallNode node, String stack) {
+        long micros = node.selfNanos / 1000;
+        if (micros > 0) writer.println(stack + " " + micros);
+
+        for (CallNode child : node.children.values()) {
+            writeCollapsed(writer, child, stack + ";" + child.function.name);
+        }
+    }
+
+    // Charges the time the script has run so far to the script's own frame
+    private void finishScript() {
+        if (depth != 0) return;
+
+        long now = System.nanoTime();
+        long elapsed = now - starts[0];
+        long self = elapsed - childNanos[0];
+
+        root.function.calls = 1;
+        root.function.totalNanos += elapsed;
+        root.function.selfNanos += self;
+        root.selfNanos += self;
+
+        starts[0] = now;
+        childNanos[0] = 0;
+    }
+}
@@ -0,0 +1,228 @@
+package utopiascript;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+// Decides whether a function can safely run on a worker thread.
+// A function is pure when its body only writes to its own local variables, does no output,
+// and only calls natives without side effects or other pure global functions, and only passes
+// pure functions along.
+// Pure functions may still read globals that hold plain values, which is safe as long as nothing
+// writes to them while the workers run.
+class PurityChecker implements Expr.Visitor<Boolean>, Stmt.Visitor<Boolean> {
+    private final Environment globals;
+    // declarations already checked or being checked, so recursion terminates
+    private final Set<Stmt.Function> visited = new HashSet<>();
+    // names declared in each enclosing local scope of the function being checked
+    private List<Set<Symbol>> scopes = new ArrayList<>();
+
+    PurityChecker(Environment globals) {
+        this.globals = globals;
+    }
+
+    private boolean checkFunction(Stmt.Function function) {
+        if (!visited.add(function)) return true;
+
+        // functions only see their own locals and the globals
+        List<Set<Symbol>> enclosing = scopes;
+        scopes = new ArrayList<>();
+        try {
+            beginScope();
+            for (Token param : function.params) {
+                declare(param);
+            }
+            return checkAll(function.body);
+        } finally {
+            scopes = enclosing;
+        }
+    }
+
+    private boolean checkAll(List<Stmt> statements) {
+        for (Stmt statement : statements) {
+            if (!check(statement)) return false;
+        }
+        return true;
+    }
+
+    private boolean check(Stmt stmt) {
+        return stmt.accept(this);
+    }
+
+    private boolean check(Expr expr) {
+        return expr == null || expr.accept(this);
+    }
+
+    private void beginScope() {
+        scopes.add(new HashSet<>());
+    }
+
+    private void endScope() {
+        scopes.remove(scopes.size() - 1);
+    }
+
+    private void declare(Token name) {
+        scopes.get(scopes.size() - 1).add(name.symbol);
+    }
+
+    private boolean isLocal(Token name) {
+        for (Set<Symbol> scope : scopes) {
+            if (scope.contains(name.symbol)) return true;
+        }
+        return false;
+    }
+
+    @Override
+    public Boolean visitExpressionStmt(Stmt.Expression stmt) {
+        return check(stmt.expression);
+    }
+
+    // output from several threads would interleave unpredictably
+    @Override
+    public Boolean visitPrintStmt(Stmt.Print stmt) {
+        return false;
+    }
+
+    @Override
+    public Boolean visitVarStmt(Stmt.Var stmt) {
+        if (!check(stmt.initializer)) return false;
+        declare(stmt.name);
+        return true;
+    }
+
+    @Override
+    public Boolean visitBlockStmt(Stmt.Block stmt) {
+        beginScope();
+        try {
+            return checkAll(stmt.statements);
+        } finally {
+            endScope();
+        }
+    }
+
+    @Override
+    public Boolean visitIfStmt(Stmt.If stmt) {
+        return check(stmt.condition) && check(stmt.thenBranch) &&
+            (stmt.elseBranch == null || check(stmt.elseBranch));
+    }
+
+    @Override
+    public Boolean visitWhileStmt(Stmt.While stmt) {
+        return check(stmt.condition) && check(stmt.body);
+    }
+
+    // a nested declaration only defines a local
+    @Override
+    public Boolean visitFunctionStmt(Stmt.Function stmt) {
+        declare(stmt.name);
+        return checkFunction(stmt);
+    }
+
+    // running a module for the first time has effects of its own
+    @Override
+    public Boolean visitImportStmt(Stmt.Import stmt) {
+        return false;
+    }
+
+    @Override
+    public Boolean visitReturnStmt(Stmt.Return stmt) {
+        return check(stmt.value);
+    }
+
+    @Override
+    public Boolean visitAssignExpr(Expr.Assign expr) {
+        return isLocal(expr.name) && check(expr.value);
+    }
+
+    @Override
+    public Boolean visitBinaryExpr(Expr.Binary expr) {
+        return check(expr.left) && check(expr.right);
+    }
+
+    @Override
+    public Boolean visitGroupingExpr(Expr.Grouping expr) {
+        return check(expr.expression);
+    }
+
+    @Override
+    public Boolean visitLiteralExpr(Expr.Literal expr) {
+        return true;
+    }
+
+    @Override
+    public Boolean visitLogicalExpr(Expr.Logical expr) {
+        return check(expr.left) && check(expr.right);
+    }
+
+    @Override
+    public Boolean visitUnaryExpr(Expr.Unary expr) {
+        return check(expr.right);
+    }
+
+    // A function passed along could be called by whatever receives it, so it has to be pure too
+    @Override
+    public Boolean visitVariableExpr(Expr.Variable expr) {
+        return isLocal(expr.name) || isPureGlobal(expr.name);
+    }
+
+    // Only reading values that can't change is pure: an iterator is used up by whoever reads it,
+    // and host objects like writers change too
+    private boolean isPureGlobal(Token name) {
+        Object value = global(name);
+        if (value instanceof UtopiaScriptCallable) return isPure(value);
+        return value == null || value instanceof Boolean || value instanceof Long ||
+            value instanceof Double || value instanceof String;
+    }
+
+    // The callee has to be known up front: either a native, or a global function
+    // that is itself pure. Calling a local value could run anything. Natives like mapi
+    // call the function they are given, which has to be known and pure in the same way.
+    @Override
+    public Boolean visitCallExpr(Expr.Call expr) {
+        Object callee = known(expr.callee);
+        if (!(callee instanceof UtopiaScriptCallable)) return false;
+        if (!(callee instanceof IterationNatives.HigherOrder) && !isPure(callee)) return false;
+
+        for (int i = 0; i < expr.arguments.size(); i++) {
+            Expr argument = expr.arguments.get(i);
+            if (!check(argument)) return false;
+            if (callee instanceof IterationNatives.HigherOrder &&
+                    i == ((IterationNatives.HigherOrder)callee).function) {
+                Object function = known(argument);
+                if (!(function instanceof UtopiaScriptCallable) || !isPure(function)) return false;
+            }
+        }
+        return true;
+    }
+
+    // The value of a literal or a global, or null when it can't be known before running
+    private Object known(Expr expr) {
+        if (expr instanceof Expr.Literal) return ((Expr.Literal)expr).value;
+        if (!(expr instanceof Expr.Variable)) return null;
+
+        Token name = ((Expr.Variable)expr).name;
+        return isLocal(name) ? null : global(name);
+    }
+
+    // an undefined global is an error when it is read, not an effect
+    private Object global(Token name) {
+        try {
+            return globals.get(name);
+        } catch (RuntimeError error) {
+            return null;
+        }
+    }
+
+    // A higher-order native passed along could be handed anything to call.
+    // Functions declared in flat code are checked by the declaration they were made from.
+    boolean isPure(Object callable) {
+        if (callable instanceof UtopiaScriptFunction) {
+            return checkFunction(((UtopiaScriptFunction)callable).declaration);
+        }
+        if (callable instanceof FlatAst.Function) {
+            return checkFunction(((FlatAst.Function)callable).declaration());
+        }
+        return !(callable instanceof IoNatives.Effectful) && !(callable instanceof IterationNatives.HigherOrder);
+    }
+}
@@ -0,0 +1,230 @@
+package utopiascript;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// What each name in one top-level declaration refers to, for the language server.
+// Scoping follows the interpreter: blocks nest, and functions only see their own locals and
+// the globals. Tokens keep the positions they were parsed at, so a resolution stays valid for
+// as long as its Document.Declaration is kept, wherever the declaration moves to.
+final class Resolution implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+    // A name in the source and its local definition, or null when it names a global
+    static final class Reference {
+        final Token name;
+        final Token definition;
+
+        Reference(Token name, Token definition) {
+            this.name = name;
+            this.definition = definition;
+        }
+    }
+
+    // the globals the declaration defines
+    final List<Token> globalVariables = new ArrayList<>();
+    final List<Token> globalFunctions = new ArrayList<>();
+    // ordered by offset
+    final List<Reference> references = new ArrayList<>();
+    private List<Map<Symbol, Token>> scopes = new ArrayList<>();
+
+    private Resolution() {
+    }
+
+    static Resolution of(Stmt stmt) {
+        Resolution resolution = new Resolution();
+        resolution.resolve(stmt);
+        resolution.references.sort(Comparator.comparingInt(reference -> reference.name.offset));
+        return resolution;
+    }
+
+    // Returns the reference whose name covers an offset, counting the offset just after it,
+    // or null. The offset is where the declaration was parsed, not where it is now.
+    Reference at(int offset) {
+        int low = 0;
+        int high = references.size() - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            Token name = references.get(middle).name;
+            if (name.offset + name.lexeme.length() < offset) {
+                low = middle + 1;
+            } else if (name.offset > offset) {
+                high = middle - 1;
+            } else {
+                return references.get(middle);
+            }
+        }
+        return null;
+    }
+
+    private void resolve(Stmt stmt) {
+        // statements with parse errors are left out of the tree
+        if (stmt != null) stmt.accept(this);
+    }
+
+    private void resolve(Expr expr) {
+        if (expr != null) expr.accept(this);
+    }
+
+    private void beginScope() {
+        scopes.add(new HashMap<>());
+    }
+
+    private void endScope() {
+        scopes.remove(scopes.size() - 1);
+    }
+
+    private void define(Token name, List<Token> globals) {
+        // the parser makes up names for desugared code, which has no place in the source
+        if (name.offset < 0) return;
+
+        if (scopes.isEmpty()) {
+            globals.add(name);
+            references.add(new Reference(name, null));
+            return;
+        }
+        scopes.get(scopes.size() - 1).put(name.symbol, name);
+        references.add(new Reference(name, name));
+    }
+
+    private void use(Token name) {
+        if (name.offset < 0) return;
+
+        for (int i = scopes.size() - 1; i >= 0; i--) {
+            Token definition = scopes.get(i).get(name.symbol);
+            if (definition != null) {
+                references.add(new Reference(name, definition));
+                return;
+            }
+        }
+        references.add(new Reference(name, null));
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        resolve(stmt.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+        resolve(stmt.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+        resolve(stmt.initializer);
+        define(stmt.name, globalVariables);
+        return null;
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        beginScope();
+        for (Stmt statement : stmt.statements) {
+            resolve(statement);
+        }
+        endScope();
+        return null;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        resolve(stmt.condition);
+        resolve(stmt.thenBranch);
+        resolve(stmt.elseBranch);
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        resolve(stmt.condition);
+        resolve(stmt.body);
+        return null;
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+        define(stmt.name, globalFunctions);
+
+        // functions only see their own locals and the globals
+        List<Map<Symbol, Token>> enclosing = scopes;
+        scopes = new ArrayList<>();
+        beginScope();
+        for (Token param : stmt.params) {
+            define(param, null);
+        }
+        for (Stmt statement : stmt.body) {
+            resolve(statement);
+        }
+        scopes = enclosing;
+        return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+        resolve(stmt.value);
+        return null;
+    }
+
+    // the names a module exports are only known once it has run
+    @Override
+    public Void visitImportStmt(Stmt.Import stmt) {
+        return null;
+    }
+
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr) {
+        resolve(expr.value);
+        use(expr.name);
+        return null;
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+        resolve(expr.left);
+        resolve(expr.right);
+        return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+        resolve(expr.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr) {
+        return null;
+    }
+
+    @Override
+    public Void visitLogicalExpr(Expr.Logical expr) {
+        resolve(expr.left);
+        resolve(expr.right);
+        return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+        resolve(expr.right);
+        return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr) {
+        use(expr.name);
+        return null;
+    }
+
+    @Override
+    public Void visitCallExpr(Expr.Call expr) {
+        resolve(expr.callee);
+        for (Expr argument : expr.arguments) {
+            resolve(argument);
+        }
+        return null;
+    }
+}
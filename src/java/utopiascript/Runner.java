@@ -0,0 +1,169 @@
+package utopiascript;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+
+// Runs scripts one after another or side by side, each in an interpreter of its own with its
+// output captured, for --batch and --serve.
+// Scripts with the same source share one parse, found by the hash of the source, and so share
+// whatever the Jit compiles for their functions too. Parsed code is safe to share: nodes only
+// cache global cells along with the globals they belong to, and compiled code checks what
+// it was compiled against before it runs. Modules are parsed once in the same way, but every
+// run gets modules of its own, so a module runs, and prints, for each script that imports it,
+// as it would have on the command line.
+final class Runner {
+    // A source parsed once for every script that has it, with its errors if it has any
+    static final class Parsed {
+        final List<Stmt> statements;
+        final FlatAst flat;
+        final String errors;
+
+        Parsed(List<Stmt> statements, FlatAst flat, String errors) {
+            this.statements = statements;
+            this.flat = flat;
+            this.errors = errors;
+        }
+    }
+
+    // What running a script printed, and the status the command line would have exited with
+    static final class Result {
+        final String output;
+        final String errors;
+        final int status;
+
+        Result(String output, String errors, int status) {
+            this.output = output;
+            this.errors = errors;
+            this.status = status;
+        }
+    }
+
+    // an interpreter whose settings every script's interpreter copies
+    private final Interpreter settings;
+    private final boolean flat;
+    private final ConcurrentHashMap<String, CompletableFuture<Parsed>> parsed = new ConcurrentHashMap<>();
+    // the parses of modules, which every run's modules share
+    private final ConcurrentHashMap<String, List<Stmt>> modules = new ConcurrentHashMap<>();
+    // how many parses of each kind are kept before they are all dropped
+    private final int capacity;
+    // whether runs get no standard input, which a daemon's clients can't send
+    private final boolean isolated;
+
+    Runner(Interpreter settings, boolean flat) {
+        this(settings, flat, Integer.MAX_VALUE, false);
+    }
+
+    Runner(Interpreter settings, boolean flat, int capacity, boolean isolated) {
+        this.settings = settings;
+        this.flat = flat;
+        this.capacity = capacity;
+        this.isolated = isolated;
+    }
+
+    // The number of distinct sources parsed so far
+    int sources() {
+        return parsed.size();
+    }
+
+    // Parses a source on the executor, unless a script with the same source has been already
+    CompletableFuture<Parsed> parse(byte[] source, Executor executor) {
+        // edited scripts leave parses nobody asks for again, so a long-lived runner starts over
+        if (parsed.size() >= capacity) parsed.clear();
+        if (modules.size() >= capacity) modules.clear();
+        return parsed.computeIfAbsent(Modules.hash(source),
+            hash -> CompletableFuture.supplyAsync(() -> parse(source), executor));
+    }
+
+    private Parsed parse(byte[] source) {
+        Metrics.ParseEvent parseEvent = null;
+        long start = 0;
+        if (Metrics.ENABLED) {
+            parseEvent = new Metrics.ParseEvent();
+            parseEvent.begin();
+            start = System.nanoTime();
+        }
+
+        StringBuilder errors = new StringBuilder();
+        ErrorReporter reporter = new ErrorReporter() {
+            @Override
+            public void error(int line, int offset, String message) {
+                errors.append("[line ").append(line).append("] Error: ").append(message).append("\n");
+            }
+
+            @Override
+            public void error(Token token, String message) {
+                String where = token.type == TokenType.EOF ? " at end" : " at '" + token.lexeme + "'";
+                errors.append("[line ").append(token.line).append("] Error").append(where)
+                    .append(": ").append(message).append("\n");
+            }
+        };
+
+        List<Token> tokens = new Scanner(new String(source, StandardCharsets.UTF_8), 0, 1, reporter).scanTokens();
+        List<Stmt> statements = new Parser(tokens, reporter).parse();
+
+        if (Metrics.ENABLED) {
+            Metrics.parsed(System.nanoTime() - start);
+            parseEvent.tokens = tokens.size();
+            parseEvent.commit();
+        }
+
+        if (errors.length() > 0) return new Parsed(null, null, errors.toString());
+        return new Parsed(statements, flat ? FlatAst.of(statements) : null, null);
+    }
+
+    // Runs parsed code in a new interpreter, with imports relative to the directory
+    Result run(Parsed code, Path directory) {
+        if (code.errors != null) return new Result("", code.errors, 65);
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        Interpreter interpreter = new Interpreter(modules());
+        interpreter.jit = settings.jit;
+        interpreter.nodes = settings.nodes;
+        if (settings.machine != null) interpreter.machine = new StackMachine(interpreter, settings.machine.maxDepth);
+        interpreter.out = new PrintStream(output, false, StandardCharsets.UTF_8);
+        if (isolated) interpreter.in = new BufferedReader(Reader.nullReader());
+        if (directory != null) interpreter.directory = directory;
+
+        Metrics.ExecutionEvent event = null;
+        long start = 0;
+        if (Metrics.ENABLED) {
+            event = new Metrics.ExecutionEvent();
+            event.begin();
+            start = System.nanoTime();
+        }
+
+        String errors = "";
+        int status = 0;
+        try {
+            if (code.flat != null) code.flat.run(interpreter);
+            else interpreter.execute(code.statements);
+        } catch (RuntimeError error) {
+            if (Metrics.ENABLED) Metrics.runtimeError(error);
+            errors = UtopiaScript.describe(error);
+            status = 70;
+        } finally {
+            if (Metrics.ENABLED) {
+                Metrics.executed(System.nanoTime() - start);
+                event.statements = code.flat != null ? code.flat.statements() : code.statements.size();
+                event.commit();
+            }
+        }
+        interpreter.out.flush();
+        return new Result(output.toString(StandardCharsets.UTF_8), errors, status);
+    }
+
+    // Modules for one run, which still share parses with the others and the cache directory
+    private Modules modules() {
+        Modules modules = new Modules(this.modules);
+        modules.cacheDirectory = settings.modules.cacheDirectory;
+        return modules;
+    }
+}
@@ -2,9 +2,17 @@ package utopiascript;
 
 public class RuntimeError extends RuntimeException{
     final Token token;
+    // the script frames the error passed through, innermost first, or null when they aren't tracked
+    String trace = null;
 
     RuntimeError(Token token, String message){
         super(message);
         this.token = token;
     }
+
+    // Used by native functions, which have no token of their own.
+    // The interpreter attaches the call site before reporting the error.
+    RuntimeError(String message){
+        this(null, message);
+    }
 }
@@ -3,6 +3,7 @@ package utopiascript;
 
 import static utopiascript.TokenType.*;
 
+import java.util.AbstractList;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -30,9 +31,11 @@ class Scanner {
         keywords.put("vera",   VERA);
         keywords.put("var",    VAR);
         keywords.put("dum",  DUM);
+        keywords.put("importi", IMPORTI);
     }
 
     private final String source;
+    private final ErrorReporter reporter;
     private final List<Token> tokens = new ArrayList<>();
     // scan-state
     private int start = 0;
@@ -40,18 +43,53 @@ class Scanner {
     private int line = 1;
 
     Scanner(String source) {
+        this(source, 0, 1, UtopiaScript.reporter);
+    }
+
+    // Scans from an offset in the source, which is on the given line
+    Scanner(String source, int offset, int line, ErrorReporter reporter) {
         this.source = source;
+        this.current = offset;
+        this.line = line;
+        this.reporter = reporter;
     }
+
     // scan tokens
     List<Token> scanTokens() {
-        while (!isAtEnd()) {
+        scanThrough(Integer.MAX_VALUE);
+        return tokens;
+    }
+
+    // The tokens as a list that is only scanned as far as it is read, so a parser can stop
+    // partway through the source without the rest being scanned
+    List<Token> lazyTokens() {
+        return new AbstractList<Token>() {
+            @Override
+            public Token get(int index) {
+                scanThrough(index);
+                return tokens.get(index);
+            }
+
+            @Override
+            public int size() {
+                return tokens.size();
+            }
+        };
+    }
+
+    // Scans until the token at an index exists or the EOF token has been added
+    private void scanThrough(int index) {
+        while (tokens.size() <= index) {
+            if (!tokens.isEmpty() && tokens.get(tokens.size() - 1).type == EOF) return;
+            if (isAtEnd()) {
+                tokens.add(new Token(EOF, "", null, line, current));
+                return;
+            }
+
             // We are at the beginning of the next lexeme.
             start = current;
             scanToken();
         }
-
-        tokens.add(new Token(EOF, "", null, line));
-        return tokens;
     }
 
     // scan a single token
@@ -119,7 +157,7 @@ class Scanner {
                 } else if (isAlpha(c)) {
                     identifier();
                 } else {
-                    UtopiaScript.error(line, "Unexpected character.");
+                    reporter.error(line, start, "Unexpected character.");
                 }
                 break;
         }
@@ -134,6 +172,7 @@ class Scanner {
         addToken(type);
     }
 
+    // Numbers without a fraction are integers, unless they are too large for a long
     private void number() {
         while (isDigit(peek())) advance();
 
@@ -142,6 +181,13 @@ class Scanner {
             advance();
 
             while (isDigit(peek())) advance();
+        } else {
+            try {
+                addToken(NUMBER, Long.parseLong(source.substring(start, current)));
+                return;
+            } catch (NumberFormatException tooLarge) {
+                // falls through to a double
+            }
         }
 
         addToken(NUMBER,
@@ -155,7 +201,7 @@ class Scanner {
         }
 
         if (isAtEnd()) {
-            UtopiaScript.error(line, "Unterminated string.");
+            reporter.error(line, current, "Unterminated string.");
             return;
         }
 
@@ -211,6 +257,6 @@ class Scanner {
 
     private void addToken(TokenType type, Object literal) {
         String text = source.substring(start, current);
-        tokens.add(new Token(type, text, literal, line));
+        tokens.add(new Token(type, text, literal, line, start));
     }
 }
\ No newline at end of file
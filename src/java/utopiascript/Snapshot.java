@@ -0,0 +1,164 @@
+package utopiascript;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+// An image of an interpreter's globals, so a prelude of declarations can run once and later runs
+// can start from what it left behind instead of running it again.
+// Nil, booleans, numbers, strings, script functions and natives can be written. Functions are
+// written as their syntax tree, once however many globals refer to them, and natives by their
+// name, to be bound to the natives of the interpreter that loads the image. Iterators and open
+// files can't be written, since their state lives outside the interpreter.
+final class Snapshot {
+    private static final int MAGIC = 0x5553494D;
+
+    // value tags, after the ones AstCodec uses
+    private static final int FUNCTION = 32, FUNCTION_REFERENCE = 33, NATIVE = 34;
+
+    private Snapshot() {
+    }
+
+    static void write(Interpreter interpreter, Path file) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ImageWriter writer = new ImageWriter(new DataOutputStream(bytes));
+        writer.out.writeInt(MAGIC);
+        writer.header();
+
+        // sorted, so the same globals always give the same image
+        List<Symbol> names = new ArrayList<>(interpreter.globals.names());
+        names.sort(Comparator.comparing(name -> name.name));
+        writer.varint(names.size());
+        for (Symbol name : names) {
+            writer.string(name.name);
+            Object value = interpreter.globals.value(name);
+            try {
+                writer.value(value);
+            } catch (IllegalArgumentException e) {
+                throw new IOException("Can't snapshot '" + name.name + "', which is " +
+                    Interpreter.stringify(value) + ".");
+            }
+        }
+
+        writer.out.flush();
+        Files.write(file, bytes.toByteArray());
+    }
+
+    // Defines the globals in an image, replacing any with the same names
+    static void read(Interpreter interpreter, Path file) throws IOException {
+        ImageReader reader = new ImageReader(
+            new DataInputStream(new ByteArrayInputStream(Files.readAllBytes(file))), interpreter.globals);
+        if (reader.in.readInt() != MAGIC) throw new IOException("Not a snapshot.");
+        reader.header();
+
+        int count = reader.varint();
+        Map<Symbol, Object> globals = new HashMap<>();
+        for (int i = 0; i < count; i++) {
+            Symbol name = Symbol.intern(reader.string());
+            globals.put(name, reader.value());
+        }
+        // defined only once the whole image has been read, as natives are looked up while reading
+        for (Map.Entry<Symbol, Object> global : globals.entrySet()) {
+            interpreter.globals.define(global.getKey(), global.getValue());
+        }
+    }
+
+    // Each native is an instance of a class of its own, which identifies it across interpreters,
+    // except host functions, which share a class and are told apart by name
+    private static Object nativeKey(Object value) {
+        return value instanceof HostFunction ? ((HostFunction)value).name : value.getClass();
+    }
+
+    private static Map<Object, String> nativeNames() {
+        GlobalEnvironment natives = new Interpreter().globals;
+        Map<Object, String> names = new HashMap<>();
+        for (Symbol name : natives.names()) {
+            names.put(nativeKey(natives.value(name)), name.name);
+        }
+        return names;
+    }
+
+    private static final class ImageWriter extends AstCodec.Writer {
+        private final Map<Object, String> natives = nativeNames();
+        private final Map<Stmt.Function, Integer> functions = new IdentityHashMap<>();
+
+        ImageWriter(DataOutputStream out) {
+            super(out);
+            // an image has no source for offsets to point into
+            offsets = false;
+        }
+
+        @Override
+        void value(Object value) throws IOException {
+            if (value instanceof UtopiaScriptFunction) {
+                Stmt.Function declaration = ((UtopiaScriptFunction)value).declaration;
+                Integer index = functions.get(declaration);
+                if (index != null) {
+                    out.writeByte(FUNCTION_REFERENCE);
+                    varint(index);
+                    return;
+                }
+
+                functions.put(declaration, functions.size());
+                out.writeByte(FUNCTION);
+                write(declaration);
+                return;
+            }
+
+            String nativeName = value == null ? null : natives.get(nativeKey(value));
+            if (nativeName != null) {
+                out.writeByte(NATIVE);
+                string(nativeName);
+                return;
+            }
+
+            super.value(value);
+        }
+    }
+
+    private static final class ImageReader extends AstCodec.Reader {
+        private final GlobalEnvironment natives;
+        private final List<UtopiaScriptFunction> functions = new ArrayList<>();
+
+        ImageReader(DataInputStream in, GlobalEnvironment natives) {
+            super(in);
+            this.natives = natives;
+        }
+
+        @Override
+        Object value(int tag) throws IOException {
+            switch (tag) {
+                case FUNCTION: {
+                    Stmt declaration = stmt();
+                    if (!(declaration instanceof Stmt.Function)) throw new IOException("Malformed function.");
+                    UtopiaScriptFunction function = new UtopiaScriptFunction((Stmt.Function)declaration);
+                    functions.add(function);
+                    return function;
+                }
+                case FUNCTION_REFERENCE: {
+                    int index = varint();
+                    if (index >= functions.size()) throw new IOException("Malformed function reference.");
+                    return functions.get(index);
+                }
+                case NATIVE: {
+                    String name = string();
+                    Object value = natives.value(Symbol.intern(name));
+                    if (value == null) throw new IOException("Unknown native '" + name + "'.");
+                    return value;
+                }
+                default:
+                    return super.value(tag);
+            }
+        }
+    }
+}
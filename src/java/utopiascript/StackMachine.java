@@ -0,0 +1,593 @@
+package utopiascript;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Runs code with its call stack on the heap, enabled with --deep, so recursion isn't bounded by
+// the Java thread stack but only by a frame limit, which --max-depth sets.
+// Code is compiled to a flat instruction array per function body, and a call to a script function
+// pushes a frame onto growable arrays and carries on in the same loop instead of recursing.
+// Operands live on a growable stack of their own. Natives still run on the Java stack, and a native
+// that calls back into a script function, like mapi, starts a nested loop on the same frames.
+// Semantics are the visitor's: a scope per block and per call, the right operand of a binary
+// evaluated first, and errors reported at the same tokens. An error gets a script stack trace.
+final class StackMachine {
+    static final int DEFAULT_MAX_DEPTH = 1_000_000;
+
+    // opcodes, each followed by the operands noted
+    private static final int CONSTANT = 0;      // constant
+    private static final int GET = 1;           // Expr.Variable
+    private static final int SET = 2;           // Expr.Assign
+    private static final int DEFINE = 3;        // Symbol
+    private static final int POP = 4;
+    private static final int PRINT = 5;
+    private static final int BINARY = 6;        // Expr.Binary
+    private static final int NEGATE = 7;        // Expr.Unary
+    private static final int NOT = 8;
+    private static final int JUMP = 9;          // target
+    private static final int JUMP_IF_FALSE = 10; // target
+    private static final int AND = 11;          // target, taken with the left operand kept when it is false
+    private static final int OR = 12;           // target, taken with true when the left operand is true
+    private static final int ENTER = 13;
+    private static final int EXIT = 14;
+    private static final int CALL = 15;         // Expr.Call
+    private static final int FUNCTION = 16;     // Stmt.Function
+    private static final int RETURN = 17;
+    private static final int END = 18;
+    private static final int IMPORT = 19;       // Stmt.Import
+
+    // what a frame that runs off its end returns, which is nil for a function
+    private static final Object NORMAL = new Object();
+
+    // A compiled function body or top level
+    static final class Code {
+        final int[] instructions;
+        // the source line of each instruction word, for traces
+        final int[] lines;
+        final Object[] constants;
+
+        private Code(int[] instructions, int[] lines, Object[] constants) {
+            this.instructions = instructions;
+            this.lines = lines;
+            this.constants = constants;
+        }
+    }
+
+    private final Interpreter interpreter;
+    final int maxDepth;
+
+    private Object[] stack = new Object[256];
+    private int sp = 0;
+
+    // frame i runs codes[i] from pcs[i] in environments[i], for functions[i] or null at top level
+    private Code[] codes = new Code[64];
+    private int[] pcs = new int[64];
+    private Environment[] environments = new Environment[64];
+    private UtopiaScriptFunction[] functions = new UtopiaScriptFunction[64];
+    // the innermost frame, or -1
+    private int depth = -1;
+
+    StackMachine(Interpreter interpreter, int maxDepth) {
+        this.interpreter = interpreter;
+        this.maxDepth = maxDepth;
+    }
+
+    // Runs top-level statements in an environment, returning the value of a return among them
+    // or NORMAL, which execute turns into null
+    Object execute(List<Stmt> statements, Environment environment) {
+        Object result = run(compile(statements, false), environment, null, null);
+        return result == NORMAL ? Frame.NORMAL : result;
+    }
+
+    // Calls a script function for a native that calls back into script code. Each such call nests
+    // another loop on the Java stack, so recursion through natives like mapi can still overflow it.
+    Object call(UtopiaScriptFunction function, List<Object> arguments) {
+        try {
+            Environment environment = parameters(function, arguments);
+            Object result = run(code(function.declaration), environment, function, null);
+            return result == NORMAL ? null : result;
+        } catch (StackOverflowError error) {
+            Token name = function.declaration.name;
+            RuntimeError overflow = new RuntimeError(name, "Stack overflow in '" + name.lexeme +
+                "'; natives that call back into script code can't nest this deep.");
+            overflow.trace = trace(name);
+            throw overflow;
+        }
+    }
+
+    private Object run(Code code, Environment environment, UtopiaScriptFunction function, Token site) {
+        int base = depth + 1;
+        int operands = sp;
+        push(code, environment, function, site);
+        try {
+            return loop(base);
+        } finally {
+            depth = base - 1;
+            Arrays.fill(stack, operands, sp, null);
+            sp = operands;
+        }
+    }
+
+    private void push(Code code, Environment environment, UtopiaScriptFunction function, Token site) {
+        if (depth + 1 >= maxDepth) {
+            throw new RuntimeError(site, "Stack overflow: more than " + maxDepth + " calls deep.");
+        }
+        if (++depth == codes.length) {
+            int length = codes.length * 2;
+            codes = Arrays.copyOf(codes, length);
+            pcs = Arrays.copyOf(pcs, length);
+            environments = Arrays.copyOf(environments, length);
+            functions = Arrays.copyOf(functions, length);
+        }
+        codes[depth] = code;
+        pcs[depth] = 0;
+        environments[depth] = environment;
+        functions[depth] = function;
+        // frame 0 is the top level, unless a native's worker called into the machine directly
+        if (Metrics.ENABLED && function != null) Metrics.called(functions[0] == null ? depth : depth + 1);
+    }
+
+    private Environment parameters(UtopiaScriptFunction function, List<Object> arguments) {
+        Environment environment = interpreter.scopes.acquire(interpreter.globals);
+        List<Token> params = function.declaration.params;
+        for (int i = 0; i < params.size(); i++) {
+            environment.define(params.get(i).symbol, arguments.get(i));
+        }
+        return environment;
+    }
+
+    private void operand(Object value) {
+        if (sp == stack.length) stack = Arrays.copyOf(stack, sp * 2);
+        stack[sp++] = value;
+    }
+
+    private Object pop() {
+        Object value = stack[--sp];
+        stack[sp] = null;
+        return value;
+    }
+
+    // Runs until the frame at base returns
+    private Object loop(int base) {
+        Code code = codes[depth];
+        int[] instructions = code.instructions;
+        Object[] constants = code.constants;
+        Environment environment = environments[depth];
+        int pc = 0;
+        int at = 0;
+
+        try {
+            while (true) {
+                at = pc;
+                switch (instructions[pc++]) {
+                    case CONSTANT:
+                        operand(constants[instructions[pc++]]);
+                        break;
+                    case GET: {
+                        Expr.Variable expr = (Expr.Variable)constants[instructions[pc++]];
+                        Object value = environment.get(expr);
+                        if (value == null) {
+                            throw new RuntimeError(expr.name, "Cannot access a variable that has not been initialized or assigned to");
+                        }
+                        operand(value);
+                        break;
+                    }
+                    case SET:
+                        environment.assign((Expr.Assign)constants[instructions[pc++]], stack[sp - 1]);
+                        break;
+                    case DEFINE:
+                        environment.define((Symbol)constants[instructions[pc++]], pop());
+                        break;
+                    case POP:
+                        pop();
+                        break;
+                    case PRINT:
+                        interpreter.out.println(Interpreter.stringify(pop()));
+                        break;
+                    case BINARY: {
+                        Expr.Binary expr = (Expr.Binary)constants[instructions[pc++]];
+                        Object left = pop();
+                        Object right = pop();
+                        operand(binary(expr.operator, left, right));
+                        break;
+                    }
+                    case NEGATE: {
+                        Expr.Unary expr = (Expr.Unary)constants[instructions[pc++]];
+                        operand(Operators.negate(expr.operator, pop()));
+                        break;
+                    }
+                    case NOT:
+                        operand(!Interpreter.isTruthy(pop()));
+                        break;
+                    case JUMP:
+                        pc = instructions[pc];
+                        break;
+                    case JUMP_IF_FALSE:
+                        pc = Interpreter.isTruthy(pop()) ? pc + 1 : instructions[pc];
+                        break;
+                    case AND:
+                        if (Interpreter.isTruthy(stack[sp - 1])) {
+                            pop();
+                            pc++;
+                        } else {
+                            pc = instructions[pc];
+                        }
+                        break;
+                    case OR:
+                        if (Interpreter.isTruthy(stack[sp - 1])) {
+                            stack[sp - 1] = true;
+                            pc = instructions[pc];
+                        } else {
+                            pop();
+                            pc++;
+                        }
+                        break;
+                    case ENTER:
+                        environment = interpreter.scopes.acquire(environment);
+                        break;
+                    case EXIT: {
+                        Environment scope = environment;
+                        environment = scope.enclosing;
+                        interpreter.scopes.release(scope);
+                        break;
+                    }
+                    case CALL: {
+                        Expr.Call expr = (Expr.Call)constants[instructions[pc++]];
+                        int count = expr.arguments.size();
+                        Object callee = stack[sp - count - 1];
+                        if (callee instanceof HostFunction) {
+                            Object[] arguments = Arrays.copyOfRange(stack, sp - count, sp);
+                            Arrays.fill(stack, sp - count - 1, sp, null);
+                            sp -= count + 1;
+                            operand(Operators.call(expr.paren, (HostFunction)callee, arguments));
+                            break;
+                        }
+                        List<Object> arguments = new ArrayList<>(count);
+                        for (int i = sp - count; i < sp; i++) {
+                            arguments.add(stack[i]);
+                        }
+                        Arrays.fill(stack, sp - count - 1, sp, null);
+                        sp -= count + 1;
+                        // where the frame resumes, which a nested loop or a trace may need
+                        pcs[depth] = pc;
+                        environments[depth] = environment;
+
+                        if (!(callee instanceof UtopiaScriptFunction)) {
+                            operand(Operators.call(interpreter, expr.paren, callee, arguments));
+                            break;
+                        }
+
+                        UtopiaScriptFunction function = (UtopiaScriptFunction)callee;
+                        if (count != function.arity()) {
+                            throw new RuntimeError(expr.paren, "Expected " + function.arity() +
+                                " arguments but got " + count + ".");
+                        }
+                        push(code(function.declaration), parameters(function, arguments), function, expr.paren);
+                        code = codes[depth];
+                        instructions = code.instructions;
+                        constants = code.constants;
+                        environment = environments[depth];
+                        pc = 0;
+                        break;
+                    }
+                    case FUNCTION: {
+                        Stmt.Function stmt = (Stmt.Function)constants[instructions[pc++]];
+                        environment.define(stmt.name.symbol, new UtopiaScriptFunction(stmt));
+                        break;
+                    }
+                    case IMPORT: {
+                        Stmt.Import stmt = (Stmt.Import)constants[instructions[pc++]];
+                        for (Map.Entry<Symbol, Object> export : interpreter.modules.load(interpreter, stmt).entrySet()) {
+                            environment.define(export.getKey(), export.getValue());
+                        }
+                        break;
+                    }
+                    case RETURN:
+                    case END: {
+                        Object value = instructions[at] == RETURN ? pop() : NORMAL;
+                        // a function's scopes end with it, up to the globals its own scope encloses
+                        if (functions[depth] != null) {
+                            while (environment != interpreter.globals) {
+                                Environment scope = environment;
+                                environment = scope.enclosing;
+                                interpreter.scopes.release(scope);
+                            }
+                        }
+                        if (depth == base) return value;
+
+                        depth--;
+                        code = codes[depth];
+                        instructions = code.instructions;
+                        constants = code.constants;
+                        environment = environments[depth];
+                        pc = pcs[depth];
+                        operand(value == NORMAL ? null : value);
+                        break;
+                    }
+                    default:
+                        throw new IllegalStateException("Unknown instruction " + instructions[at]);
+                }
+            }
+        } catch (RuntimeError error) {
+            pcs[depth] = pc;
+            if (error.trace == null) error.trace = trace();
+            throw error;
+        }
+    }
+
+    // Numbers are handled here and everything else by Operators
+    private static Object binary(Token operator, Object left, Object right) {
+        if (left instanceof Long && right instanceof Long) {
+            long a = (long)left;
+            long b = (long)right;
+            switch (operator.type) {
+                case PLUS: return Operators.add(a, b);
+                case MINUS: return Operators.subtract(a, b);
+                case STAR: return Operators.multiply(a, b);
+                case GREATER: return a > b;
+                case GREATER_EQUAL: return a >= b;
+                case LESS: return a < b;
+                case LESS_EQUAL: return a <= b;
+                default: break;
+            }
+        } else if (left instanceof Double && right instanceof Double) {
+            double a = (double)left;
+            double b = (double)right;
+            switch (operator.type) {
+                case PLUS: return a + b;
+                case MINUS: return a - b;
+                case STAR: return a * b;
+                case GREATER: return a > b;
+                case GREATER_EQUAL: return a >= b;
+                case LESS: return a < b;
+                case LESS_EQUAL: return a <= b;
+                default: break;
+            }
+        }
+        return Operators.binary(operator, left, right);
+    }
+
+    // The trace of the frames from the innermost out, or null outside any function.
+    // Each frame's pc is just past the instruction it is at, whose last word has its line.
+    private String trace() {
+        if (depth == 0) return null;
+        return CallStack.format(depth + 1, frame -> name(depth - frame), frame -> line(depth - frame));
+    }
+
+    // The trace of a call that overflowed the Java stack, whose own frame is already gone
+    private String trace(Token callee) {
+        return CallStack.format(depth + 2,
+            frame -> frame == 0 ? callee.lexeme : name(depth + 1 - frame),
+            frame -> frame == 0 ? callee.line : line(depth + 1 - frame));
+    }
+
+    private String name(int frame) {
+        return functions[frame] == null ? "<script>" : functions[frame].declaration.name.lexeme;
+    }
+
+    private int line(int frame) {
+        return codes[frame].lines[pcs[frame] - 1];
+    }
+
+    // Compiles a function body once, for every call of it
+    private static Code code(Stmt.Function declaration) {
+        Code code = declaration.code;
+        if (code == null) {
+            code = compile(declaration.body, true);
+            declaration.code = code;
+        }
+        return code;
+    }
+
+    private static Code compile(List<Stmt> statements, boolean function) {
+        Compiler compiler = new Compiler();
+        for (Stmt statement : statements) {
+            compiler.statement(statement);
+        }
+        compiler.emit(END, statements.isEmpty() || !function ? 0 : statements.get(statements.size() - 1).line);
+        return compiler.finish();
+    }
+
+    private static final class Compiler implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+        private int[] instructions = new int[64];
+        private int[] lines = new int[64];
+        private int length = 0;
+        private final List<Object> constants = new ArrayList<>();
+        private final Map<Object, Integer> constantIndices = new HashMap<>();
+        // the line of the statement being compiled, for instructions without a token of their own
+        private int line = 0;
+
+        Code finish() {
+            return new Code(Arrays.copyOf(instructions, length), Arrays.copyOf(lines, length), constants.toArray());
+        }
+
+        void emit(int word, int line) {
+            if (length == instructions.length) {
+                instructions = Arrays.copyOf(instructions, length * 2);
+                lines = Arrays.copyOf(lines, length * 2);
+            }
+            lines[length] = line;
+            instructions[length++] = word;
+        }
+
+        void emit(int opcode, Object operand, int line) {
+            emit(opcode, line);
+            emit(constant(operand), line);
+        }
+
+        // Emits a jump, returning where its target goes once it is known
+        int jump(int opcode) {
+            emit(opcode, line);
+            emit(-1, line);
+            return length - 1;
+        }
+
+        void land(int jump) {
+            instructions[jump] = length;
+        }
+
+        private int constant(Object value) {
+            Integer index = constantIndices.get(value);
+            if (index != null) return index;
+
+            constants.add(value);
+            constantIndices.put(value, constants.size() - 1);
+            return constants.size() - 1;
+        }
+
+        void statement(Stmt stmt) {
+            int outer = line;
+            line = stmt.line;
+            stmt.accept(this);
+            line = outer;
+        }
+
+        void expression(Expr expr) {
+            expr.accept(this);
+        }
+
+        @Override
+        public Void visitAssignExpr(Expr.Assign expr) {
+            expression(expr.value);
+            emit(SET, expr, expr.name.line);
+            return null;
+        }
+
+        @Override
+        public Void visitBinaryExpr(Expr.Binary expr) {
+            expression(expr.right);
+            expression(expr.left);
+            emit(BINARY, expr, expr.operator.line);
+            return null;
+        }
+
+        @Override
+        public Void visitGroupingExpr(Expr.Grouping expr) {
+            expression(expr.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitLiteralExpr(Expr.Literal expr) {
+            emit(CONSTANT, expr.value, line);
+            return null;
+        }
+
+        @Override
+        public Void visitLogicalExpr(Expr.Logical expr) {
+            expression(expr.left);
+            int end = jump(expr.operator.type == TokenType.AU ? OR : AND);
+            expression(expr.right);
+            land(end);
+            return null;
+        }
+
+        @Override
+        public Void visitUnaryExpr(Expr.Unary expr) {
+            expression(expr.right);
+            if (expr.operator.type == TokenType.MINUS) emit(NEGATE, expr, expr.operator.line);
+            else emit(NOT, expr.operator.line);
+            return null;
+        }
+
+        @Override
+        public Void visitVariableExpr(Expr.Variable expr) {
+            emit(GET, expr, expr.name.line);
+            return null;
+        }
+
+        @Override
+        public Void visitCallExpr(Expr.Call expr) {
+            expression(expr.callee);
+            for (Expr argument : expr.arguments) {
+                expression(argument);
+            }
+            emit(CALL, expr, expr.paren.line);
+            return null;
+        }
+
+        @Override
+        public Void visitExpressionStmt(Stmt.Expression stmt) {
+            expression(stmt.expression);
+            emit(POP, line);
+            return null;
+        }
+
+        @Override
+        public Void visitPrintStmt(Stmt.Print stmt) {
+            expression(stmt.expression);
+            emit(PRINT, line);
+            return null;
+        }
+
+        @Override
+        public Void visitVarStmt(Stmt.Var stmt) {
+            if (stmt.initializer != null) expression(stmt.initializer);
+            else emit(CONSTANT, null, line);
+            emit(DEFINE, stmt.name.symbol, line);
+            return null;
+        }
+
+        @Override
+        public Void visitBlockStmt(Stmt.Block stmt) {
+            emit(ENTER, line);
+            for (Stmt statement : stmt.statements) {
+                statement(statement);
+            }
+            emit(EXIT, line);
+            return null;
+        }
+
+        @Override
+        public Void visitIfStmt(Stmt.If stmt) {
+            expression(stmt.condition);
+            int otherwise = jump(JUMP_IF_FALSE);
+            statement(stmt.thenBranch);
+            if (stmt.elseBranch == null) {
+                land(otherwise);
+                return null;
+            }
+
+            int end = jump(JUMP);
+            land(otherwise);
+            statement(stmt.elseBranch);
+            land(end);
+            return null;
+        }
+
+        @Override
+        public Void visitWhileStmt(Stmt.While stmt) {
+            int start = length;
+            expression(stmt.condition);
+            int end = jump(JUMP_IF_FALSE);
+            statement(stmt.body);
+            emit(JUMP, line);
+            emit(start, line);
+            land(end);
+            return null;
+        }
+
+        @Override
+        public Void visitFunctionStmt(Stmt.Function stmt) {
+            emit(FUNCTION, stmt, line);
+            return null;
+        }
+
+        @Override
+        public Void visitReturnStmt(Stmt.Return stmt) {
+            if (stmt.value != null) expression(stmt.value);
+            else emit(CONSTANT, null, line);
+            emit(RETURN, line);
+            return null;
+        }
+
+        @Override
+        public Void visitImportStmt(Stmt.Import stmt) {
+            emit(IMPORT, stmt, line);
+            return null;
+        }
+    }
+}
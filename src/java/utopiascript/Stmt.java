@@ -12,8 +12,10 @@ abstract class Stmt {
     R visitWhileStmt(While stmt);
     R visitFunctionStmt(Function stmt);
     R visitReturnStmt(Return stmt);
+    R visitImportStmt(Import stmt);
   }
-  static class Expression extends Stmt {
+  int line;
+  static final class Expression extends Stmt {
     Expression(Expr expression) {
       this.expression = expression;
     }
@@ -23,9 +25,14 @@ abstract class Stmt {
       return visitor.visitExpressionStmt(this);
     }
 
+    @Override
+    Object execute(Frame frame) {
+      return Nodes.execute(this, frame);
+    }
+
     final Expr expression;
   }
-  static class Print extends Stmt {
+  static final class Print extends Stmt {
     Print(Expr expression) {
       this.expression = expression;
     }
@@ -35,9 +42,14 @@ abstract class Stmt {
       return visitor.visitPrintStmt(this);
     }
 
+    @Override
+    Object execute(Frame frame) {
+      return Nodes.execute(this, frame);
+    }
+
     final Expr expression;
   }
-  static class Var extends Stmt {
+  static final class Var extends Stmt {
     Var(Token name, Expr initializer) {
       this.name = name;
       this.initializer = initializer;
@@ -48,10 +60,15 @@ abstract class Stmt {
       return visitor.visitVarStmt(this);
     }
 
+    @Override
+    Object execute(Frame frame) {
+      return Nodes.execute(this, frame);
+    }
+
     final Token name;
     final Expr initializer;
   }
-  static class Block extends Stmt {
+  static final class Block extends Stmt {
     Block(List<Stmt> statements) {
       this.statements = statements;
     }
@@ -61,9 +78,14 @@ abstract class Stmt {
       return visitor.visitBlockStmt(this);
     }
 
+    @Override
+    Object execute(Frame frame) {
+      return Nodes.execute(this, frame);
+    }
+
     final List<Stmt> statements;
   }
-  static class If extends Stmt {
+  static final class If extends Stmt {
     If(Expr condition, Stmt thenBranch, Stmt elseBranch) {
       this.condition = condition;
       this.thenBranch = thenBranch;
@@ -75,11 +97,16 @@ abstract class Stmt {
       return visitor.visitIfStmt(this);
     }
 
+    @Override
+    Object execute(Frame frame) {
+      return Nodes.execute(this, frame);
+    }
+
     final Expr condition;
     final Stmt thenBranch;
     final Stmt elseBranch;
   }
-  static class While extends Stmt {
+  static final class While extends Stmt {
     While(Expr condition, Stmt body) {
       this.condition = condition;
       this.body = body;
@@ -90,10 +117,15 @@ abstract class Stmt {
       return visitor.visitWhileStmt(this);
     }
 
+    @Override
+    Object execute(Frame frame) {
+      return Nodes.execute(this, frame);
+    }
+
     final Expr condition;
     final Stmt body;
   }
-  static class Function extends Stmt {
+  static final class Function extends Stmt {
     Function(Token name, List<Token> params, List<Stmt> body) {
       this.name = name;
       this.params = params;
@@ -105,11 +137,20 @@ abstract class Stmt {
       return visitor.visitFunctionStmt(this);
     }
 
+    @Override
+    Object execute(Frame frame) {
+      return Nodes.execute(this, frame);
+    }
+
     final Token name;
     final List<Token> params;
     final List<Stmt> body;
+
+    int calls;
+    Jit.Compiled compiled;
+    StackMachine.Code code;
   }
-  static class Return extends Stmt {
+  static final class Return extends Stmt {
     Return(Token keyword, Expr value) {
       this.keyword = keyword;
       this.value = value;
@@ -120,9 +161,35 @@ abstract class Stmt {
       return visitor.visitReturnStmt(this);
     }
 
+    @Override
+    Object execute(Frame frame) {
+      return Nodes.execute(this, frame);
+    }
+
     final Token keyword;
     final Expr value;
   }
+  static final class Import extends Stmt {
+    Import(Token keyword, Token path) {
+      this.keyword = keyword;
+      this.path = path;
+    }
+
+    @Override
+    <R> R accept(Visitor<R> visitor) {
+      return visitor.visitImportStmt(this);
+    }
+
+    @Override
+    Object execute(Frame frame) {
+      return Nodes.execute(this, frame);
+    }
+
+    final Token keyword;
+    final Token path;
+  }
 
   abstract <R> R accept(Visitor<R> visitor);
+
+  abstract Object execute(Frame frame);
 }
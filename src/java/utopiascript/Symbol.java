@@ -0,0 +1,72 @@
+package utopiascript;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// An interned identifier.
+// The scanner maps every identifier to the one Symbol for its name, so environments
+// can use symbols as keys: the hash is computed once and equality is identity.
+// The table only holds symbols weakly, since a daemon scans whatever its clients send: a symbol
+// that no tree, environment or compiled code refers to any more is dropped, and the name gets a
+// new one if it comes back. Nothing can tell, because nothing holds the old one to compare.
+final class Symbol {
+    private static final ConcurrentHashMap<String, Entry> table = new ConcurrentHashMap<>();
+    private static final ReferenceQueue<Symbol> dropped = new ReferenceQueue<>();
+    private static final AtomicInteger nextId = new AtomicInteger();
+
+    private static final class Entry extends WeakReference<Symbol> {
+        final String name;
+
+        Entry(Symbol symbol) {
+            super(symbol, dropped);
+            this.name = symbol.name;
+        }
+    }
+
+    final String name;
+    final int id;
+    private final int hash;
+
+    private Symbol(String name, int id) {
+        this.name = name;
+        this.id = id;
+        // ids are sequential, so spread them over the hash table's buckets
+        this.hash = id * 0x9E3779B9;
+    }
+
+    static Symbol intern(String name) {
+        Entry entry = table.get(name);
+        Symbol symbol = entry == null ? null : entry.get();
+        if (symbol != null) return symbol;
+
+        removeDropped();
+        Symbol[] interned = new Symbol[1];
+        table.compute(name, (key, old) -> {
+            interned[0] = old == null ? null : old.get();
+            if (interned[0] != null) return old;
+            interned[0] = new Symbol(key, nextId.getAndIncrement());
+            return new Entry(interned[0]);
+        });
+        return interned[0];
+    }
+
+    // Removes the entries of symbols the garbage collector has dropped, unless a new symbol
+    // for the name has replaced them already
+    private static void removeDropped() {
+        for (Entry entry; (entry = (Entry)dropped.poll()) != null; ) {
+            table.remove(entry.name, entry);
+        }
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
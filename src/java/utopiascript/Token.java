@@ -5,12 +5,23 @@ public class Token {
     final String lexeme;
     final Object literal;
     final int line;
+    // where the token starts in the source, or -1 for tokens made up by the parser
+    final int offset;
+    // the interned name of an identifier, null for any other token
+    final Symbol symbol;
 
     Token(TokenType type, String lexeme, Object literal, int line){
+        this(type, lexeme, literal, line, -1);
+    }
+
+    Token(TokenType type, String lexeme, Object literal, int line, int offset){
         this.type = type;
-        this.lexeme = lexeme;
+        this.symbol = type == TokenType.IDENTIFIER ? Symbol.intern(lexeme) : null;
+        // identifiers share the symbol's string instead of keeping their own copy
+        this.lexeme = symbol != null ? symbol.name : lexeme;
         this.literal = literal;
         this.line = line;
+        this.offset = offset;
     }
 
     public String toString() {
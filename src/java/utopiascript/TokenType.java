@@ -31,6 +31,7 @@ enum TokenType {
     VERA, // True
     VAR, // Variable
     DUM, // While
+    IMPORTI, // Import
 
     EOF
 };
\ No newline at end of file
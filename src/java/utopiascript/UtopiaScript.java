@@ -2,9 +2,9 @@ package utopiascript;
 
 import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.List;
 
@@ -13,23 +13,145 @@ public class UtopiaScript {
   static boolean hadRuntimeError = false;
 
   private static final Interpreter interpreter = new Interpreter();
+  // prints errors found by the scanner and parser
+  static final ErrorReporter reporter = new ErrorReporter() {
+    @Override
+    public void error(int line, int offset, String message) {
+      UtopiaScript.error(line, message);
+    }
+
+    @Override
+    public void error(Token token, String message) {
+      UtopiaScript.error(token, message);
+    }
+  };
+  // where --profile-stacks writes the collapsed call stacks
+  private static String profileStacksPath = null;
+  // whether --flat runs scripts from the flat syntax tree
+  private static boolean flat = false;
+  // whether --snapshot loaded globals into the interpreter
+  private static boolean snapshotLoaded = false;
+  // where --write-snapshot writes the globals once the script has run
+  private static String writeSnapshotPath = null;
+  // the directory or manifest of scripts --batch runs, and how many run at once
+  private static String batchPath = null;
+  // the socket --serve listens on for scripts to run, as many at once as there are workers
+  private static String socketPath = null;
+  private static int workers = Runtime.getRuntime().availableProcessors();
 
   public static void main(String[] args) throws IOException {
-    if (args.length > 1){
-      System.out.println("Usage: utopiascript [script]");
-      System.exit(64);
+    int arg = 0;
+    for (; arg < args.length && args[arg].startsWith("--"); arg++) {
+      switch (args[arg]) {
+        case "--profile":
+          interpreter.profiler = new Profiler();
+          break;
+        case "--profile-stacks":
+          if (++arg == args.length) usage();
+          interpreter.profiler = new Profiler();
+          profileStacksPath = args[arg];
+          break;
+        case "--jit":
+          interpreter.jit = true;
+          break;
+        case "--nodes":
+          interpreter.nodes = true;
+          break;
+        case "--deep":
+          interpreter.machine = new StackMachine(interpreter, StackMachine.DEFAULT_MAX_DEPTH);
+          break;
+        case "--max-depth":
+          if (++arg == args.length) usage();
+          interpreter.machine = new StackMachine(interpreter, positive(args[arg]));
+          break;
+        case "--flat":
+          flat = true;
+          break;
+        case "--module-cache":
+          if (++arg == args.length) usage();
+          interpreter.modules.cacheDirectory = Paths.get(args[arg]);
+          break;
+        case "--snapshot":
+          if (++arg == args.length) usage();
+          loadSnapshot(args[arg]);
+          snapshotLoaded = true;
+          break;
+        case "--write-snapshot":
+          if (++arg == args.length) usage();
+          writeSnapshotPath = args[arg];
+          break;
+        case "--batch":
+          if (++arg == args.length) usage();
+          batchPath = args[arg];
+          break;
+        case "--serve":
+          if (++arg == args.length) usage();
+          socketPath = args[arg];
+          break;
+        case "--workers":
+          if (++arg == args.length) usage();
+          workers = positive(args[arg]);
+          break;
+        case "--lsp":
+          System.exit(new LanguageServer(System.in, System.out).run());
+          break;
+        default:
+          usage();
+      }
+    }
+
+    // flat code is neither profiled nor made of functions a snapshot can hold
+    if (flat && (interpreter.profiler != null || writeSnapshotPath != null)) usage();
+
+    if (batchPath != null || socketPath != null) {
+      // every script gets a fresh interpreter, so there are no globals to profile or snapshot
+      if (args.length > arg || interpreter.profiler != null || snapshotLoaded || writeSnapshotPath != null) usage();
+      if (batchPath != null && socketPath != null) usage();
+      if (batchPath != null) {
+        System.exit(Batch.run(new Runner(interpreter, flat), Paths.get(batchPath), workers, System.out, System.err));
+      }
+      System.exit(Daemon.serve(interpreter, flat, Paths.get(socketPath), workers, System.err));
+    }
+
+    if (args.length - arg > 1){
+      usage();
     }
-    else if (args.length == 1){
-      runFile(args[0]);
+    else if (args.length - arg == 1){
+      runFile(args[arg]);
     }
     else {
       runPrompt();
     }
   }
 
+  private static int positive(String arg) {
+    try {
+      int value = Integer.parseInt(arg);
+      if (value > 0) return value;
+    } catch (NumberFormatException e) {
+      // reported below
+    }
+    usage();
+    return 0;
+  }
+
+  private static void usage() {
+    System.out.println("Usage: utopiascript [--jit] [--nodes | --flat | --deep | --max-depth frames] [--module-cache dir]\n" +
+      "                    [--profile] [--profile-stacks file] [--snapshot image] [--write-snapshot image] [script]\n" +
+      "       utopiascript [--jit] [--nodes | --flat | --deep | --max-depth frames] [--module-cache dir]\n" +
+      "                    --batch directory|manifest | --serve socket [--workers count]\n" +
+      "       utopiascript --lsp");
+    System.exit(64);
+  }
+
   private static void runFile(String path) throws IOException {
     byte[] bytes = Files.readAllBytes(Paths.get(path));
-    run(new String(bytes, Charset.defaultCharset()));
+    // imports are relative to the script
+    Path directory = Paths.get(path).toAbsolutePath().getParent();
+    if (directory != null) interpreter.directory = directory;
+    // the same encoding modules are read in, so a script reads alike run or imported
+    run(new String(bytes, StandardCharsets.UTF_8));
+    reportProfile();
 
     if (hadError){
       System.exit(65);
@@ -37,34 +159,90 @@ public class UtopiaScript {
     if (hadRuntimeError) {
       System.exit(70);
     }
+    writeSnapshot();
+  }
+
+  private static void loadSnapshot(String path) {
+    try {
+      Snapshot.read(interpreter, Paths.get(path));
+    } catch (IOException e) {
+      System.err.println("Can't load snapshot '" + path + "': " + e.getMessage());
+      System.exit(65);
+    }
+  }
+
+  // Writes the globals for --write-snapshot
+  private static void writeSnapshot() {
+    if (writeSnapshotPath == null) return;
+
+    try {
+      Snapshot.write(interpreter, Paths.get(writeSnapshotPath));
+    } catch (IOException e) {
+      System.err.println("Can't write snapshot '" + writeSnapshotPath + "': " + e.getMessage());
+      System.exit(74);
+    }
   }
 
   private static void runPrompt() throws IOException {
-    InputStreamReader input = new InputStreamReader(System.in);
-    BufferedReader reader = new BufferedReader(input);
+    BufferedReader reader = IoNatives.stdin();
+    // input that is incomplete so far, like a function whose body hasn't been closed
+    Document pending = new Document("");
 
     for (;;) {
-      System.out.println("> ");
+      System.out.println(pending.text().isEmpty() ? "> " : "... ");
       String line = reader.readLine();
       if (line == null) {
         break;
       }
-      run(line);
+
+      // an empty line gives up on incomplete input and reports its errors
+      pending.edit(pending.text().length(), 0, line + "\n");
+      if (!line.isEmpty() && pending.incomplete()) continue;
+
+      run(pending.text());
+      pending = new Document("");
 
       hadError = false;
     }
+
+    reportProfile();
+    writeSnapshot();
+  }
+
+  private static void reportProfile() throws IOException {
+    if (interpreter.profiler == null) return;
+
+    interpreter.profiler.report(System.err);
+    if (profileStacksPath != null) {
+      interpreter.profiler.writeCollapsedStacks(profileStacksPath);
+    }
   }
 
   private static void run(String source){
+    Metrics.ParseEvent parseEvent = null;
+    long start = 0;
+    if (Metrics.ENABLED) {
+      parseEvent = new Metrics.ParseEvent();
+      parseEvent.begin();
+      start = System.nanoTime();
+    }
+
     Scanner scanner = new Scanner(source);
     List<Token> tokens = scanner.scanTokens();
 
     Parser parser = new Parser(tokens);
     List<Stmt> statements = parser.parse();
 
+    if (Metrics.ENABLED) {
+      Metrics.parsed(System.nanoTime() - start);
+      parseEvent.tokens = tokens.size();
+      parseEvent.commit();
+    }
+
     if (hadError) return;
 
-    interpreter.interpret(statements);
+    if (flat) interpreter.interpret(FlatAst.of(statements));
+    else interpreter.interpret(statements);
   }
 
   static void error(int line, String message){
@@ -86,10 +264,16 @@ public class UtopiaScript {
   }
 
   static void runtimeError(RuntimeError error) {
-    System.err.println(error.getMessage() + "\n[line " + error.token.line + "]");
+    System.err.print(describe(error));
 
     hadRuntimeError = true;
   }
 
+  // The message, line and trace of a runtime error, as it is reported
+  static String describe(RuntimeError error) {
+    String text = error.getMessage() + "\n[line " + error.token.line + "]\n";
+    return error.trace == null ? text : text + error.trace;
+  }
+
 }
 
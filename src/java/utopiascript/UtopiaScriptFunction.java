@@ -3,7 +3,7 @@ package utopiascript;
 import java.util.List;
 
 class UtopiaScriptFunction implements UtopiaScriptCallable {
-    private final Stmt.Function declaration;
+    final Stmt.Function declaration;
     UtopiaScriptFunction(Stmt.Function declaration) {
         this.declaration = declaration;
     }
@@ -20,17 +20,68 @@ class UtopiaScriptFunction implements UtopiaScriptCallable {
 
     @Override
     public Object call(Interpreter interpreter, List<Object> arguments) {
-        Environment environment = new Environment(interpreter.globals);
+        Profiler profiler = interpreter.profiler;
+        if (interpreter.machine != null && profiler == null) return interpreter.machine.call(this, arguments);
+
+        CallStack calls = interpreter.calls;
+        calls.push(declaration.name.lexeme);
+        try {
+            return run(interpreter, arguments);
+        } catch (RuntimeError error) {
+            // the innermost function an error leaves is the first to see it
+            if (error.trace == null && error.token != null) error.trace = calls.trace(error.token.line);
+            throw error;
+        } catch (StackOverflowError error) {
+            RuntimeError overflow = new RuntimeError(declaration.name,
+                "Stack overflow in '" + declaration.name.lexeme + "'; --deep allows deeper recursion.");
+            overflow.trace = calls.trace(declaration.name.line);
+            throw overflow;
+        } finally {
+            calls.pop();
+        }
+    }
+
+    // Counts the call for Metrics before running it in whichever engine. Calls compiled code
+    // makes straight to compiled code, like a numeric function calling itself, are not counted.
+    private Object run(Interpreter interpreter, List<Object> arguments) {
+        if (!Metrics.ENABLED) return execute(interpreter, arguments);
+
+        Metrics.called(++interpreter.callDepth);
+        try {
+            return execute(interpreter, arguments);
+        } finally {
+            interpreter.callDepth--;
+        }
+    }
+
+    private Object execute(Interpreter interpreter, List<Object> arguments) {
+        Profiler profiler = interpreter.profiler;
+        // profiled runs stay in the interpreter, which is what reports calls and lines
+        if (interpreter.jit && profiler == null) {
+            Object result = Jit.call(interpreter, this, arguments);
+            if (result != null) return result;
+        }
+
+        Environment environment = interpreter.scopes.acquire(interpreter.globals);
 
         // assign parameters to their respective argument values
         for (int i = 0; i < declaration.params.size(); i++) {
-            environment.define(declaration.params.get(i).lexeme, arguments.get(i));
+            environment.define(declaration.params.get(i).symbol, arguments.get(i));
         }
 
+        if (profiler != null) profiler.enter(this, declaration.name);
+
         try {
+            if (interpreter.nodes && profiler == null) {
+                Object result = Nodes.execute(declaration.body, new Frame(interpreter, environment));
+                return result == Frame.NORMAL ? null : result;
+            }
             interpreter.executeBlock(declaration.body, environment);
         } catch (Return returnValue) {
             return returnValue.value;
+        } finally {
+            if (profiler != null) profiler.exit();
+            interpreter.scopes.release(environment);
         }
 
         return null;
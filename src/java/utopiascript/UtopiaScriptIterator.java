@@ -0,0 +1,82 @@
+package utopiascript;
+
+import java.util.Iterator;
+import java.util.List;
+
+// A lazy sequence of values, consumed at most once.
+// Iterators are produced by natives such as intervalo and mapi and are
+// walked by the 'por (ero en xs)' loop without building intermediate collections.
+abstract class UtopiaScriptIterator implements Iterator<Object> {
+
+    @Override
+    public String toString() { return "<iterator>"; }
+
+    // Converts a value into an iterator
+    // Iterators are returned as is, strings are iterated character by character
+    static UtopiaScriptIterator from(Object value) {
+        if (value instanceof UtopiaScriptIterator) {
+            return (UtopiaScriptIterator)value;
+        }
+
+        if (value instanceof String) {
+            String text = (String)value;
+            return new UtopiaScriptIterator() {
+                private int index = 0;
+
+                @Override
+                public boolean hasNext() { return index < text.length(); }
+
+                @Override
+                public Object next() { return String.valueOf(text.charAt(index++)); }
+            };
+        }
+
+        throw new RuntimeError("Can only iterate over iterators and strings.");
+    }
+
+    // The callables below are what the parser desugars a for-each loop into.
+    // They are referenced directly as literals so scripts cannot shadow them.
+    static final UtopiaScriptCallable ITERATE = new UtopiaScriptCallable() {
+        @Override
+        public int arity() { return 1; }
+
+        @Override
+        public Object call(Interpreter interpreter, List<Object> arguments) {
+            Object value = arguments.get(0);
+            if (!(value instanceof UtopiaScriptIterator) && !(value instanceof String)) {
+                throw new RuntimeError("A por loop can only iterate over iterators and strings, not " +
+                    Interpreter.stringify(value) + ".");
+            }
+            return from(value);
+        }
+
+        @Override
+        public String toString() { return "<native fn>"; }
+    };
+
+    static final UtopiaScriptCallable HAS_NEXT = new UtopiaScriptCallable() {
+        @Override
+        public int arity() { return 1; }
+
+        @Override
+        public Object call(Interpreter interpreter, List<Object> arguments) {
+            return ((UtopiaScriptIterator)arguments.get(0)).hasNext();
+        }
+
+        @Override
+        public String toString() { return "<native fn>"; }
+    };
+
+    static final UtopiaScriptCallable NEXT = new UtopiaScriptCallable() {
+        @Override
+        public int arity() { return 1; }
+
+        @Override
+        public Object call(Interpreter interpreter, List<Object> arguments) {
+            return ((UtopiaScriptIterator)arguments.get(0)).next();
+        }
+
+        @Override
+        public String toString() { return "<native fn>"; }
+    };
+}